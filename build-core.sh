@@ -0,0 +1,73 @@
+#!/bin/sh
+# Builds the core jar: the Huffman package and its command line, without the JavaFX interface.
+#
+#   ./build-core.sh            build/huffman-core.jar, a class data sharing archive and build/huffman
+#   NATIVE=1 ./build-core.sh   also build/huffman-native with GraalVM native-image
+#   VECTOR=1 ./build-core.sh   also count bytes with the incubating Vector API (src-vector)
+#
+# Needs JDK 17 or later. The class data sharing archive holds the classes a few sample commands load,
+# already parsed and verified, so a JVM started with it skips most of its class loading. It only works
+# with the JDK it was made with and the jar where it was built, so run this script again after changing
+# either.
+set -eu
+
+cd "$(dirname "$0")"
+JAVA_BIN="${JAVA_HOME:+$JAVA_HOME/bin/}"
+# The archive records the absolute path of the jar, so it is built where it is used
+BUILD="$(pwd)/build"
+CLASSES="$BUILD/core-classes"
+JAR="$BUILD/huffman-core.jar"
+ARCHIVE="$BUILD/huffman-core.jsa"
+# Options every launch uses. C1 alone compiles sooner, which is what a short run needs.
+JVM_OPTS="-XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xshare:auto"
+if [ "${VECTOR:-0}" = 1 ]; then
+    # The JVM prints a warning about the incubator module on every start
+    JVM_OPTS="$JVM_OPTS --add-modules jdk.incubator.vector"
+fi
+
+rm -rf "$CLASSES" "$ARCHIVE"
+mkdir -p "$CLASSES"
+"${JAVA_BIN}javac" --release 17 -encoding UTF-8 -nowarn -d "$CLASSES" src/Huffman/*.java
+if [ "${VECTOR:-0}" = 1 ]; then
+    # Found by name at run time, and only used when the module is added
+    "${JAVA_BIN}javac" --release 17 --add-modules jdk.incubator.vector -encoding UTF-8 -nowarn -cp "$CLASSES" \
+        -d "$CLASSES" src-vector/Huffman/*.java
+fi
+cp -R src/META-INF "$CLASSES/"
+"${JAVA_BIN}jar" --create --file "$JAR" --main-class Huffman.HuffmanCli -C "$CLASSES" .
+
+# Every mode has to give back the golden corpus and write the same bytes it did when the corpus was made
+"${JAVA_BIN}java" $JVM_OPTS -cp "$JAR" Huffman.CodecVerifier check corpus
+
+# Record the classes loaded by each command, then dump them all into one archive
+SAMPLE="$BUILD/sample"
+mkdir -p "$SAMPLE"
+cat README.md src/Huffman/*.java > "$SAMPLE/input.txt"
+: > "$BUILD/classes.lst"
+train() {
+    "${JAVA_BIN}java" $JVM_OPTS -Xshare:off -XX:DumpLoadedClassList="$BUILD/run.lst" -jar "$JAR" "$@" > /dev/null
+    cat "$BUILD/run.lst" >> "$BUILD/classes.lst"
+}
+train compress "$SAMPLE/input.txt" "$SAMPLE/input.huf"
+train compress --level best --threads 2 "$SAMPLE/input.txt" "$SAMPLE/input.huf"
+train decompress --limits "$SAMPLE/input.huf" "$SAMPLE/output.txt"
+train append "$SAMPLE/input.huf" "$SAMPLE/input.txt"
+train analyze "$SAMPLE/input.txt"
+sort -u "$BUILD/classes.lst" -o "$BUILD/classes.lst"
+"${JAVA_BIN}java" $JVM_OPTS -Xshare:dump -XX:SharedClassListFile="$BUILD/classes.lst" \
+    -XX:SharedArchiveFile="$ARCHIVE" -cp "$JAR" > /dev/null
+rm -rf "$SAMPLE" "$BUILD/run.lst"
+
+# A launcher for scripts. If the build directory is moved the JVM ignores the archive and starts slower.
+cat > "$BUILD/huffman" <<LAUNCHER
+#!/bin/sh
+exec "${JAVA_BIN}java" $JVM_OPTS -XX:SharedArchiveFile="$ARCHIVE" -jar "$JAR" "\$@"
+LAUNCHER
+chmod +x "$BUILD/huffman"
+
+if [ "${NATIVE:-0}" = 1 ]; then
+    # The options are in src/META-INF/native-image, inside the jar
+    native-image -jar "$JAR" -o "$BUILD/huffman-native"
+fi
+
+echo "Built $JAR and $ARCHIVE, run build/huffman"
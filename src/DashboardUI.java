@@ -0,0 +1,198 @@
+import Huffman.CodecMetrics;
+import Huffman.ProgressEvent;
+import Huffman.ProgressListener;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.GridPane;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+
+import java.text.DecimalFormat;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Creates the window that shows how a compression or decompression is going while it runs.
+ * <p>
+ * It shows the stage the job is in, how fast it is going, how many bits each character is taking
+ * compared with the entropy, the number of threads and how long each stage has taken so far.
+ * The codecs report their progress from their own threads, so the listener only keeps the latest event
+ * and the window reads it and the metrics a few times a second on the JavaFX thread.
+ */
+public class DashboardUI {
+    // How often the window is brought up to date
+    private static final Duration REFRESH = Duration.millis(250);
+    private static final DecimalFormat FORMAT = new DecimalFormat("0.##");
+
+    private final Stage stage = new Stage();
+    private final CodecMetrics metrics;
+    private final long inputSize;
+    private final AtomicReference<ProgressEvent> latest = new AtomicReference<>();
+    private final Timeline refresher;
+    private final long startNanos = System.nanoTime();
+
+    private final ProgressBar progressBar = new ProgressBar(ProgressBar.INDETERMINATE_PROGRESS);
+    private final Label stageLabel = getLabel("Starting");
+    private final Label speedLabel = getLabel("-");
+    private final Label processedLabel = getLabel("-");
+    private final Label bitsLabel = getLabel("-");
+    private final Label[] stageTimeLabels = new Label[CodecMetrics.Stage.values().length];
+
+    // The amount processed at the last refresh, to work out the current speed
+    private long lastProcessed = 0;
+    private long lastNanos = startNanos;
+
+    /**
+     * Instantiates a new Dashboard ui.
+     *
+     * @param title     the title of the window
+     * @param metrics   the metrics the job records to
+     * @param inputSize the size of the file being read, used when the codec does not know its total
+     * @param threads   the number of threads the job runs on
+     */
+    public DashboardUI(String title, CodecMetrics metrics, long inputSize, int threads) {
+        this.metrics = metrics;
+        this.inputSize = inputSize;
+
+        // Creates the progress bar
+        progressBar.setPrefSize(560, 40);
+        progressBar.setStyle("-fx-accent: #5BC2E7");
+
+        // Lays out the live figures as a table of names and values
+        GridPane figures = new GridPane();
+        figures.setHgap(20);
+        figures.setVgap(5);
+        int row = 0;
+        figures.addRow(row++, getLabel("Stage: "), stageLabel);
+        figures.addRow(row++, getLabel("Speed: "), speedLabel);
+        figures.addRow(row++, getLabel("Processed: "), processedLabel);
+        figures.addRow(row++, getLabel("Bits per character: "), bitsLabel);
+        figures.addRow(row++, getLabel("Threads: "), getLabel(String.valueOf(threads)));
+        for (CodecMetrics.Stage codecStage : CodecMetrics.Stage.values()) {
+            stageTimeLabels[codecStage.ordinal()] = getLabel("0 ms");
+            figures.addRow(row++, getLabel(getStageName(codecStage) + " time: "), stageTimeLabels[codecStage.ordinal()]);
+        }
+
+        VBox root = new VBox(progressBar, figures);
+        root.setSpacing(20);
+        root.setPadding(new Insets(20));
+
+        stage.setTitle(title);
+        stage.setResizable(false);
+        stage.setScene(new Scene(root, 600, 480));
+
+        // Reads the latest figures a few times a second rather than for every event
+        refresher = new Timeline(new KeyFrame(REFRESH, event -> refresh()));
+        refresher.setCycleCount(Timeline.INDEFINITE);
+    }
+
+    /**
+     * Gets the listener to give to the codec, which can be called from any thread.
+     *
+     * @return the progress listener
+     */
+    public ProgressListener getListener() {
+        return latest::set;
+    }
+
+    /**
+     * Gets the window, so the caller can decide what happens when the user closes it.
+     *
+     * @return the stage
+     */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Shows the window and starts bringing it up to date.
+     */
+    public void show() {
+        stage.show();
+        refresher.play();
+    }
+
+    /**
+     * Stops bringing the window up to date and closes it.
+     */
+    public void close() {
+        refresher.stop();
+        stage.close();
+    }
+
+    /**
+     * Brings every figure in the window up to date with the latest event and the metrics.
+     */
+    private void refresh() {
+        long now = System.nanoTime();
+        ProgressEvent event = latest.get();
+        if (event != null) {
+            long total = event.getTotalBytes() < 0 ? inputSize : event.getTotalBytes();
+            long processed = event.getBytesProcessed();
+            stageLabel.setText(getStageName(event.getStage()));
+            progressBar.setProgress(total <= 0 ? ProgressBar.INDETERMINATE_PROGRESS : Math.min(1, (double) processed / total));
+            processedLabel.setText(formatSize(processed) + " of " + (total < 0 ? "?" : formatSize(total)));
+
+            // The speed over the last refresh, starting again if a new stage counts from 0
+            if (processed < lastProcessed) {
+                lastProcessed = 0;
+            }
+            double current = (processed - lastProcessed) / ((now - lastNanos) / 1e9) / (1 << 20);
+            double average = processed / ((now - startNanos) / 1e9) / (1 << 20);
+            speedLabel.setText(FORMAT.format(current) + " MB/s (average " + FORMAT.format(average) + " MB/s)");
+            lastProcessed = processed;
+        }
+        lastNanos = now;
+
+        if (metrics.getSymbols() > 0) {
+            bitsLabel.setText(FORMAT.format(metrics.getBitsPerSymbol())
+                    + " (entropy " + FORMAT.format(metrics.getEntropyPerSymbol()) + ")");
+        }
+        for (CodecMetrics.Stage codecStage : CodecMetrics.Stage.values()) {
+            stageTimeLabels[codecStage.ordinal()].setText(FORMAT.format(metrics.getNanos(codecStage) / 1e6) + " ms");
+        }
+    }
+
+    /**
+     * Gets the name of a stage to show to the user.
+     *
+     * @param codecStage the stage
+     * @return the name, such as "Encode"
+     */
+    private static String getStageName(CodecMetrics.Stage codecStage) {
+        String name = codecStage.name().toLowerCase(Locale.ROOT);
+        return codecStage == CodecMetrics.Stage.IO ? "Reading/writing" : Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Formats a number of bytes or characters for the user.
+     *
+     * @param size the size
+     * @return the size in B, KB or MB
+     */
+    private static String formatSize(long size) {
+        if (size < 1 << 10) {
+            return size + " B";
+        } else if (size < 1 << 20) {
+            return FORMAT.format(size / 1024.0) + " KB";
+        }
+        return FORMAT.format(size / (1024.0 * 1024)) + " MB";
+    }
+
+    /**
+     * Gets a label in the font used by the window.
+     *
+     * @param text the text displayed
+     * @return the label
+     */
+    private static Label getLabel(String text) {
+        Label label = new Label(text);
+        label.setStyle("-fx-font-size: 18");
+        return label;
+    }
+}
@@ -0,0 +1,54 @@
+package Huffman;
+
+/**
+ * Constants describing the layout of an archive holding many files.
+ * <p>
+ * The archive is laid out as:
+ * <pre>
+ * int     {@link #MAGIC}
+ * byte[]  the shared code tables, {@link CodeTable#HEADER_SIZE} bytes each
+ * byte[]  the members, each a complete block compressed file (see {@link BlockFormat})
+ * byte[]  the central directory
+ * long    the offset of the central directory
+ * int     {@link #MAGIC}
+ * </pre>
+ * The central directory starts with the number of shared code tables and the number of members as ints,
+ * followed by one entry per member:
+ * <pre>
+ * short   number of bytes in the name
+ * byte[]  the name as UTF-8
+ * long    the offset of the member's compressed data
+ * long    number of compressed bytes
+ * int     number of uncompressed bytes
+ * int     the index of the shared code table the member starts with, or {@link #NO_DICTIONARY}
+ * int     the CRC-32 of the uncompressed bytes
+ * </pre>
+ * A member that starts with a shared code table can begin with a {@link BlockFormat#SAME_TABLE} block,
+ * so small files do not each need a code table of their own.
+ * All numbers are big-endian.
+ */
+final class ArchiveFormat {
+    /**
+     * The first and last 4 bytes of an archive ("HUFA").
+     */
+    static final int MAGIC = 0x48554641;
+    /**
+     * The number of bytes at the end of the archive giving the offset of the central directory.
+     */
+    static final int FOOTER_SIZE = 12;
+    /**
+     * The number of bytes in a central directory entry, not counting the name.
+     */
+    static final int ENTRY_SIZE = 30;
+    /**
+     * The table index of a member that does not start with a shared code table.
+     */
+    static final int NO_DICTIONARY = -1;
+    /**
+     * The longest name that can be stored, in UTF-8 bytes.
+     */
+    static final int MAX_NAME_LENGTH = 0xffff;
+
+    private ArchiveFormat() {
+    }
+}
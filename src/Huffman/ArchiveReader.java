@@ -0,0 +1,275 @@
+package Huffman;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Reads members out of an archive written by {@link ArchiveWriter}.
+ * <p>
+ * Opening the archive reads only the footer, the central directory and the shared code tables.
+ * Each member is found through the directory and mapped into memory on its own, so extracting one file
+ * from a large archive reads just that file's bytes.
+ */
+public class ArchiveReader implements Closeable {
+    private final FileChannel channel;
+    private final CodeTable[] dictionaries;
+    private final Map<String, Entry> entries;
+    private final List<String> names;
+    private CodecMetrics metrics = new CodecMetrics();
+
+    /**
+     * Opens an archive and reads its central directory.
+     *
+     * @param archive the archive
+     * @throws IOException if the archive cannot be read or is not valid
+     */
+    public ArchiveReader(Path archive) throws IOException {
+        channel = FileChannel.open(archive, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < 4 + ArchiveFormat.FOOTER_SIZE) {
+                throw new IOException("Not an archive");
+            }
+            ByteBuffer footer = map(size - ArchiveFormat.FOOTER_SIZE, ArchiveFormat.FOOTER_SIZE);
+            long directoryOffset = footer.getLong(0);
+            if (footer.getInt(8) != ArchiveFormat.MAGIC || map(0, 4).getInt(0) != ArchiveFormat.MAGIC
+                    || directoryOffset < 4 || directoryOffset > size - ArchiveFormat.FOOTER_SIZE) {
+                throw new IOException("Not an archive");
+            }
+            ByteBuffer directory = map(directoryOffset, size - ArchiveFormat.FOOTER_SIZE - directoryOffset);
+
+            int dictionaryCount = directory.getInt();
+            int memberCount = directory.getInt();
+            if (dictionaryCount < 0 || 4 + (long) dictionaryCount * CodeTable.HEADER_SIZE > directoryOffset
+                    || memberCount < 0 || (long) memberCount * ArchiveFormat.ENTRY_SIZE > directory.remaining()) {
+                throw new IOException("Archive directory is corrupt");
+            }
+            ByteBuffer tables = map(4, (long) dictionaryCount * CodeTable.HEADER_SIZE);
+            dictionaries = new CodeTable[dictionaryCount];
+            for (int i = 0; i < dictionaryCount; i++) {
+                dictionaries[i] = new CodeTable();
+                dictionaries[i].read(tables, i * CodeTable.HEADER_SIZE);
+            }
+
+            entries = new HashMap<>(memberCount * 2);
+            List<String> ordered = new ArrayList<>(memberCount);
+            for (int i = 0; i < memberCount; i++) {
+                readEntry(directory, directoryOffset, ordered);
+            }
+            names = Collections.unmodifiableList(ordered);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Archive directory is corrupt", e);
+        }
+    }
+
+    /**
+     * Reads one central directory entry into the lookup map, checking that it points inside the member data.
+     *
+     * @param directory       the central directory, positioned at the entry
+     * @param directoryOffset the offset of the central directory, where the member data ends
+     * @param ordered         the names read so far, the new name is added to the end
+     * @throws IOException if the entry is not valid
+     */
+    private void readEntry(ByteBuffer directory, long directoryOffset, List<String> ordered) throws IOException {
+        byte[] encodedName = new byte[directory.getShort() & ArchiveFormat.MAX_NAME_LENGTH];
+        directory.get(encodedName);
+        String name = new String(encodedName, StandardCharsets.UTF_8);
+        Entry entry = new Entry();
+        entry.offset = directory.getLong();
+        entry.compressedLength = directory.getLong();
+        entry.originalLength = directory.getInt();
+        entry.dictionary = directory.getInt();
+        entry.crc = directory.getInt();
+        if (entry.offset < 4 || entry.compressedLength < 0 || entry.offset + entry.compressedLength > directoryOffset
+                || entry.compressedLength > Integer.MAX_VALUE || entry.originalLength < 0
+                || entry.dictionary < ArchiveFormat.NO_DICTIONARY || entry.dictionary >= dictionaries.length) {
+            throw new IOException("Archive entry is corrupt: " + name);
+        }
+        if (entries.putIfAbsent(name, entry) != null) {
+            throw new IOException("Archive has two entries named " + name);
+        }
+        ordered.add(name);
+    }
+
+    /**
+     * Gets the metrics that this reader records to.
+     *
+     * @return the metrics
+     */
+    public CodecMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics that this reader records to.
+     *
+     * @param metrics the metrics
+     */
+    public void setMetrics(CodecMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the names of the members, in the order they were written.
+     *
+     * @return the names
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Checks whether the archive has a member.
+     *
+     * @param name the member name
+     * @return true if the member is in the archive
+     */
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Gets the uncompressed size of a member.
+     *
+     * @param name the member name
+     * @return the number of bytes
+     * @throws NoSuchElementException if the member is not in the archive
+     */
+    public int getSize(String name) {
+        return getEntry(name).originalLength;
+    }
+
+    /**
+     * Decompresses a member into memory.
+     *
+     * @param name the member name
+     * @return a buffer holding the member's bytes, from position 0 to its limit
+     * @throws IOException            if the member is corrupt
+     * @throws NoSuchElementException if the member is not in the archive
+     */
+    public ByteBuffer read(String name) throws IOException {
+        Entry entry = getEntry(name);
+        long start = metrics.start();
+        ByteBuffer compressed = map(entry.offset, entry.compressedLength);
+        metrics.record(CodecMetrics.Stage.IO, start);
+
+        ByteBuffer contents = ByteBuffer.allocate(entry.originalLength);
+        BlockDecoder decoder = new BlockDecoder();
+        decoder.setMetrics(metrics);
+        CodeTable dictionary = entry.dictionary == ArchiveFormat.NO_DICTIONARY ? null : dictionaries[entry.dictionary];
+        try {
+            decoder.decompress(compressed, contents, dictionary);
+        } catch (BufferOverflowException e) {
+            throw new IOException("Member is larger than its directory entry: " + name);
+        }
+        contents.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(contents.array(), 0, contents.limit());
+        if (contents.limit() != entry.originalLength || (int) crc.getValue() != entry.crc) {
+            throw new IOException("Member is corrupt: " + name);
+        }
+        return contents;
+    }
+
+    /**
+     * Decompresses a member to a file, replacing the file if it exists.
+     *
+     * @param name the member name
+     * @param file the file to write
+     * @throws IOException            if the member is corrupt or the file cannot be written
+     * @throws NoSuchElementException if the member is not in the archive
+     */
+    public void extract(String name, Path file) throws IOException {
+        ByteBuffer contents = read(name);
+        long start = metrics.start();
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.write(file, Arrays.copyOf(contents.array(), contents.limit()));
+        metrics.record(CodecMetrics.Stage.IO, start);
+    }
+
+    /**
+     * Decompresses every member into a directory, using the member names as relative paths.
+     *
+     * @param directory the directory
+     * @throws IOException if a member is corrupt, a name points outside the directory or a file cannot be written
+     */
+    public void extractAll(Path directory) throws IOException {
+        Path root = directory.toAbsolutePath().normalize();
+        for (String name : names) {
+            Path file = root.resolve(name).normalize();
+            if (!file.startsWith(root) || file.equals(root)) {
+                throw new IOException("Member name points outside the directory: " + name);
+            }
+            extract(name, file);
+        }
+    }
+
+    /**
+     * Closes the archive. Buffers returned by {@link #read(String)} can still be used.
+     *
+     * @throws IOException if the archive cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Looks up a member in the central directory.
+     *
+     * @param name the member name
+     * @return the directory entry
+     * @throws NoSuchElementException if the member is not in the archive
+     */
+    private Entry getEntry(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new NoSuchElementException("No member named " + name);
+        }
+        return entry;
+    }
+
+    /**
+     * Maps part of the archive into memory.
+     *
+     * @param offset the offset of the first byte
+     * @param length the number of bytes
+     * @return the mapped bytes
+     * @throws IOException if the part is too large to map or cannot be read
+     */
+    private MappedByteBuffer map(long offset, long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Archive section is too large to map");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    /**
+     * Where a member is in the archive and how to decompress it.
+     */
+    private static final class Entry {
+        private long offset;
+        private long compressedLength;
+        private int originalLength;
+        private int dictionary;
+        private int crc;
+    }
+}
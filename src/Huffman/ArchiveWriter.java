@@ -0,0 +1,419 @@
+package Huffman;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Packs many files into one archive (see {@link ArchiveFormat}), to be read back by {@link ArchiveReader}.
+ * <p>
+ * Before anything is compressed the files are split into groups with similar byte frequencies and each group
+ * gets a shared code table. Every member starts with its group's table, so a small file does not pay for a
+ * code table of its own. The members are then compressed in parallel and written in the order they were added,
+ * followed by a central directory that lets the reader find any member without scanning the archive.
+ */
+public class ArchiveWriter {
+    /**
+     * The default number of shared code tables.
+     */
+    public static final int DEFAULT_DICTIONARY_COUNT = 1;
+
+    private final Map<String, Path> members = new LinkedHashMap<>();
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int dictionaryCount = DEFAULT_DICTIONARY_COUNT;
+    private CompressionLevel level = CompressionLevel.DEFAULT;
+    private CodecMetrics metrics = new CodecMetrics();
+
+    /**
+     * Adds a file to the archive. The file is not read until {@link #write(Path)} is called.
+     *
+     * @param name the name to store the file under
+     * @param file the file
+     * @throws IllegalArgumentException if the name is already in the archive or is too long
+     */
+    public void add(String name, Path file) {
+        if (name.getBytes(StandardCharsets.UTF_8).length > ArchiveFormat.MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name is too long: " + name);
+        }
+        if (members.putIfAbsent(name, file) != null) {
+            throw new IllegalArgumentException("Name is already in the archive: " + name);
+        }
+    }
+
+    /**
+     * Adds every regular file under a directory, named by its path relative to the directory using '/'.
+     *
+     * @param directory the directory
+     * @throws IOException if the directory cannot be listed
+     */
+    public void addDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                String name = directory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                add(name, file);
+            }
+        }
+    }
+
+    /**
+     * Sets the number of threads used to compress members.
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads must be positive");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the most shared code tables to build. 0 means every member carries its own tables.
+     *
+     * @param dictionaryCount the number of shared code tables
+     */
+    public void setDictionaryCount(int dictionaryCount) {
+        if (dictionaryCount < 0) {
+            throw new IllegalArgumentException("Dictionary count cannot be negative");
+        }
+        this.dictionaryCount = dictionaryCount;
+    }
+
+    /**
+     * Sets how hard the members are compressed.
+     *
+     * @param level the compression level
+     */
+    public void setLevel(CompressionLevel level) {
+        this.level = level;
+    }
+
+    /**
+     * Gets the metrics that this writer records to.
+     *
+     * @return the metrics
+     */
+    public CodecMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics that this writer records to.
+     *
+     * @param metrics the metrics
+     */
+    public void setMetrics(CodecMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Writes every added file to an archive, replacing the archive if it exists.
+     *
+     * @param archive the archive to write
+     * @return the number of bytes written
+     * @throws IOException if a file cannot be read or the archive cannot be written
+     */
+    public long write(Path archive) throws IOException {
+        List<String> names = new ArrayList<>(members.keySet());
+        int[][] histograms = new int[names.size()][];
+        for (int i = 0; i < names.size(); i++) {
+            histograms[i] = countBytes(members.get(names.get(i)));
+        }
+        // Members whose bytes would not shrink even with a free code table are stored without trying
+        CompressionAnalyzer analyzer = new CompressionAnalyzer();
+        boolean[] stored = new boolean[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            CompressionAnalysis analysis = analyzer.analyze(histograms[i]);
+            stored[i] = analysis.getPredictedSize() - analysis.getHeaderSize() >= analysis.getOriginalSize();
+        }
+        int[] groups = new int[names.size()];
+        CodeTable[] dictionaries = buildDictionaries(histograms, stored, groups);
+
+        try (FileChannel out = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(4 + dictionaries.length * CodeTable.HEADER_SIZE);
+            header.putInt(ArchiveFormat.MAGIC);
+            for (CodeTable dictionary : dictionaries) {
+                dictionary.write(header, header.position());
+                header.position(header.position() + CodeTable.HEADER_SIZE);
+            }
+            header.flip();
+            long position = writeFully(out, header, 0);
+
+            Member[] written = new Member[names.size()];
+            position = writeMembers(out, position, names, stored, groups, dictionaries, written);
+            long directoryOffset = position;
+            position = writeFully(out, directory(names, written, dictionaries.length), position);
+
+            ByteBuffer footer = ByteBuffer.allocate(ArchiveFormat.FOOTER_SIZE);
+            footer.putLong(directoryOffset).putInt(ArchiveFormat.MAGIC).flip();
+            return writeFully(out, footer, position);
+        }
+    }
+
+    /**
+     * Compresses the members on a pool of threads and writes them in order.
+     * <p>
+     * Only a few members more than there are threads are compressed ahead of the one being written,
+     * so the memory used does not grow with the number of files.
+     *
+     * @param out          the archive
+     * @param position     the offset to write the first member at
+     * @param names        the member names in the order they are written
+     * @param stored       whether each member is stored rather than compressed
+     * @param groups       the index of the shared code table for each member
+     * @param dictionaries the shared code tables
+     * @param written      where the compressed members are recorded for the central directory
+     * @return the offset after the last member
+     * @throws IOException if a file cannot be read or the archive cannot be written
+     */
+    private long writeMembers(FileChannel out, long position, List<String> names, boolean[] stored, int[] groups,
+                              CodeTable[] dictionaries, Member[] written) throws IOException {
+        ExecutorService compressors = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "huffman-archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<Future<Member>> pending = new ArrayDeque<>();
+        int window = threads * 2;
+        int next = 0;
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                while (next < names.size() && pending.size() < window) {
+                    Path file = members.get(names.get(next));
+                    int group = groups[next];
+                    CompressionLevel memberLevel = stored[next] ? CompressionLevel.FAST : level;
+                    CodeTable dictionary = group == ArchiveFormat.NO_DICTIONARY ? null : dictionaries[group];
+                    pending.add(compressors.submit(() -> compress(file, dictionary, group, memberLevel)));
+                    next++;
+                }
+                Member member = pending.remove().get();
+                long start = metrics.start();
+                member.offset = position;
+                position = writeFully(out, member.data, position);
+                member.data = null;
+                written[i] = member;
+                metrics.record(CodecMetrics.Stage.IO, start);
+            }
+            return position;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing the archive");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Compressing a member failed", e.getCause());
+        } finally {
+            compressors.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads and compresses one member on a compressor thread.
+     *
+     * @param file       the file
+     * @param dictionary the shared code table the member starts with, or null for none
+     * @param group      the index of the shared code table
+     * @param level      how hard to compress the member
+     * @return the compressed member
+     * @throws IOException if the file cannot be read or is too large
+     */
+    private Member compress(Path file, CodeTable dictionary, int group, CompressionLevel level) throws IOException {
+        long start = metrics.start();
+        if (Files.size(file) > Integer.MAX_VALUE - BlockEncoder.DEFAULT_BLOCK_SIZE) {
+            throw new IOException("File is too large for an archive member: " + file);
+        }
+        byte[] contents = Files.readAllBytes(file);
+        metrics.record(CodecMetrics.Stage.IO, start);
+
+        BlockEncoder encoder = new BlockEncoder();
+        encoder.setMetrics(metrics);
+        encoder.setLevel(level);
+        ByteBuffer compressed = ByteBuffer.allocate(encoder.maxCompressedLength(contents.length));
+        encoder.compress(ByteBuffer.wrap(contents), compressed, dictionary);
+        compressed.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, contents.length);
+        Member member = new Member();
+        member.data = compressed;
+        member.compressedLength = compressed.remaining();
+        member.originalLength = contents.length;
+        member.dictionary = group;
+        member.crc = (int) crc.getValue();
+        return member;
+    }
+
+    /**
+     * Splits the files into groups with similar byte frequencies and builds a code table for each group.
+     * <p>
+     * The largest files start the groups, then each other file joins the group whose table would encode it
+     * in the fewest bits. Every byte value is counted at least once so the tables can encode any member,
+     * whatever it holds. Stored files are left out so that they do not skew the tables.
+     *
+     * @param histograms how often each byte appears in each file
+     * @param stored     whether each file is stored rather than compressed
+     * @param groups     where the group of each file is written
+     * @return the shared code tables
+     */
+    private CodeTable[] buildDictionaries(int[][] histograms, boolean[] stored, int[] groups) {
+        long start = metrics.start();
+        Arrays.fill(groups, ArchiveFormat.NO_DICTIONARY);
+        List<Integer> bySize = new ArrayList<>();
+        long[] sizes = new long[histograms.length];
+        for (int i = 0; i < histograms.length; i++) {
+            if (!stored[i]) {
+                bySize.add(i);
+            }
+            for (int frequency : histograms[i]) {
+                sizes[i] += frequency;
+            }
+        }
+        bySize.sort((a, b) -> Long.compare(sizes[b], sizes[a]));
+        int count = Math.min(dictionaryCount, bySize.size());
+        if (count == 0) {
+            return new CodeTable[0];
+        }
+
+        long[][] totals = new long[count][CodeTable.ALPHABET_SIZE];
+        CodeTable[] tables = new CodeTable[count];
+        int[] smoothed = new int[CodeTable.ALPHABET_SIZE];
+        for (int i = 0; i < bySize.size(); i++) {
+            int file = bySize.get(i);
+            int group = i;
+            if (i >= count) {
+                group = 0;
+                long bestCost = Long.MAX_VALUE;
+                for (int g = 0; g < count; g++) {
+                    long cost = tables[g].cost(histograms[file]);
+                    if (cost < bestCost) {
+                        bestCost = cost;
+                        group = g;
+                    }
+                }
+            }
+            groups[file] = group;
+            for (int symbol = 0; symbol < CodeTable.ALPHABET_SIZE; symbol++) {
+                totals[group][symbol] += histograms[file][symbol];
+            }
+            smooth(totals[group], smoothed);
+            if (tables[group] == null) {
+                tables[group] = CodeTable.fromHistogram(smoothed);
+            } else {
+                tables[group].build(smoothed);
+            }
+        }
+        metrics.record(CodecMetrics.Stage.BUILD, start);
+        return tables;
+    }
+
+    /**
+     * Turns summed byte counts into a histogram where every byte appears at least once,
+     * scaling the counts down if they would not fit in an int.
+     *
+     * @param totals   how often each byte appears in a group
+     * @param smoothed where the histogram is written
+     */
+    static void smooth(long[] totals, int[] smoothed) {
+        long max = 0;
+        for (long total : totals) {
+            max = Math.max(max, total);
+        }
+        int shift = 0;
+        while ((max >>> shift) > (1 << 22)) {
+            shift++;
+        }
+        for (int symbol = 0; symbol < CodeTable.ALPHABET_SIZE; symbol++) {
+            smoothed[symbol] = (int) (totals[symbol] >>> shift) + 1;
+        }
+    }
+
+    /**
+     * Counts how often each byte appears in a file.
+     *
+     * @param file the file
+     * @return the histogram
+     * @throws IOException if the file cannot be read
+     */
+    private int[] countBytes(Path file) throws IOException {
+        long start = metrics.start();
+        int[] histogram = new int[CodeTable.ALPHABET_SIZE];
+        int[][] lanes = ByteHistogram.newLanes();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                ByteHistogram.add(buffer, 0, read, histogram, lanes);
+            }
+        }
+        metrics.record(CodecMetrics.Stage.COUNT, start);
+        return histogram;
+    }
+
+    /**
+     * Lays out the central directory.
+     *
+     * @param names           the member names
+     * @param written         the compressed members
+     * @param dictionaryCount the number of shared code tables
+     * @return the central directory, ready to be written
+     */
+    private static ByteBuffer directory(List<String> names, Member[] written, int dictionaryCount) {
+        byte[][] encodedNames = new byte[names.size()][];
+        int size = 8;
+        for (int i = 0; i < names.size(); i++) {
+            encodedNames[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            size += ArchiveFormat.ENTRY_SIZE + encodedNames[i].length;
+        }
+        ByteBuffer directory = ByteBuffer.allocate(size);
+        directory.putInt(dictionaryCount).putInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            Member member = written[i];
+            directory.putShort((short) encodedNames[i].length).put(encodedNames[i]);
+            directory.putLong(member.offset).putLong(member.compressedLength).putInt(member.originalLength);
+            directory.putInt(member.dictionary).putInt(member.crc);
+        }
+        directory.flip();
+        return directory;
+    }
+
+    /**
+     * Writes all of a buffer to the archive.
+     *
+     * @param out      the archive
+     * @param buffer   the bytes to write
+     * @param position the offset to write at
+     * @return the offset after the bytes written
+     * @throws IOException if the archive cannot be written
+     */
+    private static long writeFully(FileChannel out, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += out.write(buffer, position);
+        }
+        return position;
+    }
+
+    /**
+     * A compressed member waiting to be written, then its entry in the central directory.
+     */
+    private static final class Member {
+        private ByteBuffer data;
+        private long offset;
+        private long compressedLength;
+        private int originalLength;
+        private int dictionary;
+        private int crc;
+    }
+}
@@ -0,0 +1,187 @@
+package Huffman;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+
+/**
+ * Runs block compression and decompression jobs in the background.
+ * <p>
+ * Each job returns a {@link CompletableFuture} that completes with the job's metrics, so callers can chain work
+ * onto it instead of waiting on a thread. Cancelling the future stops the job after the block it is working on.
+ * Progress is reported after every block.
+ * <p>
+ * Each job writes to a temporary file next to its output and moves it into place when it succeeds, so a job
+ * that fails or is cancelled leaves behind neither a partly written file nor changes to a file already there.
+ * <p>
+ * The number of encoder threads is chosen per job, so a server can give small jobs one thread and large jobs more.
+ */
+public class AsyncCodec {
+    private final ExecutorService executor;
+    private CompressionLevel level = CompressionLevel.DEFAULT;
+    private int blockSize = BlockEncoder.DEFAULT_BLOCK_SIZE;
+
+    /**
+     * Instantiates a new Async codec that starts a daemon thread for each running job.
+     */
+    public AsyncCodec() {
+        this(Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "huffman-job");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * Instantiates a new Async codec.
+     *
+     * @param executor runs the jobs, each job uses one of its threads while it runs
+     */
+    public AsyncCodec(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the compression level used by jobs started after this.
+     *
+     * @param level the compression level
+     */
+    public void setLevel(CompressionLevel level) {
+        this.level = level;
+    }
+
+    /**
+     * Sets the block size used by jobs started after this.
+     *
+     * @param blockSize the number of bytes in a block
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Starts compressing a file.
+     *
+     * @param input       the file to compress
+     * @param output      where the compressed file is written
+     * @param parallelism the most threads that encode blocks at once
+     * @param listener    told about the progress of the job, or null
+     * @return a future that completes with the metrics of the job
+     */
+    public CompletableFuture<CodecMetrics> compress(Path input, Path output, int parallelism, ProgressListener listener) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        PipelinedEncoder encoder = new PipelinedEncoder(blockSize, parallelism, PipelinedEncoder.DEFAULT_QUEUE_DEPTH);
+        encoder.setLevel(level);
+        return submit(output, (metrics, progress, target) -> {
+            encoder.setMetrics(metrics);
+            encoder.setProgressListener(progress);
+            encoder.compress(input, target);
+        }, listener);
+    }
+
+    /**
+     * Starts decompressing a file. Blocks are decoded in order on the job's thread.
+     *
+     * @param input    the compressed file
+     * @param output   where the decompressed file is written
+     * @param listener told about the progress of the job, or null
+     * @return a future that completes with the metrics of the job
+     */
+    public CompletableFuture<CodecMetrics> decompress(Path input, Path output, ProgressListener listener) {
+        return submit(output, (metrics, progress, target) -> {
+            long totalBytes = Files.size(input);
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(input));
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(target,
+                         StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))) {
+                BlockDecoder decoder = new BlockDecoder();
+                decoder.setMetrics(metrics);
+                // The decoder does not know the size of the file
+                decoder.setProgressListener(event -> progress.onProgress(
+                        new ProgressEvent(event.getStage(), event.getBytesProcessed(), totalBytes)));
+                decoder.decompress(in, out);
+            }
+        }, listener);
+    }
+
+    /**
+     * Stops taking new jobs, jobs already started carry on.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Runs a job on the executor.
+     *
+     * @param output   the file the job writes, only replaced if the job succeeds
+     * @param job      the job
+     * @param listener told about the progress of the job, or null
+     * @return a future that completes with the metrics of the job
+     */
+    private CompletableFuture<CodecMetrics> submit(Path output, Job job, ProgressListener listener) {
+        CompletableFuture<CodecMetrics> future = new CompletableFuture<>();
+        // Checked before every block so that cancelling the future stops the job
+        ProgressListener progress = event -> {
+            if (future.isCancelled()) {
+                throw new CancellationException();
+            }
+            if (listener != null) {
+                listener.onProgress(event);
+            }
+        };
+        executor.execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            CodecMetrics metrics = new CodecMetrics();
+            Path temporary = HuffmanCli.getTemporaryPath(output);
+            try {
+                job.run(metrics, progress, temporary);
+                HuffmanCli.replace(temporary, output);
+            } catch (Throwable e) {
+                // Deleted before the future completes so that whoever is waiting never sees it
+                deleteQuietly(temporary);
+                future.completeExceptionally(e);
+                return;
+            }
+            future.complete(metrics);
+        });
+        return future;
+    }
+
+    /**
+     * Deletes a job's temporary file if it is still there, ignoring any error since the job has already finished.
+     *
+     * @param file the file
+     */
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Nothing more can be done
+        }
+    }
+
+    /**
+     * The work done by a job.
+     */
+    @FunctionalInterface
+    private interface Job {
+        /**
+         * Runs the job.
+         *
+         * @param metrics  the metrics to record to
+         * @param progress told after every block
+         * @param target   the temporary file to write the output to
+         * @throws IOException if a file cannot be read or written
+         */
+        void run(CodecMetrics metrics, ProgressListener progress, Path target) throws IOException;
+    }
+}
@@ -0,0 +1,113 @@
+package Huffman;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads bits from a byte buffer, most significant bit first.
+ * <p>
+ * Up to 57 bits are kept in a long so that a code can be looked up without reading one bit at a time.
+ * Reading past the end of the data returns 0's.
+ */
+class BitReader {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private ByteBuffer data;
+    private int position;
+    private int limit;
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+    private boolean bigEndian = true;
+
+    /**
+     * Instantiates a new Bit reader with nothing to read, use {@link #reset(ByteBuffer, int, int)} to give it data.
+     */
+    BitReader() {
+        this(EMPTY, 0, 0);
+    }
+
+    /**
+     * Instantiates a new Bit reader.
+     *
+     * @param data   the data to read, which may be a direct buffer
+     * @param offset the index of the first byte
+     * @param length the number of bytes that can be read
+     */
+    BitReader(ByteBuffer data, int offset, int length) {
+        reset(data, offset, length);
+    }
+
+    /**
+     * Starts reading new data so that the same reader can be used for every block.
+     *
+     * @param data   the data to read, which may be a direct buffer
+     * @param offset the index of the first byte
+     * @param length the number of bytes that can be read
+     */
+    void reset(ByteBuffer data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.limit = offset + length;
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+        this.bigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+    }
+
+    /**
+     * Looks at the next bits without consuming them.
+     *
+     * @param length the number of bits (at most 32)
+     * @return the bits
+     */
+    int peek(int length) {
+        if (bitCount < length) {
+            refill();
+        }
+        return (int) (bitBuffer >>> (bitCount - length)) & (int) ((1L << length) - 1);
+    }
+
+    /**
+     * Consumes bits that have already been looked at with {@link #peek(int)}.
+     *
+     * @param length the number of bits
+     */
+    void skip(int length) {
+        bitCount -= length;
+    }
+
+    /**
+     * Reads the next bits.
+     *
+     * @param length the number of bits (at most 32)
+     * @return the bits
+     */
+    int read(int length) {
+        int bits = peek(length);
+        skip(length);
+        return bits;
+    }
+
+    /**
+     * Tops up the bit buffer, reading 8 bytes at once unless it is near the end of the data.
+     */
+    private void refill() {
+        if (limit - position >= 8) {
+            long word = data.getLong(position);
+            if (!bigEndian) {
+                word = Long.reverseBytes(word);
+            }
+            // Take as many whole bytes as fit, the rest are read again next time
+            int bytes = (63 - bitCount) >>> 3;
+            bitBuffer = (bitBuffer << (bytes << 3)) | (word >>> (64 - (bytes << 3)));
+            bitCount += bytes << 3;
+            position += bytes;
+            return;
+        }
+        while (bitCount <= 56) {
+            int nextByte = position < limit ? data.get(position) & 0xff : 0;
+            position++;
+            bitBuffer = (bitBuffer << 8) | nextByte;
+            bitCount += 8;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package Huffman;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Packs Huffman codes into bytes, most significant bit first.
+ * <p>
+ * Codes are collected in a 64-bit buffer and stored 4 bytes at a time once 32 bits are ready, so a block of
+ * short codes is written with one store for every few symbols instead of one per byte.
+ * <p>
+ * By default the bytes are kept in a heap buffer that grows as needed so that the same writer can be used
+ * for every block. The writer can also write straight into a caller's buffer (which may be a direct buffer),
+ * in which case it throws {@link BufferOverflowException} instead of growing.
+ */
+class BitWriter {
+    private ByteBuffer ownBuffer;
+    private ByteBuffer buffer;
+    private int position = 0;
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+    private boolean bigEndian = true;
+
+    /**
+     * Instantiates a new Bit writer.
+     *
+     * @param initialCapacity the initial size of the buffer in bytes
+     */
+    BitWriter(int initialCapacity) {
+        ownBuffer = ByteBuffer.allocate(Math.max(16, initialCapacity));
+        buffer = ownBuffer;
+    }
+
+    /**
+     * Writes the lowest bits of a code.
+     *
+     * @param code   the code
+     * @param length how many bits of the code to write (at most 32)
+     */
+    void write(int code, int length) {
+        // Fewer than 32 bits are ever left waiting, so adding up to 32 more still fits in the long
+        bitBuffer = (bitBuffer << length) | (code & ((1L << length) - 1));
+        bitCount += length;
+        if (bitCount >= 32) {
+            bitCount -= 32;
+            if (buffer.limit() - position < 4) {
+                grow();
+            }
+            int word = (int) (bitBuffer >>> bitCount);
+            buffer.putInt(position, bigEndian ? word : Integer.reverseBytes(word));
+            position += 4;
+        }
+    }
+
+    /**
+     * Writes any bits that are left over, padding the last byte with 0's.
+     */
+    void flush() {
+        if (bitCount % 8 != 0) {
+            int padding = 8 - bitCount % 8;
+            bitBuffer <<= padding;
+            bitCount += padding;
+        }
+        while (bitCount > 0) {
+            bitCount -= 8;
+            if (position == buffer.limit()) {
+                grow();
+            }
+            buffer.put(position++, (byte) (bitBuffer >>> bitCount));
+        }
+    }
+
+    /**
+     * Empties the writer so that it can be used again.
+     */
+    void reset() {
+        reset(0);
+    }
+
+    /**
+     * Empties the writer, leaving space at the start of its own buffer (for a header).
+     *
+     * @param start the index to start writing bits at
+     */
+    void reset(int start) {
+        buffer = ownBuffer;
+        ensureCapacity(start);
+        position = start;
+        bitBuffer = 0;
+        bitCount = 0;
+        bigEndian = true;
+    }
+
+    /**
+     * Empties the writer and writes into the given buffer instead of its own.
+     *
+     * @param target the buffer to write to, its limit is the most that can be written
+     * @param start  the index to start writing bits at
+     */
+    void reset(ByteBuffer target, int start) {
+        buffer = target;
+        position = start;
+        bitBuffer = 0;
+        bitCount = 0;
+        bigEndian = target.order() == ByteOrder.BIG_ENDIAN;
+    }
+
+    /**
+     * Makes sure the writer's own buffer can hold at least the given number of bytes without growing.
+     *
+     * @param capacity the number of bytes
+     */
+    void ensureCapacity(int capacity) {
+        if (ownBuffer.capacity() < capacity) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, ownBuffer.capacity() * 2));
+            larger.put(ownBuffer.array(), 0, ownBuffer.capacity());
+            if (buffer == ownBuffer) {
+                buffer = larger;
+            }
+            ownBuffer = larger;
+        }
+    }
+
+    /**
+     * Makes the buffer bigger when it is full.
+     */
+    private void grow() {
+        if (buffer != ownBuffer) {
+            throw new BufferOverflowException();
+        }
+        ensureCapacity(ownBuffer.capacity() * 2);
+    }
+
+    /**
+     * Gets the buffer holding the written bytes.
+     *
+     * @return the buffer
+     */
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Gets the index after the last byte written, including any space left by {@link #reset(int)}.
+     * Bits are only sure to have been written once {@link #flush()} has been called.
+     *
+     * @return the number of bytes
+     */
+    int size() {
+        return position;
+    }
+}
@@ -0,0 +1,208 @@
+package Huffman;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Adds data to the end of a block compressed file without decoding or recompressing what is already there.
+ * <p>
+ * Every block in the format says how long it is and whether it brings its own code table, so new blocks can be
+ * written over the old end marker and the file stays readable by {@link BlockDecoder}. After the end marker the
+ * appender keeps a {@link BlockIndex} footer saying where the end is and where the last code table is, and adds
+ * the new blocks to the list of blocks in the index's entries file, so an append reads and writes only its own
+ * data and never walks or rewrites what came before. Files written by {@link BlockEncoder} have no index, they
+ * are scanned once by reading the block headers and get one on their first append.
+ * <p>
+ * By default the new data starts with the code table of the last block, and a new table is only written if
+ * the new data is different enough to pay for one, so appending a small record to a log costs about what
+ * compressing the record alone would, whatever the size of the file.
+ */
+public class BlockAppender {
+    private final BlockEncoder encoder;
+    private final int blockSize;
+    private boolean reuseTable = true;
+
+    /**
+     * Instantiates a new Block appender that writes blocks of {@link BlockEncoder#DEFAULT_BLOCK_SIZE} bytes.
+     */
+    public BlockAppender() {
+        this(BlockEncoder.DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Instantiates a new Block appender.
+     *
+     * @param blockSize the largest number of uncompressed bytes in each new block
+     */
+    public BlockAppender(int blockSize) {
+        this.encoder = new BlockEncoder(blockSize);
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Sets the compression level of the new blocks.
+     *
+     * @param level the compression level
+     */
+    public void setLevel(CompressionLevel level) {
+        encoder.setLevel(level);
+    }
+
+    /**
+     * Sets whether the new blocks may use the code table of the last block in the file.
+     * If not, the first new Huffman coded block always carries its own table.
+     *
+     * @param reuseTable true to reuse the last code table
+     */
+    public void setReuseTable(boolean reuseTable) {
+        this.reuseTable = reuseTable;
+    }
+
+    /**
+     * Gets the metrics the new blocks are recorded in.
+     *
+     * @return the metrics
+     */
+    public CodecMetrics getMetrics() {
+        return encoder.getMetrics();
+    }
+
+    /**
+     * Sets the metrics the new blocks are recorded in.
+     *
+     * @param metrics the metrics
+     */
+    public void setMetrics(CodecMetrics metrics) {
+        encoder.setMetrics(metrics);
+    }
+
+    /**
+     * Compresses the remaining bytes of a buffer onto the end of a file, moving the buffer's position past them.
+     *
+     * @param file the compressed file, created if it does not exist
+     * @param data the uncompressed data
+     * @return the number of compressed bytes added to the file, not counting the index
+     * @throws IOException if the file cannot be read or written, or is not a block compressed file
+     */
+    public long append(Path file, ByteBuffer data) throws IOException {
+        try (FileChannel channel = open(file)) {
+            BlockIndex index = loadIndex(channel, file);
+            long appendStart = index.getEndOffset();
+            byte firstByte = BlockFormat.END;
+            for (int offset = data.position(); offset < data.limit(); offset += blockSize) {
+                int length = Math.min(blockSize, data.limit() - offset);
+                byte type = writeBlock(channel, index, appendStart, data, offset, length);
+                if (offset == data.position()) {
+                    firstByte = type;
+                }
+            }
+            data.position(data.limit());
+            index.write(channel, file, appendStart, firstByte);
+            return index.getEndOffset() - appendStart;
+        }
+    }
+
+    /**
+     * Compresses everything in an input stream onto the end of a file.
+     *
+     * @param file the compressed file, created if it does not exist
+     * @param in   the uncompressed data
+     * @return the number of compressed bytes added to the file, not counting the index
+     * @throws IOException if the input or the file cannot be read, the file cannot be written, or the file
+     *                     is not a block compressed file
+     */
+    public long append(Path file, InputStream in) throws IOException {
+        try (FileChannel channel = open(file)) {
+            BlockIndex index = loadIndex(channel, file);
+            long appendStart = index.getEndOffset();
+            byte firstByte = BlockFormat.END;
+            byte[] block = new byte[blockSize];
+            ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+            int length;
+            while ((length = BlockEncoder.readBlock(in, block, blockSize)) > 0) {
+                boolean first = index.getEndOffset() == appendStart;
+                byte type = writeBlock(channel, index, appendStart, blockBuffer, 0, length);
+                if (first) {
+                    firstByte = type;
+                }
+            }
+            index.write(channel, file, appendStart, firstByte);
+            return index.getEndOffset() - appendStart;
+        }
+    }
+
+    /**
+     * Opens a compressed file for appending, writing the file header if the file is new or empty.
+     *
+     * @param file the file
+     * @return the open file
+     * @throws IOException if the file cannot be opened
+     */
+    private static FileChannel open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(BlockFormat.FRAME_SIZE);
+                header.putInt(BlockFormat.MAGIC).put((byte) BlockFormat.END).flip();
+                BlockIndex.writeFully(channel, header, 0);
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the index of a file, or builds it from the block headers if the file has none,
+     * and gets the encoder ready to carry on from the last block.
+     *
+     * @param channel the file
+     * @param file    the path of the file
+     * @return the index
+     * @throws IOException if the file cannot be read or is not a block compressed file
+     */
+    private BlockIndex loadIndex(FileChannel channel, Path file) throws IOException {
+        BlockIndex index = BlockIndex.read(channel, file);
+        if (index == null) {
+            index = BlockIndex.scan(channel);
+        }
+
+        CodeTable lastTable = null;
+        if (reuseTable && index.getTableOffset() != BlockIndex.NO_TABLE) {
+            lastTable = new CodeTable();
+            lastTable.read(BlockIndex.readFully(channel, index.getTableOffset() + 5, CodeTable.HEADER_SIZE), 0);
+        }
+        encoder.continueStream(lastTable);
+        return index;
+    }
+
+    /**
+     * Compresses one block and writes it at the end of the file, except for its type byte if it is the first
+     * block of the append. That byte replaces the old end marker, so it is written last by {@link BlockIndex}.
+     *
+     * @param channel     the file
+     * @param index       the index, which the block is added to
+     * @param appendStart the offset of the first block of the append
+     * @param src         the buffer holding the uncompressed bytes
+     * @param offset      the index of the first byte of the block
+     * @param length      the number of bytes in the block
+     * @return the type byte of the block
+     * @throws IOException if the file cannot be written
+     */
+    private byte writeBlock(FileChannel channel, BlockIndex index, long appendStart, ByteBuffer src, int offset,
+                            int length) throws IOException {
+        int size = encoder.encodeFollowingBlock(src, offset, length);
+        ByteBuffer encoded = encoder.getEncodedBlock().duplicate();
+        byte type = encoded.get(0);
+        encoded.limit(size).position(index.getEndOffset() == appendStart ? 1 : 0);
+        BlockIndex.writeFully(channel, encoded, index.getEndOffset() + encoded.position());
+        index.add(type & BlockFormat.TABLE_MASK, length, size);
+        return type;
+    }
+}
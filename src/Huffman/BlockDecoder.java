@@ -0,0 +1,522 @@
+package Huffman;
+
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Decompresses data written by {@link BlockEncoder}.
+ * <p>
+ * The code table and buffers belong to a {@link DecoderContext}, so a decoder can be used
+ * for any number of jobs without allocating once it has warmed up.
+ */
+public class BlockDecoder {
+    private final DecoderContext context;
+    private CodecMetrics metrics = new CodecMetrics();
+    private ProgressListener progressListener = null;
+    private DecodeLimits limits = DecodeLimits.unlimited();
+
+    /**
+     * Instantiates a new Block decoder using the current thread's context.
+     */
+    public BlockDecoder() {
+        this(DecoderContext.local());
+    }
+
+    /**
+     * Instantiates a new Block decoder.
+     *
+     * @param context the buffers and tables to use
+     */
+    public BlockDecoder(DecoderContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Gets the metrics that this decoder records to.
+     *
+     * @return the metrics
+     */
+    public CodecMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics that this decoder records to, so several decoders can share one.
+     *
+     * @param metrics the metrics
+     */
+    public void setMetrics(CodecMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets the listener told each time a block has been decoded.
+     * <p>
+     * The events count compressed bytes read, the total is not known so it is -1.
+     *
+     * @param progressListener the listener, or null for none
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Checks whether a file starts like one written by {@link BlockEncoder}, to tell it apart from the text format.
+     *
+     * @param file the file
+     * @return true if the file starts with the block format's magic number
+     * @throws IOException if the file cannot be read
+     */
+    public static boolean isBlockCompressed(Path file) throws IOException {
+        byte[] magic = new byte[4];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read = 0;
+            int count;
+            while (read < magic.length && (count = in.read(magic, read, magic.length - read)) > 0) {
+                read += count;
+            }
+            return read == magic.length && BlockFormat.getInt(ByteBuffer.wrap(magic), 0) == BlockFormat.MAGIC;
+        }
+    }
+
+    /**
+     * Sets the limits that compressed data has to keep to, for decoding data from an untrusted source.
+     * Each block's header is checked before any space is allocated for the block.
+     *
+     * @param limits the limits, which are not copied
+     */
+    public void setLimits(DecodeLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Decompresses everything in the input stream and writes it to the output stream.
+     *
+     * @param in  the compressed data
+     * @param out where the uncompressed data is written
+     * @throws IOException if the data cannot be read or is not valid
+     */
+    public void decompress(InputStream in, OutputStream out) throws IOException {
+        context.reset();
+        byte[] header = context.getHeader();
+        ByteBuffer headerBuffer = context.getHeaderBuffer();
+        readFully(in, header, 4);
+        if (BlockFormat.getInt(headerBuffer, 0) != BlockFormat.MAGIC) {
+            throw new IOException("Not a block compressed file");
+        }
+        metrics.addBytesIn(BlockFormat.FRAME_SIZE);
+
+        int type;
+        long bytesRead = 4;
+        long bytesWritten = 0;
+        long start = metrics.start();
+        while ((type = in.read()) != BlockFormat.END) {
+            if (type == -1) {
+                throw new EOFException("Compressed data ended before the end marker");
+            }
+            boolean interleaved = (type & BlockFormat.FOUR_STREAMS) != 0;
+            type &= ~BlockFormat.FOUR_STREAMS;
+            readFully(in, header, 4);
+            int length = BlockFormat.getInt(headerBuffer, 0);
+            if (type == BlockFormat.NEW_TABLE) {
+                readFully(in, header, CodeTable.HEADER_SIZE);
+                start = metrics.record(CodecMetrics.Stage.IO, start);
+                readTable(headerBuffer, 0);
+                start = metrics.record(CodecMetrics.Stage.BUILD, start);
+            } else {
+                checkBlockType(type, interleaved);
+            }
+
+            readFully(in, header, 4);
+            int compressedLength = BlockFormat.getInt(headerBuffer, 0);
+            if (length < 0 || compressedLength < 0) {
+                throw new IOException("Negative block length");
+            }
+            int headerSize = BlockFormat.BLOCK_HEADER_SIZE + (type == BlockFormat.NEW_TABLE ? CodeTable.HEADER_SIZE : 0);
+            checkBlockLimits(length, compressedLength, bytesWritten, bytesRead + headerSize + compressedLength);
+            byte[] compressed = context.getCompressed(compressedLength);
+            readFully(in, compressed, compressedLength);
+            start = metrics.record(CodecMetrics.Stage.IO, start);
+
+            byte[] uncompressed = context.getUncompressed(length);
+            decodeBlock(type, interleaved, context.getCompressedBuffer(), 0, compressedLength, context.getUncompressedBuffer(), 0, length);
+            start = metrics.record(CodecMetrics.Stage.DECODE, start);
+
+            out.write(uncompressed, 0, length);
+            bytesWritten += length;
+            bytesRead += headerSize + compressedLength;
+            reportProgress(bytesRead);
+        }
+        reportProgress(bytesRead + 1);
+        out.flush();
+        metrics.record(CodecMetrics.Stage.IO, start);
+    }
+
+    /**
+     * Decompresses the compressed data starting at the position of src into dst.
+     * <p>
+     * Both buffers may be direct buffers, the bytes are read and written in place so nothing is copied
+     * onto the heap. A MemorySegment can be passed using its ByteBuffer view ({@code segment.asByteBuffer()}).
+     * The position of src is moved past the end marker and the position of dst past the bytes written.
+     *
+     * @param src the compressed data
+     * @param dst where the uncompressed data is written
+     * @return the number of bytes written to dst
+     * @throws IOException             if the data is not valid
+     * @throws BufferOverflowException if dst does not have enough space, in which case neither position is changed
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+        return decompress(src, dst, null);
+    }
+
+    /**
+     * Decompresses data written by {@link BlockEncoder#compress(ByteBuffer, ByteBuffer, CodeTable)}.
+     *
+     * @param src        the compressed data
+     * @param dst        where the uncompressed data is written
+     * @param dictionary the code table the encoder started with, or null for none
+     * @return the number of bytes written to dst
+     * @throws IOException             if the data is not valid
+     * @throws BufferOverflowException if dst does not have enough space, in which case neither position is changed
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst, CodeTable dictionary) throws IOException {
+        context.reset();
+        if (dictionary != null) {
+            context.getTable().copyFrom(dictionary);
+            context.setTableRead();
+        }
+        int offset = src.position();
+        int end = src.limit();
+        int dstStart = dst.position();
+        int dstOffset = dstStart;
+
+        checkAvailable(offset, 4, end);
+        if (BlockFormat.getInt(src, offset) != BlockFormat.MAGIC) {
+            throw new IOException("Not a block compressed file");
+        }
+        offset += 4;
+        metrics.addBytesIn(BlockFormat.FRAME_SIZE);
+
+        long start = metrics.start();
+        while (true) {
+            checkAvailable(offset, 1, end);
+            int type = src.get(offset++) & 0xff;
+            if (type == BlockFormat.END) {
+                break;
+            }
+            boolean interleaved = (type & BlockFormat.FOUR_STREAMS) != 0;
+            type &= ~BlockFormat.FOUR_STREAMS;
+            checkAvailable(offset, 4, end);
+            int length = BlockFormat.getInt(src, offset);
+            offset += 4;
+            if (type == BlockFormat.NEW_TABLE) {
+                checkAvailable(offset, CodeTable.HEADER_SIZE, end);
+                readTable(src, offset);
+                offset += CodeTable.HEADER_SIZE;
+                start = metrics.record(CodecMetrics.Stage.BUILD, start);
+            } else {
+                checkBlockType(type, interleaved);
+            }
+
+            checkAvailable(offset, 4, end);
+            int compressedLength = BlockFormat.getInt(src, offset);
+            offset += 4;
+            if (length < 0 || compressedLength < 0) {
+                throw new IOException("Negative block length");
+            }
+            checkBlockLimits(length, compressedLength, dstOffset - dstStart, offset + compressedLength - src.position());
+            checkAvailable(offset, compressedLength, end);
+            if (dst.limit() - dstOffset < length) {
+                throw new BufferOverflowException();
+            }
+            decodeBlock(type, interleaved, src, offset, compressedLength, dst, dstOffset, length);
+            start = metrics.record(CodecMetrics.Stage.DECODE, start);
+            offset += compressedLength;
+            dstOffset += length;
+            reportProgress(offset - src.position());
+        }
+        reportProgress(offset - src.position());
+
+        src.position(offset);
+        dst.position(dstOffset);
+        return dstOffset - dstStart;
+    }
+
+    /**
+     * Tells the progress listener, if there is one, that another block has been decoded.
+     *
+     * @param bytesRead the number of compressed bytes read so far
+     */
+    private void reportProgress(long bytesRead) {
+        if (progressListener != null) {
+            progressListener.onProgress(new ProgressEvent(CodecMetrics.Stage.DECODE, bytesRead, -1));
+        }
+    }
+
+    /**
+     * Reads a new code table and fills its decode table.
+     *
+     * @param src    the buffer holding the table
+     * @param offset the index of the table
+     * @throws IOException if the table is not valid
+     */
+    private void readTable(ByteBuffer src, int offset) throws IOException {
+        CodeTable table = context.getTable();
+        table.read(src, offset);
+        int symbols = 0;
+        int maxLength = 0;
+        for (int symbol = 0; symbol < CodeTable.ALPHABET_SIZE; symbol++) {
+            if (table.getLength(symbol) > 0) {
+                symbols++;
+                maxLength = Math.max(maxLength, table.getLength(symbol));
+            }
+        }
+        limits.checkAlphabetSize(symbols);
+        limits.checkCodeLength(maxLength);
+        table.getDecodeTable();
+        context.setTableRead();
+        metrics.addBytesIn(CodeTable.HEADER_SIZE);
+    }
+
+    /**
+     * Checks the lengths in a block header before any space is allocated for the block.
+     *
+     * @param length           the number of uncompressed bytes in the block
+     * @param compressedLength the number of compressed bytes in the block
+     * @param bytesWritten     the number of bytes decompressed before the block
+     * @param bytesRead        the number of compressed bytes up to the end of the block
+     * @throws IOException if the block is longer than any block could be, or breaks the limits
+     */
+    private void checkBlockLimits(int length, int compressedLength, long bytesWritten, long bytesRead) throws IOException {
+        // However a block is coded it never takes more than 2 bytes for each byte, plus the jump table and padding
+        if (compressedLength > 2L * length + BlockFormat.JUMP_TABLE_SIZE + BlockFormat.STREAM_COUNT) {
+            throw new IOException("Block has " + compressedLength + " compressed bytes for " + length + " bytes");
+        }
+        limits.checkOutput(bytesWritten + length, bytesRead);
+    }
+
+    /**
+     * Checks that a block without a code table is a known type, and that a block using the table of an earlier
+     * block has one to use.
+     *
+     * @param type        the block type
+     * @param interleaved whether the block is marked as split into 4 bit streams
+     * @throws IOException if the type is unknown or there is no earlier table
+     */
+    private void checkBlockType(int type, boolean interleaved) throws IOException {
+        if (type == BlockFormat.SAME_TABLE) {
+            if (!context.hasTable()) {
+                throw new IOException("Block uses a code table before one has been written");
+            }
+        } else if (type != BlockFormat.STORED && type != BlockFormat.RLE && type != BlockFormat.SINGLE) {
+            throw new IOException("Unknown block type " + type);
+        } else if (interleaved) {
+            throw new IOException("Block type " + type + " cannot be split into streams");
+        }
+    }
+
+    /**
+     * Checks that the compressed data has not been cut short.
+     *
+     * @param offset the index of the next byte needed
+     * @param length the number of bytes needed
+     * @param end    the index after the last byte of compressed data
+     * @throws IOException if there are not enough bytes
+     */
+    private static void checkAvailable(int offset, int length, int end) throws IOException {
+        if (end - offset < length) {
+            throw new EOFException("Compressed data ended in the middle of a block");
+        }
+    }
+
+    /**
+     * Decodes one block.
+     *
+     * @param type             the block type
+     * @param interleaved      whether the block is split into 4 bit streams
+     * @param src              the buffer holding the compressed bytes
+     * @param offset           the index of the first compressed byte
+     * @param compressedLength the number of compressed bytes
+     * @param dst              the buffer the decoded bytes are written to
+     * @param dstOffset        the index to write the first decoded byte at
+     * @param length           the number of bytes to decode
+     * @throws IOException if the compressed data is not valid
+     */
+    private void decodeBlock(int type, boolean interleaved, ByteBuffer src, int offset, int compressedLength,
+                             ByteBuffer dst, int dstOffset, int length) throws IOException {
+        if (type == BlockFormat.STORED) {
+            if (compressedLength != length) {
+                throw new IOException("Stored block has " + compressedLength + " bytes instead of " + length);
+            }
+            BlockEncoder.copyBytes(src, offset, dst, dstOffset, length);
+        } else if (type == BlockFormat.SINGLE) {
+            if (compressedLength != 1) {
+                throw new IOException("Single byte block has " + compressedLength + " bytes");
+            }
+            byte value = src.get(offset);
+            for (int i = 0; i < length; i++) {
+                dst.put(dstOffset + i, value);
+            }
+        } else if (type == BlockFormat.RLE) {
+            decodeRuns(src, offset, compressedLength, dst, dstOffset, length);
+        } else if (interleaved) {
+            decodeStreams(src, offset, compressedLength, dst, dstOffset, length);
+        } else {
+            BitReader reader = context.getBitReader();
+            reader.reset(src, offset, compressedLength);
+            decodeSymbols(reader, dst, dstOffset, length);
+        }
+        metrics.addBytesIn(BlockFormat.BLOCK_HEADER_SIZE + compressedLength);
+        metrics.addBytesOut(length);
+    }
+
+    /**
+     * Decodes a run length encoded block.
+     *
+     * @param src              the buffer holding the compressed bytes
+     * @param offset           the index of the first compressed byte
+     * @param compressedLength the number of compressed bytes
+     * @param dst              the buffer the decoded bytes are written to
+     * @param dstOffset        the index to write the first decoded byte at
+     * @param length           the number of bytes to decode
+     * @throws IOException if the runs do not add up to the length of the block
+     */
+    private static void decodeRuns(ByteBuffer src, int offset, int compressedLength, ByteBuffer dst, int dstOffset, int length) throws IOException {
+        int end = offset + compressedLength;
+        int written = 0;
+        while (offset < end) {
+            byte value = src.get(offset++);
+            // Read the varint holding the length of the run
+            int run = 0;
+            int shift = 0;
+            int next;
+            do {
+                if (offset == end || shift > 28) {
+                    throw new IOException("Invalid run length");
+                }
+                next = src.get(offset++);
+                run |= (next & 0x7f) << shift;
+                shift += 7;
+            } while ((next & 0x80) != 0);
+            if (run <= 0 || run > length - written) {
+                throw new IOException("Runs do not add up to the length of the block");
+            }
+            for (int i = 0; i < run; i++) {
+                dst.put(dstOffset + written + i, value);
+            }
+            written += run;
+        }
+        if (written != length) {
+            throw new IOException("Runs do not add up to the length of the block");
+        }
+    }
+
+    /**
+     * Decodes a block from a single bit stream.
+     * <p>
+     * Each lookup uses the next {@link CodeTable#MAX_CODE_LENGTH} bits to find the symbol and the
+     * length of its code in one step instead of walking down a tree.
+     *
+     * @param reader    the bit reader positioned at the start of the stream
+     * @param dst       the buffer the decoded bytes are written to
+     * @param dstOffset the index to write the first decoded byte at
+     * @param length    the number of bytes to decode
+     * @throws IOException if the data contains a code that is not in the table
+     */
+    private void decodeSymbols(BitReader reader, ByteBuffer dst, int dstOffset, int length) throws IOException {
+        int[] decodeTable = context.getTable().getDecodeTable();
+        for (int i = 0; i < length; i++) {
+            int entry = decodeTable[reader.peek(CodeTable.MAX_CODE_LENGTH)];
+            int codeLength = entry & 0xff;
+            if (codeLength == 0) {
+                throw new IOException("Invalid code in compressed data");
+            }
+            reader.skip(codeLength);
+            dst.put(dstOffset + i, (byte) (entry >>> 8));
+        }
+    }
+
+    /**
+     * Decodes a block that is split into 4 bit streams.
+     * <p>
+     * Each round of the loop decodes one symbol from every stream. The 4 lookups do not depend on each other,
+     * so the CPU can overlap them instead of waiting for one code's length before it can find the next.
+     *
+     * @param src              the buffer holding the compressed bytes
+     * @param offset           the index of the jump table
+     * @param compressedLength the number of compressed bytes, including the jump table
+     * @param dst              the buffer the decoded bytes are written to
+     * @param dstOffset        the index to write the first decoded byte at
+     * @param length           the number of bytes to decode
+     * @throws IOException if the jump table or data is not valid
+     */
+    private void decodeStreams(ByteBuffer src, int offset, int compressedLength, ByteBuffer dst, int dstOffset, int length) throws IOException {
+        if (compressedLength < BlockFormat.JUMP_TABLE_SIZE) {
+            throw new IOException("Block is too short for its jump table");
+        }
+        BitReader[] readers = context.getStreamReaders();
+        int streamStart = offset + BlockFormat.JUMP_TABLE_SIZE;
+        int remaining = compressedLength - BlockFormat.JUMP_TABLE_SIZE;
+        for (int stream = 0; stream < BlockFormat.STREAM_COUNT - 1; stream++) {
+            int streamSize = BlockFormat.getInt(src, offset + 4 * stream);
+            if (streamSize < 0 || streamSize > remaining) {
+                throw new IOException("Invalid stream size " + streamSize);
+            }
+            readers[stream].reset(src, streamStart, streamSize);
+            streamStart += streamSize;
+            remaining -= streamSize;
+        }
+        readers[BlockFormat.STREAM_COUNT - 1].reset(src, streamStart, remaining);
+
+        int[] decodeTable = context.getTable().getDecodeTable();
+        BitReader reader0 = readers[0];
+        BitReader reader1 = readers[1];
+        BitReader reader2 = readers[2];
+        BitReader reader3 = readers[3];
+        int rounds = length & ~3;
+        for (int i = 0; i < rounds; i += 4) {
+            int entry0 = decodeTable[reader0.peek(CodeTable.MAX_CODE_LENGTH)];
+            int entry1 = decodeTable[reader1.peek(CodeTable.MAX_CODE_LENGTH)];
+            int entry2 = decodeTable[reader2.peek(CodeTable.MAX_CODE_LENGTH)];
+            int entry3 = decodeTable[reader3.peek(CodeTable.MAX_CODE_LENGTH)];
+            // A code length of 0 marks bits that are not the start of any code
+            if ((entry0 & 0xff) == 0 || (entry1 & 0xff) == 0 || (entry2 & 0xff) == 0 || (entry3 & 0xff) == 0) {
+                throw new IOException("Invalid code in compressed data");
+            }
+            reader0.skip(entry0 & 0xff);
+            reader1.skip(entry1 & 0xff);
+            reader2.skip(entry2 & 0xff);
+            reader3.skip(entry3 & 0xff);
+            dst.put(dstOffset + i, (byte) (entry0 >>> 8));
+            dst.put(dstOffset + i + 1, (byte) (entry1 >>> 8));
+            dst.put(dstOffset + i + 2, (byte) (entry2 >>> 8));
+            dst.put(dstOffset + i + 3, (byte) (entry3 >>> 8));
+        }
+        // The last few symbols go to the first streams
+        for (int i = rounds; i < length; i++) {
+            decodeSymbols(readers[i - rounds], dst, dstOffset + i, 1);
+        }
+    }
+
+    /**
+     * Reads exactly the given number of bytes.
+     *
+     * @param in     the input
+     * @param buffer where the bytes are read to
+     * @param length the number of bytes
+     * @throws IOException if the input ends first
+     */
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = in.read(buffer, read, length - read);
+            if (count == -1) {
+                throw new EOFException("Compressed data ended in the middle of a block");
+            }
+            read += count;
+        }
+    }
+}
@@ -0,0 +1,636 @@
+package Huffman;
+
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Compresses a stream of bytes in fixed size blocks.
+ * <p>
+ * Each block is stored in whichever way the {@link CompressionLevel} expects to be smallest: Huffman coded,
+ * run length encoded, as a single repeated byte, or as it is when nothing makes it smaller.
+ * <p>
+ * A new code table is only written when the symbol frequencies have drifted far enough from the ones
+ * the current table was built for that a new table saves more bits than it costs to store.
+ * Otherwise the block is marked as using the same table as the block before it.
+ * <p>
+ * The histogram, code table and buffers belong to an {@link EncoderContext}, so an encoder can be used
+ * for any number of jobs without allocating once it has warmed up.
+ */
+public class BlockEncoder {
+    /**
+     * The default number of bytes in a block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 17;
+
+    static final byte[] MAGIC_BYTES = {'H', 'U', 'F', 'B'};
+
+    private final int blockSize;
+    private final EncoderContext context;
+    private CodecMetrics metrics = new CodecMetrics();
+    private boolean interleaved = false;
+    private CompressionLevel level = CompressionLevel.DEFAULT;
+
+    /**
+     * Instantiates a new Block encoder using the default block size and the current thread's context.
+     */
+    public BlockEncoder() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Instantiates a new Block encoder using the current thread's context.
+     *
+     * @param blockSize the number of bytes in a block
+     */
+    public BlockEncoder(int blockSize) {
+        this(blockSize, EncoderContext.local());
+    }
+
+    /**
+     * Instantiates a new Block encoder.
+     *
+     * @param blockSize the number of bytes in a block
+     * @param context   the buffers and tables to use
+     */
+    public BlockEncoder(int blockSize, EncoderContext context) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.context = context;
+    }
+
+    /**
+     * Gets the metrics that this encoder records to.
+     *
+     * @return the metrics
+     */
+    public CodecMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics that this encoder records to, so several encoders can share one.
+     *
+     * @param metrics the metrics
+     */
+    public void setMetrics(CodecMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets whether blocks are split into 4 interleaved bit streams.
+     * <p>
+     * Each stream can be decoded independently, so the decoder advances 4 bit readers in one loop and
+     * the CPU can work on several lookups at once instead of waiting for each code to finish.
+     * Costs {@link BlockFormat#JUMP_TABLE_SIZE} bytes per block plus up to 3 bytes of padding.
+     *
+     * @param interleaved true to write 4 streams per block
+     */
+    public void setInterleaved(boolean interleaved) {
+        this.interleaved = interleaved;
+    }
+
+    /**
+     * Gets how much work is done choosing how to store each block.
+     *
+     * @return the compression level
+     */
+    public CompressionLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets how much work is done choosing how to store each block.
+     *
+     * @param level the compression level
+     */
+    public void setLevel(CompressionLevel level) {
+        this.level = level;
+    }
+
+    /**
+     * Compresses everything in the input stream and writes it to the output stream.
+     *
+     * @param in  the uncompressed data
+     * @param out where the compressed data is written
+     * @throws IOException a possible io exception
+     */
+    public void compress(InputStream in, OutputStream out) throws IOException {
+        context.reset();
+        out.write(MAGIC_BYTES);
+
+        byte[] block = context.getBlock(blockSize);
+        BitWriter bitWriter = context.getBitWriter();
+        int length;
+        long start = metrics.start();
+        while ((length = readBlock(in, block, blockSize)) > 0) {
+            metrics.record(CodecMetrics.Stage.IO, start);
+            int size = encodeBlock(context.getBlockBuffer(), 0, length, null, 0);
+
+            start = metrics.start();
+            out.write(bitWriter.getBuffer().array(), 0, size);
+        }
+
+        out.write(BlockFormat.END);
+        out.flush();
+        metrics.record(CodecMetrics.Stage.IO, start);
+        metrics.addBytesOut(BlockFormat.FRAME_SIZE);
+    }
+
+    /**
+     * Compresses the remaining bytes of src into dst.
+     * <p>
+     * Both buffers may be direct buffers, the bytes are read and written in place so nothing is copied
+     * onto the heap. A MemorySegment can be passed using its ByteBuffer view ({@code segment.asByteBuffer()}).
+     * The positions of both buffers are moved past the bytes read and written.
+     *
+     * @param src the uncompressed data
+     * @param dst where the compressed data is written, {@link #maxCompressedLength(int)} bytes is always enough
+     * @return the number of bytes written to dst
+     * @throws BufferOverflowException if dst does not have enough space, in which case neither position is changed
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst) {
+        return compress(src, dst, null);
+    }
+
+    /**
+     * Compresses the remaining bytes of src into dst, starting with a code table that the decoder already has.
+     * <p>
+     * Blocks that the dictionary suits are written as {@link BlockFormat#SAME_TABLE} blocks, so data that is
+     * too small to be worth its own code table can still be Huffman coded. The same dictionary must be given to
+     * {@link BlockDecoder#decompress(ByteBuffer, ByteBuffer, CodeTable)}.
+     *
+     * @param src        the uncompressed data
+     * @param dst        where the compressed data is written, {@link #maxCompressedLength(int)} bytes is always enough
+     * @param dictionary the code table to start with, or null for none
+     * @return the number of bytes written to dst
+     * @throws BufferOverflowException if dst does not have enough space, in which case neither position is changed
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst, CodeTable dictionary) {
+        continueStream(dictionary);
+        int offset = src.position();
+        int end = src.limit();
+        int dstStart = dst.position();
+        if (dst.remaining() < BlockFormat.FRAME_SIZE) {
+            throw new BufferOverflowException();
+        }
+        BlockFormat.putInt(dst, dstStart, BlockFormat.MAGIC);
+        int dstOffset = dstStart + 4;
+
+        while (offset < end) {
+            int length = Math.min(blockSize, end - offset);
+            dstOffset += encodeBlock(src, offset, length, dst, dstOffset);
+            offset += length;
+        }
+
+        if (dstOffset == dst.limit()) {
+            throw new BufferOverflowException();
+        }
+        dst.put(dstOffset++, (byte) BlockFormat.END);
+        metrics.addBytesOut(BlockFormat.FRAME_SIZE);
+
+        src.position(end);
+        dst.position(dstOffset);
+        return dstOffset - dstStart;
+    }
+
+    /**
+     * Starts encoding blocks that follow on from blocks already written, as if the given table had been written last.
+     *
+     * @param lastTable the code table the decoder will have when it reaches the next block, or null for none
+     */
+    void continueStream(CodeTable lastTable) {
+        context.reset();
+        if (lastTable != null) {
+            context.getTable().copyFrom(lastTable);
+            context.setTableBuilt(0);
+        }
+    }
+
+    /**
+     * Compresses one block into the encoder's own buffer, using the code table of the block before it if that suits.
+     * <p>
+     * The block is written at the start of {@link #getEncodedBlock()}, for callers that lay out the blocks themselves.
+     *
+     * @param src    the buffer holding the uncompressed bytes
+     * @param offset the index of the first byte of the block
+     * @param length the number of bytes in the block, at most the block size
+     * @return the number of bytes in the compressed block
+     */
+    int encodeFollowingBlock(ByteBuffer src, int offset, int length) {
+        // Sizes the bit writer's own buffer for a whole block
+        context.getBlock(blockSize);
+        return encodeBlock(src, offset, length, null, 0);
+    }
+
+    /**
+     * Gets the buffer that {@link #encodeFollowingBlock(ByteBuffer, int, int)} writes to.
+     *
+     * @return the buffer
+     */
+    ByteBuffer getEncodedBlock() {
+        return context.getBitWriter().getBuffer();
+    }
+
+    /**
+     * Compresses one block that carries its own code table, so it can be decoded without the blocks before it.
+     * <p>
+     * This lets blocks be compressed on different threads and written in order afterwards.
+     *
+     * @param src       the buffer holding the uncompressed bytes
+     * @param offset    the index of the first byte of the block
+     * @param length    the number of bytes in the block, at most the block size
+     * @param dst       the buffer to write the block to, {@link #maxCompressedLength(int)} is always enough
+     * @param dstOffset the index in dst to write the block at
+     * @return the number of bytes in the compressed block
+     * @throws BufferOverflowException if dst does not have enough space
+     */
+    int encodeIndependentBlock(ByteBuffer src, int offset, int length, ByteBuffer dst, int dstOffset) {
+        // Forget the previous table so a new one is always written
+        context.reset();
+        return encodeBlock(src, offset, length, dst, dstOffset);
+    }
+
+    /**
+     * Works out the largest number of bytes that {@link #compress(ByteBuffer, ByteBuffer)} can write.
+     *
+     * @param length the number of uncompressed bytes
+     * @return the most bytes the compressed data can take
+     */
+    public int maxCompressedLength(int length) {
+        return maxCompressedLength(length, blockSize);
+    }
+
+    /**
+     * Works out the largest number of bytes that compressing the given number of bytes can take.
+     *
+     * @param length    the number of uncompressed bytes
+     * @param blockSize the number of bytes in a block
+     * @return the most bytes the compressed data can take
+     */
+    static int maxCompressedLength(int length, int blockSize) {
+        long blocks = (length + (long) blockSize - 1) / blockSize;
+        long bound = BlockFormat.FRAME_SIZE
+                + blocks * (BlockFormat.BLOCK_HEADER_SIZE + CodeTable.HEADER_SIZE
+                + BlockFormat.JUMP_TABLE_SIZE + BlockFormat.STREAM_COUNT)
+                + ((long) length * CodeTable.MAX_CODE_LENGTH + 7) / 8;
+        if (bound > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Input too large for a single buffer: " + length);
+        }
+        return (int) bound;
+    }
+
+    /**
+     * Compresses one block.
+     * <p>
+     * The block header is written into the space left before the compressed bytes, so the whole
+     * block is in one piece when this returns.
+     *
+     * @param src       the buffer holding the uncompressed bytes
+     * @param offset    the index of the first byte of the block
+     * @param length    the number of bytes in the block
+     * @param dst       the buffer to write the block to, or null to use the bit writer's own buffer
+     * @param dstOffset the index in dst to write the block at (0 if dst is null)
+     * @return the number of bytes in the compressed block
+     */
+    private int encodeBlock(ByteBuffer src, int offset, int length, ByteBuffer dst, int dstOffset) {
+        int[] histogram = context.getHistogram();
+        BitWriter bitWriter = context.getBitWriter();
+
+        // Count how often each byte appears in the block
+        long start = metrics.start();
+        Arrays.fill(histogram, 0);
+        ByteHistogram.add(src, offset, length, histogram, context.getHistogramLanes());
+        double entropy = CodeTable.entropyBits(histogram);
+        start = metrics.record(CodecMetrics.Stage.COUNT, start);
+
+        int type = chooseBlockType(src, offset, length, entropy);
+        if (type == BlockFormat.NEW_TABLE) {
+            if (level == CompressionLevel.BEST) {
+                // Already built while choosing
+                context.useCandidateTable();
+            } else {
+                context.getTable().build(histogram);
+            }
+            // How many bits per byte the new table uses over the entropy of the block it was built for
+            context.setTableBuilt((context.getTable().cost(histogram) - entropy) / length);
+        }
+        start = metrics.record(CodecMetrics.Stage.BUILD, start);
+        if (type != BlockFormat.NEW_TABLE && type != BlockFormat.SAME_TABLE) {
+            return encodeUncodedBlock(type, src, offset, length, dst, dstOffset, entropy, start);
+        }
+        boolean newTable = type == BlockFormat.NEW_TABLE;
+        CodeTable table = context.getTable();
+
+        // Encode the block with the chosen table after the space for the header
+        int headerSize = BlockFormat.BLOCK_HEADER_SIZE + (newTable ? CodeTable.HEADER_SIZE : 0);
+        int base = dst == null ? 0 : dstOffset;
+        int payloadStart = headerSize + (interleaved ? BlockFormat.JUMP_TABLE_SIZE : 0);
+        if (dst != null && dst.limit() - dstOffset < payloadStart) {
+            throw new BufferOverflowException();
+        }
+        int[] streamSizes = context.getStreamSizes();
+        if (interleaved) {
+            // Each stream starts where the one before it finished
+            int streamStart = base + payloadStart;
+            for (int stream = 0; stream < BlockFormat.STREAM_COUNT; stream++) {
+                startWriter(bitWriter, dst, streamStart);
+                encodeSymbols(src, offset + stream, length - stream, BlockFormat.STREAM_COUNT, table, bitWriter);
+                streamSizes[stream] = bitWriter.size() - streamStart;
+                streamStart = bitWriter.size();
+            }
+        } else {
+            startWriter(bitWriter, dst, base + payloadStart);
+            encodeSymbols(src, offset, length, 1, table, bitWriter);
+        }
+        metrics.record(CodecMetrics.Stage.ENCODE, start);
+        metrics.addBytesIn(length);
+        metrics.addSymbols(length, table.cost(histogram));
+        metrics.addEntropy(entropy);
+
+        // Fill in the header
+        ByteBuffer buffer = bitWriter.getBuffer();
+        int size = bitWriter.size() - base;
+        buffer.put(base, (byte) (interleaved ? type | BlockFormat.FOUR_STREAMS : type));
+        BlockFormat.putInt(buffer, base + 1, length);
+        if (newTable) {
+            table.write(buffer, base + 5);
+        }
+        BlockFormat.putInt(buffer, base + headerSize - 4, size - headerSize);
+        if (interleaved) {
+            for (int stream = 0; stream < BlockFormat.STREAM_COUNT - 1; stream++) {
+                BlockFormat.putInt(buffer, base + headerSize + 4 * stream, streamSizes[stream]);
+            }
+        }
+        metrics.addBytesOut(size);
+        return size;
+    }
+
+    /**
+     * Chooses how to store a block, using the histogram in the context.
+     * <p>
+     * The sizes compared leave out the block header, which is the same for every type except for the code table.
+     *
+     * @param src     the buffer holding the uncompressed bytes
+     * @param offset  the index of the first byte of the block
+     * @param length  the number of bytes in the block
+     * @param entropy the entropy of the block in bits
+     * @return the block type
+     */
+    private int chooseBlockType(ByteBuffer src, int offset, int length, double entropy) {
+        int[] histogram = context.getHistogram();
+        int distinct = 0;
+        for (int count : histogram) {
+            if (count > 0) {
+                distinct++;
+            }
+        }
+        if (distinct == 1) {
+            return BlockFormat.SINGLE;
+        }
+
+        int type;
+        long bestSize;
+        if (level == CompressionLevel.BEST) {
+            // Work out the exact size with a new table and with the current one
+            CodeTable candidate = context.getCandidateTable();
+            candidate.build(histogram);
+            long newSize = (candidate.cost(histogram) + 7) / 8 + CodeTable.HEADER_SIZE;
+            long currentBits = context.hasTable() ? context.getTable().cost(histogram) : Long.MAX_VALUE;
+            if (currentBits != Long.MAX_VALUE && (currentBits + 7) / 8 <= newSize) {
+                type = BlockFormat.SAME_TABLE;
+                bestSize = (currentBits + 7) / 8;
+            } else {
+                type = BlockFormat.NEW_TABLE;
+                bestSize = newSize;
+            }
+        } else {
+            // The entropy is close enough to what the Huffman code will take to decide with
+            type = needsNewTable(entropy, length) ? BlockFormat.NEW_TABLE : BlockFormat.SAME_TABLE;
+            bestSize = (long) Math.ceil(entropy / 8) + (type == BlockFormat.NEW_TABLE ? CodeTable.HEADER_SIZE : 0);
+        }
+        if (interleaved) {
+            bestSize += BlockFormat.JUMP_TABLE_SIZE + BlockFormat.STREAM_COUNT - 1;
+        }
+
+        // Storing is quicker to decode, so it wins a tie
+        if (length <= bestSize) {
+            type = BlockFormat.STORED;
+            bestSize = length;
+        }
+        if (level != CompressionLevel.FAST && runLengthSize(src, offset, length, bestSize) < bestSize) {
+            type = BlockFormat.RLE;
+        }
+        return type;
+    }
+
+    /**
+     * Works out how many bytes run length encoding a block takes.
+     *
+     * @param src    the buffer holding the uncompressed bytes
+     * @param offset the index of the first byte of the block
+     * @param length the number of bytes in the block
+     * @param limit  the size to beat, counting stops once it is reached
+     * @return the number of bytes, or limit if it is at least that
+     */
+    private static long runLengthSize(ByteBuffer src, int offset, int length, long limit) {
+        long size = 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end && size < limit) {
+            byte value = src.get(i);
+            int run = 1;
+            while (i + run < end && src.get(i + run) == value) {
+                run++;
+            }
+            size += 1 + BlockFormat.varIntSize(run);
+            i += run;
+        }
+        return Math.min(size, limit);
+    }
+
+    /**
+     * Writes a block that does not use a code table.
+     *
+     * @param type      {@link BlockFormat#STORED}, {@link BlockFormat#RLE} or {@link BlockFormat#SINGLE}
+     * @param src       the buffer holding the uncompressed bytes
+     * @param offset    the index of the first byte of the block
+     * @param length    the number of bytes in the block
+     * @param dst       the buffer to write the block to, or null to use the bit writer's own buffer
+     * @param dstOffset the index in dst to write the block at (0 if dst is null)
+     * @param entropy   the entropy of the block in bits
+     * @param start     when encoding started, from {@link CodecMetrics#start()}
+     * @return the number of bytes in the block
+     */
+    private int encodeUncodedBlock(int type, ByteBuffer src, int offset, int length, ByteBuffer dst, int dstOffset,
+                                   double entropy, long start) {
+        BitWriter bitWriter = context.getBitWriter();
+        int base = dst == null ? 0 : dstOffset;
+        int payloadStart = base + BlockFormat.BLOCK_HEADER_SIZE;
+        startWriter(bitWriter, dst, payloadStart);
+        ByteBuffer buffer = bitWriter.getBuffer();
+        // The payload is never bigger than the block, which the bit writer's own buffer always has room for
+        if (buffer.limit() - payloadStart < (type == BlockFormat.SINGLE ? 1 : length)) {
+            throw new BufferOverflowException();
+        }
+
+        int payloadLength;
+        if (type == BlockFormat.SINGLE) {
+            buffer.put(payloadStart, src.get(offset));
+            payloadLength = 1;
+        } else if (type == BlockFormat.RLE) {
+            int index = payloadStart;
+            int end = offset + length;
+            int i = offset;
+            while (i < end) {
+                byte value = src.get(i);
+                int run = 1;
+                while (i + run < end && src.get(i + run) == value) {
+                    run++;
+                }
+                buffer.put(index++, value);
+                index += BlockFormat.putVarInt(buffer, index, run);
+                i += run;
+            }
+            payloadLength = index - payloadStart;
+        } else {
+            copyBytes(src, offset, buffer, payloadStart, length);
+            payloadLength = length;
+        }
+        metrics.record(CodecMetrics.Stage.ENCODE, start);
+        metrics.addBytesIn(length);
+        metrics.addSymbols(length, payloadLength * 8L);
+        metrics.addEntropy(entropy);
+
+        buffer.put(base, (byte) type);
+        BlockFormat.putInt(buffer, base + 1, length);
+        BlockFormat.putInt(buffer, base + 5, payloadLength);
+        int size = BlockFormat.BLOCK_HEADER_SIZE + payloadLength;
+        metrics.addBytesOut(size);
+        return size;
+    }
+
+    /**
+     * Copies bytes between buffers without moving their positions.
+     *
+     * @param src       the buffer to copy from
+     * @param offset    the index of the first byte to copy
+     * @param dst       the buffer to copy to
+     * @param dstOffset the index to copy the first byte to
+     * @param length    the number of bytes
+     */
+    static void copyBytes(ByteBuffer src, int offset, ByteBuffer dst, int dstOffset, int length) {
+        if (src.hasArray() && dst.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + offset, dst.array(), dst.arrayOffset() + dstOffset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                dst.put(dstOffset + i, src.get(offset + i));
+            }
+        }
+    }
+
+    /**
+     * Points the bit writer at the next place to write to.
+     *
+     * @param bitWriter the bit writer
+     * @param dst       the buffer to write to, or null for the bit writer's own buffer
+     * @param index     the index to start writing at
+     */
+    private static void startWriter(BitWriter bitWriter, ByteBuffer dst, int index) {
+        if (dst == null) {
+            bitWriter.reset(index);
+        } else {
+            bitWriter.reset(dst, index);
+        }
+    }
+
+    /**
+     * Writes the codes for every step'th byte, padding the last byte with 0's.
+     * <p>
+     * Codes are at most {@link CodeTable#MAX_CODE_LENGTH} bits, so the codes for two bytes are joined and
+     * written together, halving the calls into the bit writer.
+     *
+     * @param src       the buffer holding the uncompressed bytes
+     * @param offset    the index of the first byte to encode
+     * @param length    the number of bytes from offset to the end of the block
+     * @param step      the distance between the bytes to encode
+     * @param table     the code table
+     * @param bitWriter where the codes are written
+     */
+    private static void encodeSymbols(ByteBuffer src, int offset, int length, int step, CodeTable table, BitWriter bitWriter) {
+        int i = 0;
+        if (src.hasArray()) {
+            byte[] array = src.array();
+            int arrayOffset = src.arrayOffset() + offset;
+            for (; i + step < length; i += 2 * step) {
+                int first = array[arrayOffset + i] & 0xff;
+                int second = array[arrayOffset + i + step] & 0xff;
+                int secondLength = table.getLength(second);
+                bitWriter.write((table.getCode(first) << secondLength) | table.getCode(second),
+                        table.getLength(first) + secondLength);
+            }
+        } else {
+            for (; i + step < length; i += 2 * step) {
+                int first = src.get(offset + i) & 0xff;
+                int second = src.get(offset + i + step) & 0xff;
+                int secondLength = table.getLength(second);
+                bitWriter.write((table.getCode(first) << secondLength) | table.getCode(second),
+                        table.getLength(first) + secondLength);
+            }
+        }
+        if (i < length) {
+            int symbol = src.get(offset + i) & 0xff;
+            bitWriter.write(table.getCode(symbol), table.getLength(symbol));
+        }
+        bitWriter.flush();
+    }
+
+    /**
+     * Decides if the block needs a new code table.
+     * <p>
+     * The cost of the current table is compared to an estimate of the optimal table, which is the entropy
+     * of the block plus the overhead the current table had over the entropy of the block it was built for.
+     * A new table is only built if the bits it could save are more than the size of the table.
+     *
+     * @param entropy the entropy of the block in bits
+     * @param length  the number of bytes in the block
+     * @return true if a new table should be written
+     */
+    private boolean needsNewTable(double entropy, int length) {
+        if (!context.hasTable()) {
+            return true;
+        }
+        long currentBits = context.getTable().cost(context.getHistogram());
+        if (currentBits == Long.MAX_VALUE) {
+            // The block has a byte that the current table cannot encode
+            return true;
+        }
+        double optimalBits = entropy + context.getTableRedundancy() * length;
+        double savings = currentBits - optimalBits;
+        return savings > CodeTable.HEADER_SIZE * 8;
+    }
+
+    /**
+     * Reads bytes from the input until the block is full or there is no more input.
+     *
+     * @param in        the input
+     * @param block     the block to fill
+     * @param blockSize the number of bytes to read
+     * @return the number of bytes read
+     * @throws IOException a possible io exception
+     */
+    static int readBlock(InputStream in, byte[] block, int blockSize) throws IOException {
+        int length = 0;
+        while (length < blockSize) {
+            int read = in.read(block, length, blockSize - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,140 @@
+package Huffman;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Constants describing the layout of a block compressed file.
+ * <p>
+ * The file starts with {@link #MAGIC} and is followed by a list of blocks. Each block is:
+ * <pre>
+ * byte    block type
+ * int     number of uncompressed bytes in the block
+ * byte[]  the code table (only for {@link #NEW_TABLE} blocks)
+ * int     number of compressed bytes
+ * byte[]  the compressed bytes
+ * </pre>
+ * {@link #NEW_TABLE} and {@link #SAME_TABLE} blocks are Huffman coded. {@link #STORED}, {@link #RLE} and
+ * {@link #SINGLE} blocks do not use a code table, so the block after them still uses the last table written.
+ * If the block type has the {@link #FOUR_STREAMS} flag, the symbols are split between 4 bit streams
+ * (symbol i goes to stream i % 4) and the compressed bytes start with a jump table holding the sizes
+ * of the first 3 streams as ints. The 4th stream takes up the rest of the compressed bytes.
+ * <p>
+ * The list of blocks finishes with a single {@link #END} byte.
+ */
+final class BlockFormat {
+    /**
+     * The first 4 bytes of a block compressed file ("HUFB").
+     */
+    static final int MAGIC = 0x48554642;
+    /**
+     * The number of bytes taken by the magic number and the end marker.
+     */
+    static final int FRAME_SIZE = 5;
+    /**
+     * Marks the end of the blocks.
+     */
+    static final int END = 0;
+    /**
+     * The block is followed by a new code table.
+     */
+    static final int NEW_TABLE = 1;
+    /**
+     * The block uses the same code table as the block before it.
+     */
+    static final int SAME_TABLE = 2;
+    /**
+     * The compressed bytes are the uncompressed bytes as they are.
+     */
+    static final int STORED = 3;
+    /**
+     * The compressed bytes are runs, each a byte followed by how many times it repeats as a {@link #putVarInt varint}.
+     */
+    static final int RLE = 4;
+    /**
+     * Every byte in the block is the same, the compressed bytes are just that byte.
+     */
+    static final int SINGLE = 5;
+    /**
+     * The bits of the block type that say where the code table comes from.
+     */
+    static final int TABLE_MASK = 0x0f;
+    /**
+     * Flag set in the block type when the symbols are split between 4 bit streams.
+     */
+    static final int FOUR_STREAMS = 0x10;
+    /**
+     * The number of bit streams used by {@link #FOUR_STREAMS} blocks.
+     */
+    static final int STREAM_COUNT = 4;
+    /**
+     * The number of bytes in the jump table of a {@link #FOUR_STREAMS} block.
+     */
+    static final int JUMP_TABLE_SIZE = 4 * (STREAM_COUNT - 1);
+
+    /**
+     * The number of bytes in a block header, not counting the code table.
+     */
+    static final int BLOCK_HEADER_SIZE = 9;
+
+    private BlockFormat() {
+    }
+
+    /**
+     * Writes an int as 4 bytes, most significant byte first, whatever the byte order of the buffer.
+     *
+     * @param data   the buffer to write to
+     * @param offset the index to write at
+     * @param value  the int
+     */
+    static void putInt(ByteBuffer data, int offset, int value) {
+        data.put(offset, (byte) (value >>> 24));
+        data.put(offset + 1, (byte) (value >>> 16));
+        data.put(offset + 2, (byte) (value >>> 8));
+        data.put(offset + 3, (byte) value);
+    }
+
+    /**
+     * Writes a positive int using 7 bits per byte, lowest bits first, with the top bit set on every byte but the last.
+     *
+     * @param data   the buffer to write to
+     * @param offset the index to write at
+     * @param value  the int
+     * @return the number of bytes written
+     */
+    static int putVarInt(ByteBuffer data, int offset, int value) {
+        int start = offset;
+        while ((value & ~0x7f) != 0) {
+            data.put(offset++, (byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        data.put(offset++, (byte) value);
+        return offset - start;
+    }
+
+    /**
+     * Works out how many bytes {@link #putVarInt(ByteBuffer, int, int)} writes for an int.
+     *
+     * @param value the int
+     * @return the number of bytes
+     */
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Reads an int written by {@link #putInt(ByteBuffer, int, int)}.
+     *
+     * @param data   the buffer to read from
+     * @param offset the index to read at
+     * @return the int
+     */
+    static int getInt(ByteBuffer data, int offset) {
+        return ((data.get(offset) & 0xff) << 24) | ((data.get(offset + 1) & 0xff) << 16)
+                | ((data.get(offset + 2) & 0xff) << 8) | (data.get(offset + 3) & 0xff);
+    }
+}
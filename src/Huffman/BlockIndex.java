@@ -0,0 +1,412 @@
+package Huffman;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The list of blocks in a block compressed file, kept so that data can be appended.
+ * <p>
+ * A footer comes straight after the {@link BlockFormat#END} byte and holds what an append needs to carry on:
+ * <pre>
+ * long    the offset of the end marker
+ * long    the offset of the first block written by the last append
+ * long    number of uncompressed bytes in the file
+ * long    the offset of the {@link BlockFormat#NEW_TABLE} block the next block would use, or -1 if there is none
+ * int     number of blocks
+ * int     {@link #MAGIC}
+ * </pre>
+ * The entry of each block is kept in a file beside it, named by {@link #getEntriesFile}, so an append only has
+ * to add the entries of its own blocks to the end of that file instead of writing every entry again:
+ * <pre>
+ * int     {@link #MAGIC}
+ * then for each block:
+ * long    the offset of the block
+ * long    the offset of its first uncompressed byte
+ * long    the offset of the {@link BlockFormat#NEW_TABLE} block holding its code table, or -1 if it has none
+ * </pre>
+ * The entries file may hold entries past the number of blocks in the footer, left by an append that did not
+ * finish, and these are ignored. If it is missing or does not match the compressed file, the entries are built
+ * again by reading the block headers.
+ * <p>
+ * Decoders stop at the end marker, so a file with an index is read like any other block compressed file.
+ * All numbers are big-endian.
+ */
+final class BlockIndex {
+    /**
+     * The last 4 bytes of a file with an index and the first 4 bytes of its entries file ("HUFI").
+     */
+    static final int MAGIC = 0x48554649;
+    /**
+     * The number of bytes in the footer.
+     */
+    static final int FOOTER_SIZE = 40;
+    /**
+     * The number of bytes in each block's entry.
+     */
+    static final int ENTRY_SIZE = 24;
+    /**
+     * The table offset of blocks that are not Huffman coded.
+     */
+    static final long NO_TABLE = -1;
+
+    private long[] entries = new long[3 * 16];
+    // The number of the first block in entries, the blocks before it are already in the entries file
+    private int firstEntry = 0;
+    private int blockCount = 0;
+    private long endOffset = 4;
+    private long rawLength = 0;
+    private long tableOffset = NO_TABLE;
+
+    /**
+     * Gets the number of blocks.
+     *
+     * @return the number of blocks
+     */
+    int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * Gets the number of the first block whose entry this index holds.
+     * An index read to append to holds only the blocks added since, the others are only in the entries file.
+     *
+     * @return the number of the block
+     */
+    int getFirstEntry() {
+        return firstEntry;
+    }
+
+    /**
+     * Gets the offset of the end marker, where the next block goes.
+     *
+     * @return the offset
+     */
+    long getEndOffset() {
+        return endOffset;
+    }
+
+    /**
+     * Gets the number of uncompressed bytes in the file.
+     *
+     * @return the number of bytes
+     */
+    long getRawLength() {
+        return rawLength;
+    }
+
+    /**
+     * Gets the offset of the {@link BlockFormat#NEW_TABLE} block whose table the next block would use.
+     *
+     * @return the offset, or {@link #NO_TABLE} if no table has been written
+     */
+    long getTableOffset() {
+        return tableOffset;
+    }
+
+    /**
+     * Gets the offset of a block.
+     *
+     * @param block the number of the block, from {@link #getFirstEntry()}
+     * @return the offset
+     */
+    long getBlockOffset(int block) {
+        return entries[3 * (block - firstEntry)];
+    }
+
+    /**
+     * Gets the offset of a block's first byte once uncompressed.
+     *
+     * @param block the number of the block, from {@link #getFirstEntry()}
+     * @return the offset
+     */
+    long getRawOffset(int block) {
+        return entries[3 * (block - firstEntry) + 1];
+    }
+
+    /**
+     * Gets the offset of the {@link BlockFormat#NEW_TABLE} block holding the code table a block is decoded with.
+     *
+     * @param block the number of the block, from {@link #getFirstEntry()}
+     * @return the offset, or {@link #NO_TABLE} if the block is not Huffman coded
+     */
+    long getBlockTableOffset(int block) {
+        return entries[3 * (block - firstEntry) + 2];
+    }
+
+    /**
+     * Adds the block written at the end offset, moving the end offset past it.
+     *
+     * @param type      the type of the block, without the {@link BlockFormat#FOUR_STREAMS} flag
+     * @param length    the number of uncompressed bytes in the block
+     * @param blockSize the number of bytes the block takes in the file
+     */
+    void add(int type, int length, long blockSize) {
+        if (type == BlockFormat.NEW_TABLE) {
+            tableOffset = endOffset;
+        }
+        boolean coded = type == BlockFormat.NEW_TABLE || type == BlockFormat.SAME_TABLE;
+        int entry = 3 * (blockCount - firstEntry);
+        if (entry == entries.length) {
+            entries = Arrays.copyOf(entries, entries.length * 2);
+        }
+        entries[entry] = endOffset;
+        entries[entry + 1] = rawLength;
+        entries[entry + 2] = coded ? tableOffset : NO_TABLE;
+        blockCount++;
+        endOffset += blockSize;
+        rawLength += length;
+    }
+
+    /**
+     * Gets the file the entries of a compressed file's blocks are kept in, which is its name followed by ".idx".
+     *
+     * @param file the compressed file
+     * @return the entries file
+     */
+    static Path getEntriesFile(Path file) {
+        return file.resolveSibling(file.getFileName() + ".idx");
+    }
+
+    /**
+     * Adds the entries this index holds to the entries file, then writes the end marker and the footer at the
+     * end offset and cuts off anything after them.
+     * <p>
+     * Everything is written and forced to disk before the first byte of the first appended block replaces
+     * the old end marker. Until that last byte is written the file still ends where it did before, so an
+     * append that is interrupted leaves the old data readable.
+     *
+     * @param channel     the file
+     * @param file        the path of the file, to find its entries file
+     * @param appendStart the offset of the first block written by this append
+     * @param firstByte   the byte to write at appendStart once everything else is on disk
+     * @throws IOException if the file or its entries file cannot be written
+     */
+    void write(FileChannel channel, Path file, long appendStart, byte firstByte) throws IOException {
+        try (FileChannel entriesChannel = FileChannel.open(getEntriesFile(file), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer added = ByteBuffer.allocate(4 + (blockCount - firstEntry) * ENTRY_SIZE);
+            added.putInt(MAGIC);
+            for (int entry = 0; entry < 3 * (blockCount - firstEntry); entry++) {
+                added.putLong(entries[entry]);
+            }
+            added.flip();
+            // The entries before the first one held are already in the file, after its magic number
+            long position = 0;
+            if (firstEntry > 0) {
+                added.position(4);
+                position = 4 + (long) firstEntry * ENTRY_SIZE;
+            }
+            long end = position + added.remaining();
+            writeFully(entriesChannel, added, position);
+            entriesChannel.truncate(end);
+        }
+
+        ByteBuffer footer = ByteBuffer.allocate(1 + FOOTER_SIZE);
+        footer.put((byte) BlockFormat.END);
+        footer.putLong(endOffset).putLong(appendStart).putLong(rawLength).putLong(tableOffset)
+                .putInt(blockCount).putInt(MAGIC);
+        footer.flip();
+        writeFully(channel, footer, endOffset);
+        channel.truncate(endOffset + footer.limit());
+        if (appendStart < endOffset) {
+            channel.force(false);
+            writeFully(channel, ByteBuffer.wrap(new byte[]{firstByte}), appendStart);
+        }
+    }
+
+    /**
+     * Reads the footer at the end of a file to append to it, holding none of the entries of its blocks.
+     *
+     * @param channel the file
+     * @param file    the path of the file, to find its entries file
+     * @return the index, or null if the file has no footer, its last append did not finish or its entries file
+     * does not match it
+     * @throws IOException if the file cannot be read
+     */
+    static BlockIndex read(FileChannel channel, Path file) throws IOException {
+        BlockIndex index = readFooter(channel);
+        if (index == null || !index.readEntries(channel, file, false)) {
+            return null;
+        }
+        index.firstEntry = index.blockCount;
+        return index;
+    }
+
+    /**
+     * Reads the entries of every block in a file, from its entries file if that matches it or from the block
+     * headers if not.
+     *
+     * @param file the file
+     * @return the index
+     * @throws IOException if the file cannot be read or is not a block compressed file
+     */
+    static BlockIndex readAll(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            BlockIndex index = readFooter(channel);
+            return index != null && index.readEntries(channel, file, true) ? index : scan(channel);
+        }
+    }
+
+    /**
+     * Reads the footer at the end of a file.
+     *
+     * @param channel the file
+     * @return the index without any entries, or null if the file has no footer or its last append did not finish
+     * @throws IOException if the file cannot be read
+     */
+    private static BlockIndex readFooter(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < 4 + 1 + FOOTER_SIZE) {
+            return null;
+        }
+        ByteBuffer footer = readFully(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+        long endOffset = footer.getLong(0);
+        long appendStart = footer.getLong(8);
+        BlockIndex index = new BlockIndex();
+        index.rawLength = footer.getLong(16);
+        index.tableOffset = footer.getLong(24);
+        index.blockCount = footer.getInt(32);
+        if (footer.getInt(36) != MAGIC || endOffset != size - FOOTER_SIZE - 1 || appendStart < 4
+                || appendStart > endOffset || index.rawLength < 0 || index.blockCount < 0
+                || index.tableOffset < NO_TABLE || index.tableOffset >= endOffset) {
+            return null;
+        }
+        if (readFully(channel, endOffset, 1).get(0) != BlockFormat.END) {
+            return null;
+        }
+        // The old end marker is only replaced once the rest of an append is on disk
+        if (appendStart < endOffset && readFully(channel, appendStart, 1).get(0) == BlockFormat.END) {
+            return null;
+        }
+        index.endOffset = endOffset;
+        return index;
+    }
+
+    /**
+     * Checks that the entries file of a file holds an entry for every block in the footer, and that the last one
+     * is the block before the end marker, optionally reading them all.
+     *
+     * @param channel the file
+     * @param file    the path of the file
+     * @param all     true to read every entry into this index
+     * @return true if the entries file matches the file
+     * @throws IOException if a file cannot be read
+     */
+    private boolean readEntries(FileChannel channel, Path file, boolean all) throws IOException {
+        Path entriesFile = getEntriesFile(file);
+        if (!Files.isRegularFile(entriesFile)) {
+            return false;
+        }
+        try (FileChannel entriesChannel = FileChannel.open(entriesFile, StandardOpenOption.READ)) {
+            if (entriesChannel.size() < 4 + (long) blockCount * ENTRY_SIZE
+                    || readFully(entriesChannel, 0, 4).getInt(0) != MAGIC) {
+                return false;
+            }
+            if (blockCount > 0) {
+                ByteBuffer last = readFully(entriesChannel, 4 + (long) (blockCount - 1) * ENTRY_SIZE, ENTRY_SIZE);
+                long offset = last.getLong(0);
+                if (offset < 4 || offset >= endOffset) {
+                    return false;
+                }
+                int type = readFully(channel, offset, 1).get(0) & BlockFormat.TABLE_MASK;
+                boolean coded = type == BlockFormat.NEW_TABLE || type == BlockFormat.SAME_TABLE;
+                if (offset + getBlockSize(channel, offset) != endOffset
+                        || last.getLong(8) + readFully(channel, offset + 1, 4).getInt(0) != rawLength
+                        || last.getLong(16) != (coded ? tableOffset : NO_TABLE)) {
+                    return false;
+                }
+            }
+            if (all) {
+                ByteBuffer data = readFully(entriesChannel, 4, blockCount * ENTRY_SIZE);
+                entries = new long[3 * Math.max(16, blockCount)];
+                for (int entry = 0; entry < 3 * blockCount; entry++) {
+                    entries[entry] = data.getLong();
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Builds the index of a file by reading the header of every block, without decoding any of them.
+     *
+     * @param channel the file
+     * @return the index
+     * @throws IOException if the file cannot be read or is not a block compressed file
+     */
+    static BlockIndex scan(FileChannel channel) throws IOException {
+        if (readFully(channel, 0, 4).getInt(0) != BlockFormat.MAGIC) {
+            throw new IOException("Not a block compressed file");
+        }
+        BlockIndex index = new BlockIndex();
+        while (true) {
+            byte type = readFully(channel, index.endOffset, 1).get(0);
+            if (type == BlockFormat.END) {
+                return index;
+            }
+            int length = readFully(channel, index.endOffset + 1, 4).getInt(0);
+            if (length < 0) {
+                throw new IOException("Negative block length");
+            }
+            index.add(type & BlockFormat.TABLE_MASK, length, getBlockSize(channel, index.endOffset));
+        }
+    }
+
+    /**
+     * Gets the number of bytes a block takes in a file from its header.
+     *
+     * @param channel the file
+     * @param offset  the offset of the block
+     * @return the number of bytes
+     * @throws IOException if the file cannot be read or the header is not valid
+     */
+    private static long getBlockSize(FileChannel channel, long offset) throws IOException {
+        int type = readFully(channel, offset, 1).get(0) & BlockFormat.TABLE_MASK;
+        int tableSize = type == BlockFormat.NEW_TABLE ? CodeTable.HEADER_SIZE : 0;
+        int compressedLength = readFully(channel, offset + 5 + tableSize, 4).getInt(0);
+        if (compressedLength < 0) {
+            throw new IOException("Negative block length");
+        }
+        return BlockFormat.BLOCK_HEADER_SIZE + tableSize + (long) compressedLength;
+    }
+
+    /**
+     * Reads bytes from a file, failing if the file ends first.
+     *
+     * @param channel  the file
+     * @param position the offset of the first byte
+     * @param length   the number of bytes
+     * @return a buffer holding the bytes
+     * @throws IOException if the file cannot be read or is too short
+     */
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Compressed data ended before the end marker");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Writes all of a buffer to a file.
+     *
+     * @param channel  the file
+     * @param buffer   the bytes
+     * @param position the offset to write at
+     * @throws IOException if the file cannot be written
+     */
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package Huffman;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Counts how often each byte appears, spreading the counts over several sub-histograms.
+ * <p>
+ * A plain counting loop stalls when the same byte appears several times in a row, because each increment
+ * has to wait for the store of the one before it to the same counter. Consecutive bytes are counted into
+ * {@link #LANES} separate sub-histograms instead, so neighbouring increments never touch the same counter
+ * and can run in parallel. The sub-histograms are added together at the end.
+ * <p>
+ * When the core jar is built with the Vector API (VECTOR=1 ./build-core.sh) and run with
+ * {@code --add-modules jdk.incubator.vector}, arrays are counted by {@code VectorByteHistogram}, which counts
+ * runs of one byte a whole vector at a time. It is found by name when this class loads, so the rest of the
+ * package still builds and runs on JDKs without the Vector API, and the scalar loop here is used instead.
+ */
+final class ByteHistogram {
+    /**
+     * The number of sub-histograms.
+     */
+    static final int LANES = 4;
+
+    /**
+     * A faster way of counting an array, used instead of the scalar loop when one can be loaded.
+     */
+    interface Kernel {
+        /**
+         * Adds the counts of part of an array to a histogram.
+         *
+         * @param data      the bytes
+         * @param offset    the index of the first byte
+         * @param length    the number of bytes
+         * @param histogram the histogram to add to
+         * @param lanes     scratch space from {@link ByteHistogram#newLanes()}, left zeroed
+         */
+        void add(byte[] data, int offset, int length, int[] histogram, int[][] lanes);
+    }
+
+    // The Vector API kernel, or null if it is not in the jar, its module was not added or the processor is too old
+    private static final Kernel KERNEL = loadKernel();
+
+    private ByteHistogram() {
+    }
+
+    /**
+     * Loads the Vector API kernel if it can be used.
+     *
+     * @return the kernel, or null to use the scalar loop
+     */
+    private static Kernel loadKernel() {
+        try {
+            return (Kernel) Class.forName("Huffman.VectorByteHistogram").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets whether arrays are counted with the Vector API.
+     *
+     * @return true if the Vector API kernel is used
+     */
+    static boolean isVectorized() {
+        return KERNEL != null;
+    }
+
+    /**
+     * Makes the scratch space for the sub-histograms, which can be reused for every call.
+     *
+     * @return zeroed sub-histograms
+     */
+    static int[][] newLanes() {
+        return new int[LANES][CodeTable.ALPHABET_SIZE];
+    }
+
+    /**
+     * Adds the counts of part of an array to a histogram.
+     *
+     * @param data      the bytes
+     * @param offset    the index of the first byte
+     * @param length    the number of bytes
+     * @param histogram the histogram to add to
+     * @param lanes     scratch space from {@link #newLanes()}, left zeroed
+     */
+    static void add(byte[] data, int offset, int length, int[] histogram, int[][] lanes) {
+        if (KERNEL != null) {
+            KERNEL.add(data, offset, length, histogram, lanes);
+            return;
+        }
+        addScalar(data, offset, length, histogram, lanes);
+    }
+
+    /**
+     * Adds the counts of part of an array to a histogram with the scalar loop, even if a kernel is loaded.
+     *
+     * @param data      the bytes
+     * @param offset    the index of the first byte
+     * @param length    the number of bytes
+     * @param histogram the histogram to add to
+     * @param lanes     scratch space from {@link #newLanes()}, left zeroed
+     */
+    static void addScalar(byte[] data, int offset, int length, int[] histogram, int[][] lanes) {
+        int[] lane0 = lanes[0];
+        int[] lane1 = lanes[1];
+        int[] lane2 = lanes[2];
+        int[] lane3 = lanes[3];
+        int end = offset + length;
+        int i = offset;
+        for (; i + LANES <= end; i += LANES) {
+            lane0[data[i] & 0xff]++;
+            lane1[data[i + 1] & 0xff]++;
+            lane2[data[i + 2] & 0xff]++;
+            lane3[data[i + 3] & 0xff]++;
+        }
+        for (; i < end; i++) {
+            histogram[data[i] & 0xff]++;
+        }
+        merge(histogram, lanes);
+    }
+
+    /**
+     * Adds the counts of part of a buffer to a histogram, without moving its position.
+     * <p>
+     * Direct buffers are read 8 bytes at a time. The order of the bytes does not matter when counting,
+     * so the byte order of the buffer is ignored.
+     *
+     * @param data      the bytes, which may be a direct buffer
+     * @param offset    the index of the first byte
+     * @param length    the number of bytes
+     * @param histogram the histogram to add to
+     * @param lanes     scratch space from {@link #newLanes()}, left zeroed
+     */
+    static void add(ByteBuffer data, int offset, int length, int[] histogram, int[][] lanes) {
+        if (data.hasArray()) {
+            add(data.array(), data.arrayOffset() + offset, length, histogram, lanes);
+            return;
+        }
+        int[] lane0 = lanes[0];
+        int[] lane1 = lanes[1];
+        int[] lane2 = lanes[2];
+        int[] lane3 = lanes[3];
+        int end = offset + length;
+        int i = offset;
+        for (; i + 8 <= end; i += 8) {
+            long word = data.getLong(i);
+            int low = (int) word;
+            int high = (int) (word >>> 32);
+            lane0[low & 0xff]++;
+            lane1[(low >>> 8) & 0xff]++;
+            lane2[(low >>> 16) & 0xff]++;
+            lane3[low >>> 24]++;
+            lane0[high & 0xff]++;
+            lane1[(high >>> 8) & 0xff]++;
+            lane2[(high >>> 16) & 0xff]++;
+            lane3[high >>> 24]++;
+        }
+        for (; i < end; i++) {
+            histogram[data.get(i) & 0xff]++;
+        }
+        merge(histogram, lanes);
+    }
+
+    /**
+     * Adds the sub-histograms to the histogram and zeroes them for the next call.
+     *
+     * @param histogram the histogram
+     * @param lanes     the sub-histograms
+     */
+    static void merge(int[] histogram, int[][] lanes) {
+        for (int[] lane : lanes) {
+            for (int symbol = 0; symbol < CodeTable.ALPHABET_SIZE; symbol++) {
+                histogram[symbol] += lane[symbol];
+            }
+            Arrays.fill(lane, 0);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package Huffman;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A canonical Huffman code for bytes.
+ * <p>
+ * Only the length of each code is stored in a compressed file. The codes are re-created by giving
+ * the symbols consecutive values in order of code length, so the encoder and decoder always agree.
+ */
+public class CodeTable {
+    /**
+     * The number of symbols in the alphabet.
+     */
+    public static final int ALPHABET_SIZE = 256;
+    /**
+     * The longest code allowed, which is also the number of bits used to look up a code when decoding.
+     */
+    public static final int MAX_CODE_LENGTH = 12;
+    /**
+     * The number of bytes used to store the table (each code length takes 4 bits).
+     */
+    public static final int HEADER_SIZE = ALPHABET_SIZE / 2;
+    /**
+     * The number of bytes {@link #writeSnapshot(ByteBuffer, int)} takes: a byte for each code length,
+     * a short for each code and an int for each entry of the decode table.
+     */
+    static final int SNAPSHOT_SIZE = ALPHABET_SIZE + 2 * ALPHABET_SIZE + 4 * (1 << MAX_CODE_LENGTH);
+
+    private final int[] lengths = new int[ALPHABET_SIZE];
+    private final int[] codes = new int[ALPHABET_SIZE];
+    private final int[] decodeTable = new int[1 << MAX_CODE_LENGTH];
+    private boolean decodeTableFilled = false;
+    private HuffmanTree.CodeLengthBuffers buffers = null;
+
+    /**
+     * Creates the optimal code for a histogram of byte frequencies.
+     *
+     * @param histogram how often each byte appears
+     * @return the code table
+     */
+    public static CodeTable fromHistogram(int[] histogram) {
+        CodeTable table = new CodeTable();
+        table.build(histogram);
+        return table;
+    }
+
+    /**
+     * Replaces this code with the optimal code for a histogram of byte frequencies.
+     * <p>
+     * The table keeps its arrays so rebuilding it does not allocate.
+     *
+     * @param histogram how often each byte appears
+     */
+    public void build(int[] histogram) {
+        if (buffers == null) {
+            buffers = new HuffmanTree.CodeLengthBuffers();
+        }
+        HuffmanTree.getCodeLengths(histogram, lengths, MAX_CODE_LENGTH, buffers);
+        assignCodes();
+    }
+
+    /**
+     * Replaces this code with a copy of another one.
+     *
+     * @param other the code table to copy
+     */
+    public void copyFrom(CodeTable other) {
+        System.arraycopy(other.lengths, 0, lengths, 0, ALPHABET_SIZE);
+        System.arraycopy(other.codes, 0, codes, 0, ALPHABET_SIZE);
+        // A decode table that is already filled is copied rather than filled again
+        decodeTableFilled = other.decodeTableFilled;
+        if (decodeTableFilled) {
+            System.arraycopy(other.decodeTable, 0, decodeTable, 0, decodeTable.length);
+        }
+    }
+
+    /**
+     * Replaces this code with one read from the bytes written by {@link #write(ByteBuffer, int)}.
+     *
+     * @param data   the buffer to read from
+     * @param offset the index of the first byte of the table
+     * @throws IOException if the code lengths do not form a valid code
+     */
+    public void read(ByteBuffer data, int offset) throws IOException {
+        for (int i = 0; i < ALPHABET_SIZE; i += 2) {
+            int packed = data.get(offset + i / 2) & 0xff;
+            lengths[i] = packed >>> 4;
+            lengths[i + 1] = packed & 0xf;
+        }
+        for (int length : lengths) {
+            if (length > MAX_CODE_LENGTH) {
+                throw new IOException("Code length " + length + " is longer than " + MAX_CODE_LENGTH);
+            }
+        }
+        if (!assignCodes()) {
+            throw new IOException("Code lengths do not form a valid prefix code");
+        }
+    }
+
+    /**
+     * Writes the code lengths, two to a byte, taking {@link #HEADER_SIZE} bytes.
+     *
+     * @param data   the buffer to write to
+     * @param offset the index to write the table at
+     */
+    public void write(ByteBuffer data, int offset) {
+        for (int i = 0; i < ALPHABET_SIZE; i += 2) {
+            data.put(offset + i / 2, (byte) ((lengths[i] << 4) | lengths[i + 1]));
+        }
+    }
+
+    /**
+     * Writes the code lengths, the codes and the filled decode table, taking {@link #SNAPSHOT_SIZE} bytes.
+     * <p>
+     * Unlike {@link #write(ByteBuffer, int)} nothing has to be worked out to read the table back,
+     * so a snapshot can be loaded with a few bulk copies.
+     *
+     * @param data   the buffer to write to
+     * @param offset the index to write the snapshot at
+     */
+    void writeSnapshot(ByteBuffer data, int offset) {
+        int[] decode = getDecodeTable();
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            data.put(offset + symbol, (byte) lengths[symbol]);
+            data.putShort(offset + ALPHABET_SIZE + 2 * symbol, (short) codes[symbol]);
+        }
+        int decodeOffset = offset + 3 * ALPHABET_SIZE;
+        for (int i = 0; i < decode.length; i++) {
+            data.putInt(decodeOffset + 4 * i, decode[i]);
+        }
+    }
+
+    /**
+     * Replaces this code with one written by {@link #writeSnapshot(ByteBuffer, int)}, including its decode table.
+     * <p>
+     * The snapshot is trusted to have been written by this class, only the code lengths are checked.
+     *
+     * @param data   the buffer to read from, which may be a mapped file
+     * @param offset the index of the first byte of the snapshot
+     * @throws IOException if a code length is too long
+     */
+    void readSnapshot(ByteBuffer data, int offset) throws IOException {
+        ByteBuffer snapshot = data.duplicate().order(data.order());
+        snapshot.position(offset);
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            lengths[symbol] = snapshot.get() & 0xff;
+            if (lengths[symbol] > MAX_CODE_LENGTH) {
+                throw new IOException("Code length " + lengths[symbol] + " is longer than " + MAX_CODE_LENGTH);
+            }
+        }
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            codes[symbol] = snapshot.getShort() & 0xffff;
+        }
+        snapshot.asIntBuffer().get(decodeTable);
+        decodeTableFilled = true;
+    }
+
+    /**
+     * Gives each symbol its canonical code.
+     * <p>
+     * Codes of the same length are consecutive and ordered by symbol, and each length starts
+     * where the previous length finished (shifted left by one).
+     *
+     * @return false if there are too many codes of some length for the code to be decodable
+     */
+    private boolean assignCodes() {
+        decodeTableFilled = false;
+        int code = 0;
+        int previousCount = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + previousCount) << 1;
+            // Codes of this length are handed out in order of symbol
+            int count = 0;
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                if (lengths[symbol] == length) {
+                    codes[symbol] = code + count++;
+                }
+            }
+            // More codes than there are bit patterns of this length
+            if (code + count > (1 << length)) {
+                return false;
+            }
+            previousCount = count;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the length of the code for a symbol.
+     *
+     * @param symbol the symbol
+     * @return the code length, 0 if the symbol has no code
+     */
+    public int getLength(int symbol) {
+        return lengths[symbol];
+    }
+
+    /**
+     * Gets the code for a symbol.
+     *
+     * @param symbol the symbol
+     * @return the code, stored in the lowest {@link #getLength(int)} bits
+     */
+    public int getCode(int symbol) {
+        return codes[symbol];
+    }
+
+    /**
+     * Checks that every symbol in the histogram has a code.
+     *
+     * @param histogram how often each byte appears
+     * @return true if the table can encode the data
+     */
+    public boolean covers(int[] histogram) {
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            if (histogram[symbol] > 0 && lengths[symbol] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Works out how many bits the data described by the histogram takes when encoded with this table.
+     *
+     * @param histogram how often each byte appears
+     * @return the number of bits, or Long.MAX_VALUE if a symbol has no code
+     */
+    public long cost(int[] histogram) {
+        long bits = 0;
+        for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+            if (histogram[symbol] > 0) {
+                if (lengths[symbol] == 0) {
+                    return Long.MAX_VALUE;
+                }
+                bits += (long) histogram[symbol] * lengths[symbol];
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Works out the Shannon entropy of the data described by the histogram.
+     * <p>
+     * This is the smallest number of bits any code could use, so it is used as a cheap estimate of the
+     * optimal code without having to build one.
+     *
+     * @param histogram how often each byte appears
+     * @return the entropy of the data in bits
+     */
+    public static double entropyBits(int[] histogram) {
+        long total = 0;
+        for (int frequency : histogram) {
+            total += frequency;
+        }
+        double bits = 0;
+        for (int frequency : histogram) {
+            if (frequency > 0) {
+                bits += frequency * (Math.log((double) total / frequency) / Math.log(2));
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Gets the decode table.
+     * <p>
+     * The table is indexed by the next {@link #MAX_CODE_LENGTH} bits of the data. Each entry holds the
+     * symbol in the upper bits and the length of its code in the lowest 8 bits, or 0 if no code starts with those bits.
+     *
+     * @return the decode table
+     */
+    int[] getDecodeTable() {
+        if (!decodeTableFilled) {
+            Arrays.fill(decodeTable, 0);
+            for (int symbol = 0; symbol < ALPHABET_SIZE; symbol++) {
+                int length = lengths[symbol];
+                if (length > 0) {
+                    // Every index that starts with the code maps to the symbol
+                    int shift = MAX_CODE_LENGTH - length;
+                    int start = codes[symbol] << shift;
+                    int entry = (symbol << 8) | length;
+                    Arrays.fill(decodeTable, start, start + (1 << shift), entry);
+                }
+            }
+            decodeTableFilled = true;
+        }
+        return decodeTable;
+    }
+}
@@ -0,0 +1,107 @@
+package Huffman;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Commits a Java Flight Recorder event for one stage of compression or decompression.
+ * <p>
+ * The jdk.jfr API only comes with JDK 11 and later, and the interface is still built with the JDKs before 11
+ * for their JavaFX, so nothing in the package refers to it directly. The event type, "Huffman.Stage", is made
+ * when this class is first used with jdk.jfr.EventFactory, found by reflection. On a JDK without it no events
+ * are committed.
+ * <p>
+ * Only committed when {@link CodecMetrics#setEmitEvents(boolean)} is set and a recording has the event enabled.
+ */
+final class CodecEvent {
+    // The jdk.jfr.EventFactory for the event type, or null if the JDK has no JFR
+    private static final Object FACTORY;
+    private static final Method NEW_EVENT;
+    private static final Method IS_ENABLED;
+    private static final Method SET;
+    private static final Method COMMIT;
+
+    static {
+        Object factory = null;
+        Method newEvent = null;
+        Method isEnabled = null;
+        Method set = null;
+        Method commit = null;
+        try {
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+            Constructor<?> newValue = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+            List<Object> annotations = Arrays.asList(
+                    newAnnotation.newInstance(annotation("jdk.jfr.Name"), "Huffman.Stage"),
+                    newAnnotation.newInstance(annotation("jdk.jfr.Label"), "Huffman Codec Stage"),
+                    newAnnotation.newInstance(annotation("jdk.jfr.Category"), new String[]{"Huffman"}),
+                    newAnnotation.newInstance(annotation("jdk.jfr.StackTrace"), false));
+            List<Object> fields = Arrays.asList(
+                    newValue.newInstance(String.class, "stage", Collections.singletonList(
+                            newAnnotation.newInstance(annotation("jdk.jfr.Label"), "Stage"))),
+                    newValue.newInstance(long.class, "nanos", Arrays.asList(
+                            newAnnotation.newInstance(annotation("jdk.jfr.Label"), "Stage Time"),
+                            newAnnotation.newInstance(annotation("jdk.jfr.Timespan"), "NANOSECONDS"))));
+
+            factory = eventFactory.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            newEvent = eventFactory.getMethod("newEvent");
+            isEnabled = event.getMethod("isEnabled");
+            set = event.getMethod("set", int.class, Object.class);
+            commit = event.getMethod("commit");
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // No JFR in this JDK, or it would not make the event type, so the events are left off
+            factory = null;
+        }
+        FACTORY = factory;
+        NEW_EVENT = newEvent;
+        IS_ENABLED = isEnabled;
+        SET = set;
+        COMMIT = commit;
+    }
+
+    private CodecEvent() {
+    }
+
+    /**
+     * Commits an event for a stage if the JDK has JFR and a recording wants it.
+     *
+     * @param stage      the stage
+     * @param startNanos when the stage started
+     * @param endNanos   when the stage finished
+     */
+    static void commit(CodecMetrics.Stage stage, long startNanos, long endNanos) {
+        if (FACTORY == null) {
+            return;
+        }
+        try {
+            Object event = NEW_EVENT.invoke(FACTORY);
+            if ((Boolean) IS_ENABLED.invoke(event)) {
+                SET.invoke(event, 0, stage.name());
+                SET.invoke(event, 1, endNanos - startNanos);
+                COMMIT.invoke(event);
+            }
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            // The event is only for profiling, so it is dropped rather than failing the codec
+        }
+    }
+
+    /**
+     * Loads one of the jdk.jfr annotations.
+     *
+     * @param name the name of the annotation
+     * @return the annotation type
+     * @throws ClassNotFoundException if the JDK does not have it
+     */
+    private static Class<? extends Annotation> annotation(String name) throws ClassNotFoundException {
+        return Class.forName(name).asSubclass(Annotation.class);
+    }
+}
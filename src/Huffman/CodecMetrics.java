@@ -0,0 +1,241 @@
+package Huffman;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the bytes processed and the time spent in each stage of compression or decompression.
+ * <p>
+ * The counters are {@link LongAdder}s so one object can be shared by several threads without contention.
+ * Times are taken with {@link System#nanoTime()} once per stage per block (or once per file for
+ * {@link Encoder} and {@link Decoder}), never per symbol.
+ * If {@link #setEmitEvents(boolean)} is set, each recorded stage is also committed as a {@link CodecEvent}
+ * so it shows up in a Java Flight Recorder recording, on JDKs that have JFR.
+ * <p>
+ * The codecs for the text format ({@link HuffmanTree}, {@link Encoder}, {@link Decoder} and {@link ParallelDecoder})
+ * only take metrics, so they report their progress to the listener set with {@link #setProgressListener(ProgressListener)}.
+ * They count characters while encoding and compressed bytes while decoding.
+ */
+public class CodecMetrics {
+    /**
+     * The stages of compression and decompression that are timed.
+     */
+    public enum Stage {
+        /**
+         * Counting how often each symbol appears.
+         */
+        COUNT,
+        /**
+         * Building the tree or code table.
+         */
+        BUILD,
+        /**
+         * Turning symbols into codes.
+         */
+        ENCODE,
+        /**
+         * Reading and writing files or streams.
+         */
+        IO,
+        /**
+         * Turning codes back into symbols.
+         */
+        DECODE
+    }
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder symbols = new LongAdder();
+    private final LongAdder encodedBits = new LongAdder();
+    private final DoubleAdder entropyBits = new DoubleAdder();
+    private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+    private volatile boolean emitEvents = false;
+    private volatile ProgressListener progressListener = null;
+
+    /**
+     * Instantiates new empty Codec metrics.
+     */
+    public CodecMetrics() {
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Sets whether each recorded stage is also committed as a JFR event.
+     *
+     * @param emitEvents true to emit JFR events
+     */
+    public void setEmitEvents(boolean emitEvents) {
+        this.emitEvents = emitEvents;
+    }
+
+    /**
+     * Sets the listener that the codecs for the text format report their progress to.
+     *
+     * @param progressListener the listener, or null for none
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Tells the progress listener, if there is one, which stage a job is in and how far it has got.
+     *
+     * @param stage          the stage the job is starting or is in
+     * @param bytesProcessed the amount of input finished with so far
+     * @param totalBytes     the amount of input in the whole job, or -1 if it is not known
+     */
+    void progress(Stage stage, long bytesProcessed, long totalBytes) {
+        ProgressListener listener = progressListener;
+        if (listener != null) {
+            listener.onProgress(new ProgressEvent(stage, bytesProcessed, totalBytes));
+        }
+    }
+
+    /**
+     * Gets the current time to pass to {@link #record(Stage, long)} at the end of a stage.
+     *
+     * @return the current time in nanoseconds
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Adds the time since startNanos to a stage.
+     *
+     * @param stage      the stage
+     * @param startNanos the time returned by {@link #start()} when the stage started
+     * @return the current time, so that the next stage can start from it
+     */
+    public long record(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        stageNanos[stage.ordinal()].add(now - startNanos);
+        if (emitEvents) {
+            CodecEvent.commit(stage, startNanos, now);
+        }
+        return now;
+    }
+
+    /**
+     * Adds to the number of bytes read by the codec.
+     *
+     * @param bytes the number of bytes
+     */
+    public void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    /**
+     * Adds to the number of bytes written by the codec.
+     *
+     * @param bytes the number of bytes
+     */
+    public void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /**
+     * Adds symbols that have been encoded.
+     *
+     * @param count the number of symbols
+     * @param bits  the number of bits used to encode them
+     */
+    public void addSymbols(long count, long bits) {
+        symbols.add(count);
+        encodedBits.add(bits);
+    }
+
+    /**
+     * Adds the entropy of symbols that have been counted.
+     *
+     * @param bits the entropy of the symbols in bits
+     */
+    public void addEntropy(double bits) {
+        entropyBits.add(bits);
+    }
+
+    /**
+     * Gets the number of bytes read by the codec.
+     *
+     * @return the bytes in
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * Gets the number of bytes written by the codec.
+     *
+     * @return the bytes out
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Gets the number of symbols encoded.
+     *
+     * @return the symbols
+     */
+    public long getSymbols() {
+        return symbols.sum();
+    }
+
+    /**
+     * Gets the time spent in a stage.
+     *
+     * @param stage the stage
+     * @return the time in nanoseconds
+     */
+    public long getNanos(Stage stage) {
+        return stageNanos[stage.ordinal()].sum();
+    }
+
+    /**
+     * Gets the average number of bits each symbol was encoded with.
+     *
+     * @return the bits per symbol, 0 if nothing has been encoded
+     */
+    public double getBitsPerSymbol() {
+        long count = symbols.sum();
+        return count == 0 ? 0 : (double) encodedBits.sum() / count;
+    }
+
+    /**
+     * Gets the entropy of the encoded symbols, the smallest possible bits per symbol.
+     *
+     * @return the entropy in bits per symbol, 0 if nothing has been encoded
+     */
+    public double getEntropyPerSymbol() {
+        long count = symbols.sum();
+        return count == 0 ? 0 : entropyBits.sum() / count;
+    }
+
+    /**
+     * Sets every counter back to 0.
+     */
+    public void reset() {
+        bytesIn.reset();
+        bytesOut.reset();
+        symbols.reset();
+        encodedBits.reset();
+        entropyBits.reset();
+        for (LongAdder nanos : stageNanos) {
+            nanos.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder summary = new StringBuilder();
+        summary.append("in=").append(getBytesIn()).append("B out=").append(getBytesOut()).append("B");
+        for (Stage stage : Stage.values()) {
+            summary.append(' ').append(stage.name().toLowerCase()).append('=')
+                    .append(getNanos(stage) / 1_000_000).append("ms");
+        }
+        summary.append(String.format(" bits/symbol=%.3f entropy=%.3f", getBitsPerSymbol(), getEntropyPerSymbol()));
+        return summary.toString();
+    }
+}
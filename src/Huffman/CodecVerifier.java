@@ -0,0 +1,846 @@
+package Huffman;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+/**
+ * Checks that every codec mode gives back exactly the bytes it was given, and that the encoders still write
+ * exactly the bytes they wrote when the golden corpus was made.
+ * <pre>
+ * java -cp build/huffman-core.jar Huffman.CodecVerifier fuzz [iterations] [seed]
+ * java -cp build/huffman-core.jar Huffman.CodecVerifier check [corpus]
+ * java -cp build/huffman-core.jar Huffman.CodecVerifier write [corpus]
+ * </pre>
+ * fuzz round trips random inputs through every mode, check compares the encoders and decoders with the corpus
+ * and write writes the corpus's expected outputs again. The jar is made by build-core.sh.
+ * <p>
+ * Fuzzing makes inputs that are likely to find mistakes: empty files, a single character, underscores, the '+'
+ * that joins pairs of characters, surrogate pairs, long runs and files big enough to be split between threads.
+ * Each input goes through the text format with and without pairs of characters and with the underscore a saved
+ * encoder adds, decoded by {@link Decoder} and by {@link ParallelDecoder} on several threads, which must agree
+ * byte for byte. Its bytes go through {@link BlockEncoder} at every level and block layout, as a stream and
+ * through heap and direct buffers, which must write the same file, then through every {@link BlockDecoder} path,
+ * {@link PipelinedEncoder} on one and several threads, {@link BlockAppender}, {@link RecordCodec}, a dictionary
+ * {@link CodeTable} before and after a trip through a {@link TableSnapshot}, {@link ArchiveWriter} and
+ * {@link ArchiveReader}, and {@link AsyncCodec}. Every decoder is also run with the default {@link DecodeLimits},
+ * which the inputs and the corpus keep to, so the limits cannot reject files they should not.
+ * Input i is made from seed + i, so a failure is repeated with {@code fuzz 1 <seed + i>}, and the input that
+ * failed, the text or the bytes, is also saved as fuzz-failure-&lt;seed&gt;.bin.
+ * <p>
+ * The corpus is a directory of inputs, *.txt for both formats and *.dat for the block format only, with the
+ * file each mode writes for them in its expected directory. Checking it catches a faster encoder that writes
+ * different bytes, and a decoder that can no longer read files written before it. After a deliberate change to
+ * a format, write the expected outputs again and commit them with the change.
+ * <p>
+ * Worker processes are slow to start, so {@link DistributedCompressor} is only checked once per corpus check,
+ * compressing all the corpus inputs joined together on two worker JVMs and one worker that never answers,
+ * whose shards must time out and go to the others. The file must decode to the joined inputs, and again after
+ * {@link BlockAppender} adds them once more. The exit status is 0 if everything matched, 1 if anything did
+ * not and 2 if the command line is wrong.
+ */
+public class CodecVerifier {
+    /**
+     * The corpus used when none is given.
+     */
+    static final String DEFAULT_CORPUS = "corpus";
+    /**
+     * The block size the corpus's block format files are written with, small so the inputs have several blocks.
+     */
+    static final int GOLDEN_BLOCK_SIZE = 4096;
+    // How long the distributed check waits for its silent worker before giving the shard to another
+    private static final int SILENT_WORKER_TIMEOUT = 3000;
+
+    private static final String USAGE = "Usage: CodecVerifier fuzz [iterations] [seed]\n"
+            + "       CodecVerifier check|write [corpus]";
+    // The text format modes and the block format modes, named by the extension of their expected output
+    private static final String[] TEXT_MODES = {"bin", "pairs.bin"};
+    private static final String[] BLOCK_MODES = {"fast.huf", "default.huf", "best.huf", "interleaved.huf"};
+    // Block sizes for fuzzing, from one byte per block to several blocks per thread
+    private static final int[] BLOCK_SIZES = {1, 100, GOLDEN_BLOCK_SIZE, 1 << 16};
+    private static final int[] DECODE_THREADS = {2, 3, 8};
+    // Characters that have caught out the text format, mixed into the random text
+    private static final int[] AWKWARD_CHARACTERS = {'_', '+', ' ', '0', '\n', '\r', '\t', 0,
+            '\u00e9', '\u00df', '\u03a9', '\u4e2d', 0xFFFD, 0x1F600, 0x20000, Character.MAX_CODE_POINT};
+    private static final String[] WORDS = ("the of and to in is that for it as was with be by on not he this are or "
+            + "his from at which but have an they you were her she there been one all we their has would when "
+            + "ERROR WARN INFO request id=42 user_name __init__ a+b 2024-01-01T00:00:00Z").split(" ");
+
+    private final Path workDirectory;
+    private long checks = 0;
+
+    /**
+     * Instantiates a new Codec verifier.
+     *
+     * @param workDirectory the directory the files of each check are written to
+     */
+    CodecVerifier(Path workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    /**
+     * Runs a command.
+     *
+     * @param args the command and its arguments
+     */
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs a command in a temporary work directory, which is deleted afterwards.
+     *
+     * @param args the command and its arguments
+     * @return the exit status
+     */
+    private static int run(String[] args) {
+        String command = args.length == 0 ? "" : args[0];
+        Path workDirectory = null;
+        try {
+            workDirectory = Files.createTempDirectory("huffman-verify");
+            CodecVerifier verifier = new CodecVerifier(workDirectory);
+            boolean passed;
+            switch (command) {
+                case "fuzz":
+                    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+                    long seed = args.length > 2 ? Long.parseLong(args[2]) : System.nanoTime();
+                    System.out.println("Fuzzing " + iterations + " inputs from seed " + seed);
+                    passed = verifier.fuzz(iterations, seed);
+                    break;
+                case "check":
+                    passed = verifier.checkCorpus(Paths.get(args.length > 1 ? args[1] : DEFAULT_CORPUS));
+                    break;
+                case "write":
+                    verifier.writeCorpus(Paths.get(args.length > 1 ? args[1] : DEFAULT_CORPUS));
+                    passed = true;
+                    break;
+                default:
+                    System.err.println(USAGE);
+                    return 2;
+            }
+            System.out.println((passed ? "Passed " : "Failed after ") + verifier.checks + " checks");
+            return passed ? 0 : 1;
+        } catch (NumberFormatException e) {
+            System.err.println("Bad number: " + e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        } catch (IOException e) {
+            System.err.println(command + " failed: " + e.getMessage());
+            return 1;
+        } finally {
+            deleteDirectory(workDirectory);
+        }
+    }
+
+    /**
+     * Round trips random inputs through every mode, stopping at the first that fails.
+     *
+     * @param iterations the number of inputs
+     * @param seed       the seed of the first input
+     * @return true if every input came back the same
+     * @throws IOException if a failing input cannot be saved
+     */
+    boolean fuzz(int iterations, long seed) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            Random random = new Random(seed + i);
+            String text = randomText(random);
+            byte[] bytes = random.nextInt(4) == 0 ? randomBytes(random) : text.getBytes(StandardCharsets.UTF_8);
+            // The text format is given the text and the block format the bytes, which may be random instead
+            byte[] verifying = text.getBytes(StandardCharsets.UTF_8);
+            try {
+                verifyText(text);
+                verifying = bytes;
+                // Tiny blocks only for small inputs, a megabyte of one byte blocks takes too long
+                int smallest = bytes.length > 100_000 ? 2 : 0;
+                verifyBlocks(bytes, BLOCK_SIZES[smallest + random.nextInt(BLOCK_SIZES.length - smallest)]);
+            } catch (IOException | RuntimeException e) {
+                Path saved = Paths.get("fuzz-failure-" + (seed + i) + ".bin");
+                Files.write(saved, verifying);
+                System.out.println("Input " + i + " (seed " + (seed + i) + ", " + text.length() + " characters, "
+                        + bytes.length + " bytes) failed: " + e);
+                System.out.println("The " + (verifying == bytes ? "bytes" : "text") + " that failed were saved as "
+                        + saved.toAbsolutePath());
+                return false;
+            }
+            if ((i + 1) % 100 == 0) {
+                System.out.println((i + 1) + " inputs passed");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares every mode with the expected outputs in the corpus.
+     *
+     * @param corpus the corpus directory
+     * @return true if every output matched and every expected output decoded to its input
+     * @throws IOException if the corpus cannot be read
+     */
+    boolean checkCorpus(Path corpus) throws IOException {
+        List<Path> inputs = getCorpusInputs(corpus);
+        if (inputs.isEmpty()) {
+            throw new IOException("No inputs in " + corpus.toAbsolutePath());
+        }
+        int failures = 0;
+        for (Path input : inputs) {
+            byte[] original = Files.readAllBytes(input);
+            for (String mode : getModes(input)) {
+                Path expected = getExpectedPath(corpus, input, mode);
+                try {
+                    if (!Files.exists(expected)) {
+                        throw new IOException("no expected output, run write first");
+                    }
+                    byte[] expectedBytes = Files.readAllBytes(expected);
+                    // Decoders have to read the files written before them, and encoders have to write the same bytes
+                    if (mode.endsWith(".huf")) {
+                        verifyBlockDecoders(expectedBytes, original);
+                    } else {
+                        verifyTextDecoders(expectedBytes, original);
+                    }
+                    expect(Arrays.equals(encode(input, mode), expectedBytes), "encoding");
+                } catch (IOException | RuntimeException e) {
+                    System.out.println(input.getFileName() + " " + mode + ": " + e.getMessage());
+                    failures++;
+                }
+            }
+        }
+        // Worker JVMs are slow to start, so the distributed compressor is checked once with every input
+        try {
+            verifyDistributed(inputs);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("distributed: " + e.getMessage());
+            failures++;
+        }
+        return failures == 0;
+    }
+
+    /**
+     * Writes the output of every mode for each input in the corpus, replacing the expected outputs.
+     *
+     * @param corpus the corpus directory
+     * @throws IOException if an input cannot be compressed or an output cannot be written
+     */
+    void writeCorpus(Path corpus) throws IOException {
+        Path expectedDirectory = corpus.resolve("expected");
+        Files.createDirectories(expectedDirectory);
+        for (Path input : getCorpusInputs(corpus)) {
+            for (String mode : getModes(input)) {
+                Files.write(getExpectedPath(corpus, input, mode), encode(input, mode));
+                checks++;
+            }
+        }
+        System.out.println("Wrote the expected outputs in " + expectedDirectory.toAbsolutePath());
+    }
+
+    /**
+     * Round trips a text through every text format mode.
+     *
+     * @param text the text
+     * @throws IOException if a mode fails or does not give back the text
+     */
+    void verifyText(String text) throws IOException {
+        byte[] original = text.getBytes(StandardCharsets.UTF_8);
+        Path input = workDirectory.resolve("input.txt");
+        Files.write(input, original);
+        for (int digramCount : new int[]{0, HuffmanTree.DEFAULT_DIGRAMS}) {
+            for (boolean savingEncoder : new boolean[]{false, true}) {
+                verifyTextDecoders(compressText(input, digramCount, savingEncoder), original);
+            }
+        }
+    }
+
+    /**
+     * Round trips some bytes through every block format mode.
+     *
+     * @param data      the bytes
+     * @param blockSize the number of bytes in each block
+     * @throws IOException if a mode fails or does not give back the bytes
+     */
+    void verifyBlocks(byte[] data, int blockSize) throws IOException {
+        // The Vector API kernel, when it is loaded, has to count the same as the scalar loop
+        int[] counted = new int[CodeTable.ALPHABET_SIZE];
+        int[] scalar = new int[CodeTable.ALPHABET_SIZE];
+        int skipped = Math.min(1, data.length);
+        ByteHistogram.add(data, skipped, data.length - skipped, counted, ByteHistogram.newLanes());
+        ByteHistogram.addScalar(data, skipped, data.length - skipped, scalar, ByteHistogram.newLanes());
+        expect(Arrays.equals(counted, scalar), "byte counting");
+
+        for (CompressionLevel level : CompressionLevel.values()) {
+            for (boolean interleaved : new boolean[]{false, true}) {
+                BlockEncoder encoder = new BlockEncoder(blockSize);
+                encoder.setLevel(level);
+                encoder.setInterleaved(interleaved);
+                ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+                encoder.compress(new ByteArrayInputStream(data), streamed);
+                byte[] compressed = streamed.toByteArray();
+
+                // The buffer paths have to write the same file as the stream path
+                for (boolean direct : new boolean[]{false, true}) {
+                    ByteBuffer src = allocate(data.length, direct);
+                    src.put(data).flip();
+                    ByteBuffer dst = allocate(encoder.maxCompressedLength(data.length), direct);
+                    encoder.compress(src, dst);
+                    expect(Arrays.equals(toArray(dst), compressed), level + " buffer encoding, direct " + direct);
+                }
+                verifyBlockDecoders(compressed, data);
+            }
+        }
+
+        // Every block has its own table, so the file does not depend on how many threads wrote it
+        Path input = workDirectory.resolve("input.dat");
+        Files.write(input, data);
+        byte[] single = null;
+        for (int threads : new int[]{1, 3}) {
+            Path output = workDirectory.resolve("pipelined-" + threads + ".huf");
+            new PipelinedEncoder(blockSize, threads, 2 * threads).compress(input, output);
+            byte[] compressed = Files.readAllBytes(output);
+            expect(single == null || Arrays.equals(compressed, single), "pipelined encoding on " + threads + " threads");
+            single = compressed;
+            verifyBlockDecoders(compressed, data);
+        }
+
+        // Appending the two halves has to decode to the whole
+        Path appended = workDirectory.resolve("appended.huf");
+        Files.deleteIfExists(appended);
+        BlockAppender appender = new BlockAppender(blockSize);
+        appender.append(appended, ByteBuffer.wrap(data, 0, data.length / 2));
+        appender.append(appended, ByteBuffer.wrap(data, data.length / 2, data.length - data.length / 2));
+        verifyBlockDecoders(Files.readAllBytes(appended), data);
+        verifyIndex(appended);
+
+        // Without its entries file the index is built again from the block headers
+        Files.delete(BlockIndex.getEntriesFile(appended));
+        appender.append(appended, ByteBuffer.wrap(data, 0, 0));
+        verifyBlockDecoders(Files.readAllBytes(appended), data);
+        verifyIndex(appended);
+
+        verifyRecords(data);
+        verifyDictionary(data, blockSize);
+        verifyArchive(data);
+        verifyAsync(input, data, blockSize);
+    }
+
+    /**
+     * Compresses some bytes with a dictionary made from them, which the decoder must be given to get them back.
+     * The dictionary is also saved in a {@link TableSnapshot}, and the table loaded from it must work the same.
+     *
+     * @param data      the bytes
+     * @param blockSize the number of bytes in each block
+     * @throws IOException if the snapshot cannot be written or read, or the bytes do not come back the same
+     */
+    private void verifyDictionary(byte[] data, int blockSize) throws IOException {
+        int[] histogram = new int[CodeTable.ALPHABET_SIZE];
+        ByteHistogram.add(data, 0, data.length, histogram, ByteHistogram.newLanes());
+        CodeTable dictionary = CodeTable.fromHistogram(histogram);
+        // The last snapshot may still be mapped, so it is deleted rather than written over
+        Path snapshotFile = workDirectory.resolve("tables.snapshot");
+        Files.deleteIfExists(snapshotFile);
+        TableSnapshot.write(snapshotFile, Collections.singletonMap("verify", dictionary));
+        CodeTable loaded = TableSnapshot.map(snapshotFile).getTable("verify");
+
+        BlockEncoder encoder = new BlockEncoder(blockSize);
+        byte[] compressed = null;
+        for (CodeTable table : new CodeTable[]{dictionary, loaded}) {
+            ByteBuffer dst = ByteBuffer.allocate(encoder.maxCompressedLength(data.length));
+            encoder.compress(ByteBuffer.wrap(data), dst, table);
+            byte[] written = toArray(dst);
+            expect(compressed == null || Arrays.equals(written, compressed), "dictionary encoding from a snapshot");
+            compressed = written;
+        }
+        for (CodeTable table : new CodeTable[]{dictionary, loaded}) {
+            for (DecodeLimits limits : new DecodeLimits[]{DecodeLimits.unlimited(), new DecodeLimits()}) {
+                BlockDecoder decoder = new BlockDecoder();
+                decoder.setLimits(limits);
+                ByteBuffer dst = ByteBuffer.allocate(data.length);
+                decoder.decompress(ByteBuffer.wrap(compressed), dst, table);
+                expect(Arrays.equals(toArray(dst), data), "dictionary decoding");
+            }
+        }
+    }
+
+    /**
+     * Packs some bytes into archives as a whole, in two halves and as an empty file, with one shared table and
+     * with as many as there are files, and reads every member back.
+     *
+     * @param data the bytes
+     * @throws IOException if an archive cannot be written or read, or a member does not come back the same
+     */
+    private void verifyArchive(byte[] data) throws IOException {
+        Path members = workDirectory.resolve("members");
+        Files.createDirectories(members);
+        byte[][] contents = {data, Arrays.copyOf(data, data.length / 2),
+                Arrays.copyOfRange(data, data.length / 2, data.length), new byte[0]};
+        for (int dictionaries : new int[]{1, contents.length}) {
+            ArchiveWriter writer = new ArchiveWriter();
+            writer.setThreads(2);
+            writer.setDictionaryCount(dictionaries);
+            for (int i = 0; i < contents.length; i++) {
+                Path member = members.resolve("member-" + i);
+                Files.write(member, contents[i]);
+                writer.add("member-" + i, member);
+            }
+            Path archive = workDirectory.resolve("verify.archive");
+            Files.deleteIfExists(archive);
+            writer.write(archive);
+            try (ArchiveReader reader = new ArchiveReader(archive)) {
+                for (int i = 0; i < contents.length; i++) {
+                    ByteBuffer member = reader.read("member-" + i);
+                    byte[] read = new byte[member.remaining()];
+                    member.get(read);
+                    expect(Arrays.equals(read, contents[i]), "archive member with " + dictionaries + " tables");
+                }
+            }
+        }
+    }
+
+    /**
+     * Compresses and decompresses a file in the background with {@link AsyncCodec}, on one and several threads.
+     *
+     * @param input     the file
+     * @param data      the bytes in the file
+     * @param blockSize the number of bytes in each block
+     * @throws IOException if a job fails or the file does not come back the same
+     */
+    private void verifyAsync(Path input, byte[] data, int blockSize) throws IOException {
+        AsyncCodec codec = new AsyncCodec();
+        codec.setBlockSize(blockSize);
+        Path compressed = workDirectory.resolve("async.huf");
+        Path output = workDirectory.resolve("async.dat");
+        try {
+            for (int threads : new int[]{1, 3}) {
+                codec.compress(input, compressed, threads, null).get();
+                codec.decompress(compressed, output, null).get();
+                expect(Arrays.equals(Files.readAllBytes(output), data), "async coding on " + threads + " threads");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a job");
+        } catch (ExecutionException e) {
+            throw new IOException("Async job failed", e.getCause());
+        } finally {
+            codec.shutdown();
+        }
+    }
+
+    /**
+     * Compresses some files joined together with {@link DistributedCompressor}, a block per shard, on two worker
+     * JVMs started from this class path and one worker that says it is one and then never answers, so the shards
+     * it is given have to time out and be compressed by the others. Then the joined files are appended again.
+     *
+     * @param inputs the files
+     * @throws IOException if a worker fails or the files do not come back the same
+     */
+    void verifyDistributed(List<Path> inputs) throws IOException {
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        for (Path input : inputs) {
+            joined.write(Files.readAllBytes(input));
+        }
+        byte[] data = joined.toByteArray();
+        Path input = workDirectory.resolve("distributed.dat");
+        Path output = workDirectory.resolve("distributed.huf");
+        Files.write(input, data);
+
+        int port;
+        try (ServerSocket free = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = free.getLocalPort();
+        }
+        DistributedCompressor compressor = new DistributedCompressor();
+        compressor.setWorkers(2);
+        compressor.setExternalWorkers(1);
+        compressor.setPort(port);
+        compressor.setShardSize(GOLDEN_BLOCK_SIZE);
+        compressor.setBlockSize(GOLDEN_BLOCK_SIZE);
+        compressor.setReplyTimeout(SILENT_WORKER_TIMEOUT);
+        compressor.setWorkDirectory(workDirectory.resolve("shards"));
+        Thread silentWorker = new Thread(() -> connectSilently(port), "silent-worker");
+        silentWorker.setDaemon(true);
+        silentWorker.start();
+        compressor.compress(input, output);
+        verifyBlockDecoders(Files.readAllBytes(output), data);
+
+        new BlockAppender(GOLDEN_BLOCK_SIZE).append(output, ByteBuffer.wrap(data));
+        byte[] twice = Arrays.copyOf(data, 2 * data.length);
+        System.arraycopy(data, 0, twice, data.length, data.length);
+        verifyBlockDecoders(Files.readAllBytes(output), twice);
+        verifyIndex(output);
+    }
+
+    /**
+     * Connects to a {@link DistributedCompressor} as a worker that never answers, until it is disconnected.
+     *
+     * @param port the port the compressor listens on
+     */
+    private static void connectSilently(int port) {
+        long giveUp = System.currentTimeMillis() + SILENT_WORKER_TIMEOUT * 10L;
+        while (System.currentTimeMillis() < giveUp) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(CompressionWorker.MAGIC);
+                out.flush();
+                InputStream in = socket.getInputStream();
+                while (in.read() >= 0) {
+                    // Ignores what it is asked to do
+                }
+                return;
+            } catch (IOException e) {
+                // The compressor is not listening yet
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that the index of an appended file can be read without walking the blocks, and lists the same
+     * blocks as their headers.
+     *
+     * @param file the appended file
+     * @throws IOException if the file cannot be read or the index is wrong
+     */
+    private void verifyIndex(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            BlockIndex scanned = BlockIndex.scan(channel);
+            BlockIndex listed = BlockIndex.readAll(file);
+            boolean same = BlockIndex.read(channel, file) != null
+                    && listed.getBlockCount() == scanned.getBlockCount()
+                    && listed.getRawLength() == scanned.getRawLength()
+                    && listed.getEndOffset() == scanned.getEndOffset()
+                    && listed.getTableOffset() == scanned.getTableOffset();
+            for (int block = 0; same && block < scanned.getBlockCount(); block++) {
+                same = listed.getBlockOffset(block) == scanned.getBlockOffset(block)
+                        && listed.getRawOffset(block) == scanned.getRawOffset(block)
+                        && listed.getBlockTableOffset(block) == scanned.getBlockTableOffset(block);
+            }
+            expect(same, "block index");
+        }
+    }
+
+    /**
+     * Decodes a text format file with every decoder, with and without limits, which must all give back the original.
+     *
+     * @param compressed the compressed file
+     * @param original   the bytes that were compressed
+     * @throws IOException if a decoder fails or gives back something else
+     */
+    private void verifyTextDecoders(byte[] compressed, byte[] original) throws IOException {
+        Path file = workDirectory.resolve("verify-compressed.bin");
+        Path output = workDirectory.resolve("verify-uncompressed.txt");
+        Files.write(file, compressed);
+        Decoder.decompress(file.toString(), workDirectory.toString(), "verify", new CodecMetrics());
+        expect(Arrays.equals(Files.readAllBytes(output), original), "text decoding");
+        for (int threads : DECODE_THREADS) {
+            ParallelDecoder.decompress(file.toString(), workDirectory.toString(), "verify", threads, new CodecMetrics());
+            expect(Arrays.equals(Files.readAllBytes(output), original), "text decoding on " + threads + " threads");
+        }
+        Decoder.decompress(file.toString(), workDirectory.toString(), "verify", new CodecMetrics(), new DecodeLimits());
+        expect(Arrays.equals(Files.readAllBytes(output), original), "text decoding with limits");
+        ParallelDecoder.decompress(file.toString(), workDirectory.toString(), "verify", DECODE_THREADS[0],
+                new CodecMetrics(), new DecodeLimits());
+        expect(Arrays.equals(Files.readAllBytes(output), original), "text decoding on threads with limits");
+    }
+
+    /**
+     * Decodes a block format file as a stream and from heap and direct buffers, and as a stream with limits,
+     * which must all give back the original.
+     *
+     * @param compressed the compressed file
+     * @param original   the bytes that were compressed
+     * @throws IOException if a decoder fails or gives back something else
+     */
+    private void verifyBlockDecoders(byte[] compressed, byte[] original) throws IOException {
+        ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+        new BlockDecoder().decompress(new ByteArrayInputStream(compressed), streamed);
+        expect(Arrays.equals(streamed.toByteArray(), original), "block stream decoding");
+        for (boolean direct : new boolean[]{false, true}) {
+            ByteBuffer src = allocate(compressed.length, direct);
+            src.put(compressed).flip();
+            ByteBuffer dst = allocate(original.length, direct);
+            new BlockDecoder().decompress(src, dst);
+            expect(Arrays.equals(toArray(dst), original), "block buffer decoding, direct " + direct);
+        }
+        BlockDecoder limited = new BlockDecoder();
+        limited.setLimits(new DecodeLimits());
+        streamed.reset();
+        limited.decompress(new ByteArrayInputStream(compressed), streamed);
+        expect(Arrays.equals(streamed.toByteArray(), original), "block stream decoding with limits");
+    }
+
+    /**
+     * Encodes each line of some bytes as a record with a codec trained on all of them, and decodes them again.
+     *
+     * @param data the bytes
+     * @throws IOException if a record cannot be decoded or comes back different
+     */
+    private void verifyRecords(byte[] data) throws IOException {
+        RecordCodec codec = RecordCodec.train(data, 0, data.length);
+        byte[] encoded = new byte[RecordCodec.maxEncodedLength(data.length)];
+        byte[] decoded = new byte[data.length];
+        int start = 0;
+        for (int i = 0; i <= data.length; i++) {
+            if (i == data.length || data[i] == '\n') {
+                int length = codec.encode(data, start, i - start, encoded, 0);
+                int decodedLength = codec.decode(encoded, 0, length, decoded, 0);
+                expect(decodedLength == i - start
+                        && Arrays.equals(Arrays.copyOfRange(decoded, 0, decodedLength), Arrays.copyOfRange(data, start, i)), "record coding");
+                start = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Compresses a corpus input with one mode.
+     *
+     * @param input the input file
+     * @param mode  the mode, named by the extension of its output
+     * @return the compressed file
+     * @throws IOException if the input cannot be read
+     */
+    private byte[] encode(Path input, String mode) throws IOException {
+        switch (mode) {
+            case "bin":
+                return compressText(input, 0, false);
+            case "pairs.bin":
+                return compressText(input, HuffmanTree.DEFAULT_DIGRAMS, false);
+            default:
+                BlockEncoder encoder = new BlockEncoder(GOLDEN_BLOCK_SIZE);
+                if (mode.equals("interleaved.huf")) {
+                    encoder.setInterleaved(true);
+                } else {
+                    encoder.setLevel(CompressionLevel.valueOf(mode.substring(0, mode.indexOf('.')).toUpperCase(Locale.ROOT)));
+                }
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (InputStream in = Files.newInputStream(input)) {
+                    encoder.compress(in, out);
+                }
+                return out.toByteArray();
+        }
+    }
+
+    /**
+     * Compresses a file into the text format the way the UI does.
+     *
+     * @param input         the file
+     * @param digramCount   the most pairs of characters to give codes to
+     * @param savingEncoder true to add the underscore a saved encoder has
+     * @return the compressed file
+     * @throws IOException if the file cannot be compressed
+     */
+    private byte[] compressText(Path input, int digramCount, boolean savingEncoder) throws IOException {
+        HuffmanTree tree = new HuffmanTree(input.toString(), savingEncoder, new CodecMetrics(), digramCount);
+        Encoder encoder = new Encoder(tree.getCharacterFrequencies(), tree.getCodes(), tree.getDigrams());
+        encoder.compress(tree.getFileContents(), workDirectory.toString(), "verify");
+        return Files.readAllBytes(workDirectory.resolve("verify-compressed.bin"));
+    }
+
+    /**
+     * Makes a random text of one of several kinds.
+     *
+     * @param random the source of randomness
+     * @return the text
+     */
+    private static String randomText(Random random) {
+        // Mostly short texts, with the odd one big enough to be split between threads
+        int length = random.nextInt(20) == 0 ? 200_000 + random.nextInt(400_000) : random.nextInt(2000);
+        StringBuilder text = new StringBuilder();
+        switch (random.nextInt(7)) {
+            case 0:
+                return "";
+            case 1:
+                // A single character, once or many times
+                int character = randomCharacter(random);
+                for (int i = 0; i < Math.max(1, length); i++) {
+                    text.appendCodePoint(character);
+                }
+                break;
+            case 2:
+                // A few characters with very different frequencies
+                int[] alphabet = new int[2 + random.nextInt(6)];
+                for (int i = 0; i < alphabet.length; i++) {
+                    alphabet[i] = randomCharacter(random);
+                }
+                for (int i = 0; i < length; i++) {
+                    text.appendCodePoint(alphabet[Math.min(alphabet.length - 1, (int) Math.abs(random.nextGaussian() * 1.5))]);
+                }
+                break;
+            case 3:
+                // Words and lines, which have repeated pairs of characters
+                while (text.length() < length) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(12) == 0 ? '\n' : ' ');
+                }
+                break;
+            case 4:
+                // Long runs of one character
+                while (text.length() < length) {
+                    int run = randomCharacter(random);
+                    for (int i = random.nextInt(300); i >= 0; i--) {
+                        text.appendCodePoint(run);
+                    }
+                }
+                break;
+            default:
+                // Any mix of characters, from an alphabet no bigger than real text has
+                int[] characters = new int[1 + random.nextInt(300)];
+                for (int i = 0; i < characters.length; i++) {
+                    characters[i] = randomCharacter(random);
+                }
+                for (int i = 0; i < length; i++) {
+                    text.appendCodePoint(characters[random.nextInt(characters.length)]);
+                }
+                break;
+        }
+        return text.toString();
+    }
+
+    /**
+     * Picks a random character, often one of the awkward ones.
+     *
+     * @param random the source of randomness
+     * @return the code point, never a lone surrogate as those cannot be written as UTF-8
+     */
+    private static int randomCharacter(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return AWKWARD_CHARACTERS[random.nextInt(AWKWARD_CHARACTERS.length)];
+            case 1:
+                return 32 + random.nextInt(95);
+            default:
+                int codePoint = random.nextInt(Character.MAX_CODE_POINT + 1);
+                return Character.getType(codePoint) == Character.SURROGATE ? '?' : codePoint;
+        }
+    }
+
+    /**
+     * Makes random bytes, either spread evenly or mostly a few values.
+     *
+     * @param random the source of randomness
+     * @return the bytes
+     */
+    private static byte[] randomBytes(Random random) {
+        byte[] bytes = new byte[random.nextInt(20) == 0 ? 1 << 20 : random.nextInt(5000)];
+        boolean skewed = random.nextBoolean();
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (skewed ? Math.abs(random.nextGaussian() * 8) : random.nextInt(256));
+        }
+        return bytes;
+    }
+
+    /**
+     * Lists the inputs of a corpus, in name order.
+     *
+     * @param corpus the corpus directory
+     * @return the *.txt and *.dat files
+     * @throws IOException if the directory cannot be read
+     */
+    private static List<Path> getCorpusInputs(Path corpus) throws IOException {
+        List<Path> inputs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(corpus, "*.{txt,dat}")) {
+            for (Path file : files) {
+                inputs.add(file);
+            }
+        }
+        inputs.sort(Comparator.comparing(Path::toString));
+        return inputs;
+    }
+
+    /**
+     * Gets the modes a corpus input is compressed with, the text format only being used for text.
+     *
+     * @param input the input file
+     * @return the modes
+     */
+    private static List<String> getModes(Path input) {
+        List<String> modes = new ArrayList<>();
+        if (input.toString().endsWith(".txt")) {
+            modes.addAll(Arrays.asList(TEXT_MODES));
+        }
+        modes.addAll(Arrays.asList(BLOCK_MODES));
+        return modes;
+    }
+
+    /**
+     * Gets where the expected output of a mode is kept.
+     *
+     * @param corpus the corpus directory
+     * @param input  the input file
+     * @param mode   the mode
+     * @return the path of the expected output
+     */
+    private static Path getExpectedPath(Path corpus, Path input, String mode) {
+        return corpus.resolve("expected").resolve(input.getFileName() + "." + mode);
+    }
+
+    /**
+     * Counts a check and fails if it did not pass.
+     *
+     * @param passed true if the check passed
+     * @param what   what was checked
+     * @throws IOException if the check did not pass
+     */
+    private void expect(boolean passed, String what) throws IOException {
+        checks++;
+        if (!passed) {
+            throw new IOException(what + " gave different bytes");
+        }
+    }
+
+    /**
+     * Allocates a buffer.
+     *
+     * @param capacity the size
+     * @param direct   true for a direct buffer
+     * @return the buffer
+     */
+    private static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Copies the bytes written to a buffer.
+     *
+     * @param buffer the buffer, with its position after the last byte written
+     * @return the bytes from the start of the buffer to its position
+     */
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param directory the directory, or null for nothing
+     */
+    private static void deleteDirectory(Path directory) {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            // Only temporary files are left behind
+        }
+    }
+}
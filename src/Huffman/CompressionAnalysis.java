@@ -0,0 +1,128 @@
+package Huffman;
+
+import java.util.Locale;
+
+/**
+ * What {@link CompressionAnalyzer} predicts about compressing some data, worked out before any encoding is done.
+ */
+public class CompressionAnalysis {
+    /**
+     * What to do with the data.
+     */
+    public enum Recommendation {
+        /**
+         * Compressing the data saves enough to be worth the time.
+         */
+        COMPRESS,
+        /**
+         * The data is already about as small as a Huffman code can make it, so it should be stored as it is
+         * (or left out of a batch job altogether).
+         */
+        STORE
+    }
+
+    private final long originalSize;
+    private final long sampledBytes;
+    private final double entropyBitsPerByte;
+    private final long headerSize;
+    private final long predictedSize;
+    private final Recommendation recommendation;
+
+    /**
+     * Instantiates a new Compression analysis.
+     *
+     * @param originalSize       the number of bytes in the data
+     * @param sampledBytes       the number of bytes the prediction is based on
+     * @param entropyBitsPerByte the Shannon entropy of the sampled bytes
+     * @param headerSize         the predicted number of bytes taken by headers and code tables
+     * @param predictedSize      the predicted size of the compressed data, including the headers
+     * @param recommendation     what to do with the data
+     */
+    CompressionAnalysis(long originalSize, long sampledBytes, double entropyBitsPerByte, long headerSize,
+                        long predictedSize, Recommendation recommendation) {
+        this.originalSize = originalSize;
+        this.sampledBytes = sampledBytes;
+        this.entropyBitsPerByte = entropyBitsPerByte;
+        this.headerSize = headerSize;
+        this.predictedSize = predictedSize;
+        this.recommendation = recommendation;
+    }
+
+    /**
+     * Gets the number of bytes in the data.
+     *
+     * @return the number of bytes
+     */
+    public long getOriginalSize() {
+        return originalSize;
+    }
+
+    /**
+     * Gets the number of bytes the prediction is based on, less than the original size if only a sample was read.
+     *
+     * @return the number of bytes
+     */
+    public long getSampledBytes() {
+        return sampledBytes;
+    }
+
+    /**
+     * Gets the Shannon entropy of the sampled bytes, the fewest bits per byte any order-0 code could use.
+     *
+     * @return the entropy in bits per byte
+     */
+    public double getEntropyBitsPerByte() {
+        return entropyBitsPerByte;
+    }
+
+    /**
+     * Gets the predicted number of bytes taken by the file header, block headers and code table.
+     *
+     * @return the number of bytes
+     */
+    public long getHeaderSize() {
+        return headerSize;
+    }
+
+    /**
+     * Gets the predicted size of the compressed data, including the headers.
+     *
+     * @return the number of bytes
+     */
+    public long getPredictedSize() {
+        return predictedSize;
+    }
+
+    /**
+     * Gets the predicted fraction of the original size saved by compressing, negative if the data would grow.
+     *
+     * @return the fraction saved
+     */
+    public double getPredictedSavings() {
+        return originalSize == 0 ? 0 : 1 - (double) predictedSize / originalSize;
+    }
+
+    /**
+     * Gets what to do with the data.
+     *
+     * @return the recommendation
+     */
+    public Recommendation getRecommendation() {
+        return recommendation;
+    }
+
+    /**
+     * Checks whether compressing the data is worth it.
+     *
+     * @return true if the recommendation is {@link Recommendation#COMPRESS}
+     */
+    public boolean isWorthCompressing() {
+        return recommendation == Recommendation.COMPRESS;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%d bytes, entropy %.2f bits/byte, predicted %d bytes (%.1f%% saved), %s",
+                originalSize, entropyBitsPerByte, predictedSize, getPredictedSavings() * 100, recommendation);
+    }
+}
@@ -0,0 +1,244 @@
+package Huffman;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Predicts how well data will compress from its byte frequencies, without encoding it.
+ * <p>
+ * The prediction builds the same length limited code the {@link BlockEncoder} would build and adds up the
+ * bits it would write, plus the headers and one code table. Building a code for 256 symbols takes microseconds,
+ * so a batch job can use the analysis to store or skip incompressible files (already compressed archives,
+ * images, encrypted data) instead of paying for a full encode to find out. Large files are judged from evenly
+ * spaced samples, so analysing a file reads a fixed amount of it whatever its size.
+ * <p>
+ * {@link #analyzeText(Path, boolean)} predicts the text format written by {@link Encoder} instead, which has
+ * one code for the whole file and a header listing every character and its frequency in decimal.
+ */
+public class CompressionAnalyzer {
+    /**
+     * The default smallest fraction of the original size that compression has to save to be recommended.
+     */
+    public static final double DEFAULT_MIN_SAVINGS = 0.02;
+    /**
+     * The default number of bytes read from a file, files this size or smaller are read completely.
+     */
+    public static final int DEFAULT_SAMPLE_SIZE = 1 << 20;
+    /**
+     * The number of places a large file is sampled from.
+     */
+    private static final int SAMPLE_CHUNKS = 16;
+
+    private double minSavings = DEFAULT_MIN_SAVINGS;
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+    private int blockSize = BlockEncoder.DEFAULT_BLOCK_SIZE;
+
+    /**
+     * Sets the smallest fraction of the original size that compression has to save to be recommended.
+     *
+     * @param minSavings the fraction, between 0 and 1
+     */
+    public void setMinSavings(double minSavings) {
+        if (minSavings < 0 || minSavings > 1) {
+            throw new IllegalArgumentException("Minimum savings must be between 0 and 1");
+        }
+        this.minSavings = minSavings;
+    }
+
+    /**
+     * Sets the number of bytes read from a file, files this size or smaller are read completely.
+     *
+     * @param sampleSize the number of bytes
+     */
+    public void setSampleSize(int sampleSize) {
+        if (sampleSize < SAMPLE_CHUNKS) {
+            throw new IllegalArgumentException("Sample size must be at least " + SAMPLE_CHUNKS);
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * Sets the block size the prediction assumes, which decides how many block headers are counted.
+     *
+     * @param blockSize the number of bytes in a block
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Analyses data from a histogram of all of its bytes.
+     *
+     * @param histogram how often each byte appears
+     * @return the analysis
+     */
+    public CompressionAnalysis analyze(int[] histogram) {
+        long total = 0;
+        for (int frequency : histogram) {
+            total += frequency;
+        }
+        return analyze(histogram, total);
+    }
+
+    /**
+     * Analyses data from a histogram of a sample of its bytes.
+     *
+     * @param histogram    how often each byte appears in the sample
+     * @param originalSize the number of bytes in all of the data
+     * @return the analysis
+     */
+    public CompressionAnalysis analyze(int[] histogram, long originalSize) {
+        long sampled = 0;
+        int distinct = 0;
+        for (int frequency : histogram) {
+            sampled += frequency;
+            if (frequency > 0) {
+                distinct++;
+            }
+        }
+        long blocks = (originalSize + blockSize - 1) / blockSize;
+        long headerSize = BlockFormat.FRAME_SIZE + blocks * BlockFormat.BLOCK_HEADER_SIZE;
+        double entropy = sampled == 0 ? 0 : CodeTable.entropyBits(histogram) / sampled;
+        long payload;
+        if (distinct <= 1) {
+            // Blocks of a single byte are written as that byte
+            payload = blocks;
+        } else {
+            headerSize += CodeTable.HEADER_SIZE;
+            double bitsPerByte = (double) CodeTable.fromHistogram(histogram).cost(histogram) / sampled;
+            payload = (long) Math.ceil(bitsPerByte * originalSize / 8);
+        }
+        long predictedSize = headerSize + payload;
+
+        boolean worthIt = originalSize > 0 && predictedSize <= originalSize * (1 - minSavings);
+        return new CompressionAnalysis(originalSize, sampled, entropy, headerSize, predictedSize,
+                worthIt ? CompressionAnalysis.Recommendation.COMPRESS : CompressionAnalysis.Recommendation.STORE);
+    }
+
+    /**
+     * Analyses the remaining bytes of a buffer, without changing its position.
+     *
+     * @param data the data
+     * @return the analysis
+     */
+    public CompressionAnalysis analyze(ByteBuffer data) {
+        int[] histogram = new int[CodeTable.ALPHABET_SIZE];
+        ByteHistogram.add(data, data.position(), data.remaining(), histogram, ByteHistogram.newLanes());
+        return analyze(histogram);
+    }
+
+    /**
+     * Analyses a file as {@link Encoder} would compress it into the text format.
+     * <p>
+     * The whole file is read and its characters counted, as the encoder does, since the header grows with every
+     * distinct character and a sample could miss some. All Huffman codes for the same frequencies write the
+     * same number of bits, so the size is worked out from the code lengths without building the tree.
+     *
+     * @param file          the file
+     * @param savingEncoder true if the encoder is being saved, which gives the underscore a code
+     * @return the analysis
+     * @throws IOException if the file cannot be read
+     */
+    public CompressionAnalysis analyzeText(Path file, boolean savingEncoder) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        SymbolIndex symbols = new SymbolIndex();
+        int[] counts = new int[16];
+        for (int offset = 0; offset < text.length(); ) {
+            int codePoint = text.codePointAt(offset);
+            offset += Character.charCount(codePoint);
+            int index = symbols.add(codePoint);
+            if (index == counts.length) {
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+            counts[index]++;
+        }
+        int[] frequencies = Arrays.copyOf(counts, symbols.size());
+
+        // Each character is written as "code point frequency " followed by the padding on its own line
+        long headerSize = 0;
+        long characters = 0;
+        int smallest = Integer.MAX_VALUE;
+        for (int i = 0; i < frequencies.length; i++) {
+            headerSize += String.valueOf(symbols.symbolAt(i)).length() + String.valueOf(frequencies[i]).length() + 2;
+            characters += frequencies[i];
+            smallest = Math.min(smallest, frequencies[i]);
+        }
+        boolean unusedUnderscore = savingEncoder && !text.isEmpty()
+                && symbols.indexOf(HuffmanTree.UNKNOWN_CHARACTER) < 0;
+        if (unusedUnderscore) {
+            headerSize += (HuffmanTree.UNKNOWN_CHARACTER + " 0 ").length();
+        }
+        long bits;
+        if (frequencies.length <= 1) {
+            // A single character gets a 1 bit code, with or without the underscore beside it
+            bits = characters;
+        } else {
+            int[] lengths = new int[frequencies.length];
+            HuffmanTree.getCodeLengths(frequencies, lengths, Integer.MAX_VALUE);
+            bits = 0;
+            for (int i = 0; i < frequencies.length; i++) {
+                bits += (long) frequencies[i] * lengths[i];
+            }
+            if (unusedUnderscore) {
+                // The underscore is joined with the least frequent character first, which adds a bit to its code
+                bits += smallest;
+            }
+        }
+        int padding = bits % 8 == 0 ? 0 : (int) (8 - bits % 8);
+        headerSize += 1 + String.valueOf(padding).length() + 1;
+        long predictedSize = headerSize + (bits + 7) / 8;
+
+        double entropy = bytes.length == 0 ? 0 : CodeTable.entropyBits(frequencies) / bytes.length;
+        boolean worthIt = bytes.length > 0 && predictedSize <= bytes.length * (1 - minSavings);
+        return new CompressionAnalysis(bytes.length, bytes.length, entropy, headerSize, predictedSize,
+                worthIt ? CompressionAnalysis.Recommendation.COMPRESS : CompressionAnalysis.Recommendation.STORE);
+    }
+
+    /**
+     * Analyses a file, reading it all if it is no bigger than the sample size and evenly spaced pieces of it if it is.
+     *
+     * @param file the file
+     * @return the analysis
+     * @throws IOException if the file cannot be read
+     */
+    public CompressionAnalysis analyze(Path file) throws IOException {
+        int[] histogram = new int[CodeTable.ALPHABET_SIZE];
+        int[][] lanes = ByteHistogram.newLanes();
+        long size = Files.size(file);
+        if (size <= sampleSize) {
+            byte[] buffer = new byte[1 << 16];
+            try (InputStream in = Files.newInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    ByteHistogram.add(buffer, 0, read, histogram, lanes);
+                }
+            }
+            return analyze(histogram, size);
+        }
+
+        int chunkSize = sampleSize / SAMPLE_CHUNKS;
+        ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int i = 0; i < SAMPLE_CHUNKS; i++) {
+                long position = (size - chunkSize) * i / (SAMPLE_CHUNKS - 1);
+                chunk.clear();
+                while (chunk.hasRemaining() && channel.read(chunk, position + chunk.position()) > 0) {
+                    // Keep reading until the chunk is full
+                }
+                ByteHistogram.add(chunk.array(), 0, chunk.position(), histogram, lanes);
+            }
+        }
+        return analyze(histogram, size);
+    }
+}
@@ -0,0 +1,23 @@
+package Huffman;
+
+/**
+ * How much work {@link BlockEncoder} does to pick the smallest way of storing each block.
+ * <p>
+ * Every level stores blocks of a single repeated byte as one byte, and stores a block as it is when the
+ * Huffman code would not make it smaller. Higher levels look at more ways of storing each block.
+ */
+public enum CompressionLevel {
+    /**
+     * Chooses between Huffman coding and storing the block using only the entropy of the block.
+     */
+    FAST,
+    /**
+     * Also measures how small run length encoding would make the block, which needs a second pass over it.
+     */
+    DEFAULT,
+    /**
+     * Builds a new code table for every block and works out the exact size with both the new table and
+     * the previous one, keeping whichever is smaller.
+     */
+    BEST
+}
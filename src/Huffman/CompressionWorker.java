@@ -0,0 +1,224 @@
+package Huffman;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A worker process for {@link DistributedCompressor}, which counts and compresses the shards it is given.
+ * <p>
+ * The worker connects to the coordinator and then carries out its commands until told to stop. Shards are
+ * read straight from the input file and compressed shards are written straight to the work directory, so
+ * only histograms and block lists go over the connection. Workers on other hosts need the input and the work
+ * directory at the same paths, for example on a shared file system:
+ * <pre>
+ * java -cp build/huffman-core.jar Huffman.CompressionWorker coordinator-host 7070
+ * </pre>
+ * <p>
+ * The protocol is a sequence of commands, each answered with {@link #OK} and the result or {@link #FAILED}
+ * and a message:
+ * <pre>
+ * on connecting   the worker sends int MAGIC
+ * COUNT           UTF input, long offset, int length
+ *                 answered with 256 longs
+ * COMPRESS        UTF input, long offset, int length, int block size, UTF level, 128 bytes of table, UTF output
+ *                 answered with int number of blocks, then for each block
+ *                 byte type, int length, int compressed length
+ * SHUTDOWN        no answer, the worker exits
+ * </pre>
+ */
+public class CompressionWorker {
+    /**
+     * Sent by a worker when it connects ("HUFW").
+     */
+    static final int MAGIC = 0x48554657;
+    /**
+     * Tells the worker to close its connection and exit.
+     */
+    static final int SHUTDOWN = 0;
+    /**
+     * Asks for the histogram of a shard.
+     */
+    static final int COUNT = 1;
+    /**
+     * Asks for a shard to be compressed, starting with the given code table.
+     */
+    static final int COMPRESS = 2;
+    /**
+     * Starts the answer to a command that succeeded.
+     */
+    static final int OK = 0;
+    /**
+     * Starts the answer to a command that failed, followed by a UTF message.
+     */
+    static final int FAILED = 1;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final int[] histogram = new int[CodeTable.ALPHABET_SIZE];
+    private final int[][] lanes = ByteHistogram.newLanes();
+
+    /**
+     * Instantiates a new Compression worker.
+     *
+     * @param socket the connection to the coordinator
+     * @throws IOException if the connection cannot be used
+     */
+    CompressionWorker(Socket socket) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /**
+     * Connects to a coordinator and works until it says to stop.
+     *
+     * @param args the coordinator's host and port
+     * @throws IOException if the connection fails
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompressionWorker host port");
+            System.exit(2);
+        }
+        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            socket.setTcpNoDelay(true);
+            new CompressionWorker(socket).run();
+        }
+    }
+
+    /**
+     * Carries out commands until the coordinator says to stop or closes the connection.
+     *
+     * @throws IOException if the connection fails
+     */
+    void run() throws IOException {
+        out.writeInt(MAGIC);
+        out.flush();
+        while (true) {
+            int command;
+            try {
+                command = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (command == SHUTDOWN) {
+                return;
+            }
+            try {
+                if (command == COUNT) {
+                    // The whole command is read before any of it is checked, so a bad one cannot leave
+                    // the rest of it to be read as the next command
+                    String input = in.readUTF();
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    count(Paths.get(input), offset, length);
+                } else if (command == COMPRESS) {
+                    compress();
+                } else {
+                    throw new IOException("Unknown command " + command);
+                }
+            } catch (IOException | RuntimeException e) {
+                out.writeInt(FAILED);
+                out.writeUTF(String.valueOf(e.getMessage()));
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Counts how often each byte appears in a shard and sends the histogram.
+     *
+     * @param input  the input file
+     * @param offset the offset of the shard
+     * @param length the number of bytes in the shard
+     * @throws IOException if the input cannot be read or the answer cannot be sent
+     */
+    private void count(Path input, long offset, int length) throws IOException {
+        MappedByteBuffer shard = map(input, offset, length);
+        Arrays.fill(histogram, 0);
+        ByteHistogram.add(shard, 0, length, histogram, lanes);
+        out.writeInt(OK);
+        for (int frequency : histogram) {
+            out.writeLong(frequency);
+        }
+    }
+
+    /**
+     * Compresses a shard into its own file as a run of blocks, without the file header and end marker,
+     * and sends the list of blocks.
+     *
+     * @throws IOException if the command is not valid, the files cannot be used or the answer cannot be sent
+     */
+    private void compress() throws IOException {
+        // The whole command is read before any of it is checked, as for COUNT
+        String inputName = in.readUTF();
+        long offset = in.readLong();
+        int length = in.readInt();
+        int blockSize = in.readInt();
+        String levelName = in.readUTF();
+        byte[] tableBytes = new byte[CodeTable.HEADER_SIZE];
+        in.readFully(tableBytes);
+        String outputName = in.readUTF();
+
+        Path input = Paths.get(inputName);
+        Path output = Paths.get(outputName);
+        CompressionLevel level = CompressionLevel.valueOf(levelName);
+
+        CodeTable table = new CodeTable();
+        table.read(ByteBuffer.wrap(tableBytes), 0);
+        MappedByteBuffer shard = map(input, offset, length);
+        BlockEncoder encoder = new BlockEncoder(blockSize);
+        encoder.setLevel(level);
+        encoder.continueStream(table);
+
+        int blocks = (int) (((long) length + blockSize - 1) / blockSize);
+        byte[] types = new byte[blocks];
+        int[] sizes = new int[blocks];
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (int block = 0; block < blocks; block++) {
+                int blockOffset = block * blockSize;
+                int size = encoder.encodeFollowingBlock(shard, blockOffset, Math.min(blockSize, length - blockOffset));
+                ByteBuffer encoded = encoder.getEncodedBlock().duplicate();
+                encoded.limit(size).position(0);
+                while (encoded.hasRemaining()) {
+                    channel.write(encoded);
+                }
+                types[block] = encoded.get(0);
+                sizes[block] = size;
+            }
+        }
+
+        out.writeInt(OK);
+        out.writeInt(blocks);
+        for (int block = 0; block < blocks; block++) {
+            out.writeByte(types[block]);
+            out.writeInt(Math.min(blockSize, length - block * blockSize));
+            out.writeInt(sizes[block]);
+        }
+    }
+
+    /**
+     * Maps a shard of the input file.
+     *
+     * @param input  the input file
+     * @param offset the offset of the shard
+     * @param length the number of bytes in the shard
+     * @return the shard
+     * @throws IOException if the input cannot be read or is shorter than the shard
+     */
+    private static MappedByteBuffer map(Path input, long offset, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            if (offset < 0 || length < 0 || offset + length > channel.size()) {
+                throw new IOException("Shard is outside the input file");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+    }
+}
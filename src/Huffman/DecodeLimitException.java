@@ -0,0 +1,32 @@
+package Huffman;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a compressed file breaks one of the {@link DecodeLimits} it is decoded with.
+ */
+public class DecodeLimitException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final DecodeLimits.Limit limit;
+
+    /**
+     * Instantiates a new Decode limit exception.
+     *
+     * @param limit   the limit that was broken
+     * @param message the detail message
+     */
+    public DecodeLimitException(DecodeLimits.Limit limit, String message) {
+        super(message);
+        this.limit = limit;
+    }
+
+    /**
+     * Gets the limit that was broken.
+     *
+     * @return the limit
+     */
+    public DecodeLimits.Limit getLimit() {
+        return limit;
+    }
+}
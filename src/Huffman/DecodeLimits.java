@@ -0,0 +1,214 @@
+package Huffman;
+
+/**
+ * Limits on what a decoder will do for one file, so that files from untrusted sources cannot use up the heap.
+ * <p>
+ * Headers are checked against the limits before anything is allocated from them, and the output is checked
+ * again while it is decoded in case the header lied. A file that breaks a limit is rejected with a
+ * {@link DecodeLimitException}. For the text format written by {@link Encoder} sizes are counted in characters,
+ * for the block format they are counted in bytes.
+ * <p>
+ * A new instance has limits suited to a shared service, {@link #unlimited()} gives the behaviour of a decoder
+ * without limits.
+ */
+public class DecodeLimits {
+    /**
+     * The limits that can be broken.
+     */
+    public enum Limit {
+        /**
+         * The size of the decompressed data.
+         */
+        OUTPUT_SIZE,
+        /**
+         * The number of distinct symbols in a code.
+         */
+        ALPHABET_SIZE,
+        /**
+         * The length of the longest code.
+         */
+        CODE_LENGTH,
+        /**
+         * The size of the decompressed data divided by the size of the compressed data.
+         */
+        RATIO
+    }
+
+    /**
+     * The default largest decompressed size.
+     */
+    public static final long DEFAULT_MAX_OUTPUT_SIZE = 1L << 30;
+    /**
+     * The default most distinct symbols. Text rarely has more than a few thousand distinct characters, and the
+     * tree for the text format is built with a quickSort that can take time growing with the square of the
+     * number of symbols, which is well under a second at this size.
+     */
+    public static final int DEFAULT_MAX_ALPHABET_SIZE = 1 << 14;
+    /**
+     * The default longest code. A file needs more than 2^31 characters before a Huffman code reaches 46 bits.
+     */
+    public static final int DEFAULT_MAX_CODE_LENGTH = 48;
+    /**
+     * The default largest compression ratio. Blocks of a single repeated byte come to about 13000 to 1,
+     * real data compresses far less.
+     */
+    public static final double DEFAULT_MAX_RATIO = 1 << 15;
+
+    private long maxOutputSize = DEFAULT_MAX_OUTPUT_SIZE;
+    private int maxAlphabetSize = DEFAULT_MAX_ALPHABET_SIZE;
+    private int maxCodeLength = DEFAULT_MAX_CODE_LENGTH;
+    private double maxRatio = DEFAULT_MAX_RATIO;
+
+    /**
+     * Makes limits that never reject a file, for decoding files from a trusted source.
+     *
+     * @return the limits
+     */
+    public static DecodeLimits unlimited() {
+        DecodeLimits limits = new DecodeLimits();
+        limits.maxOutputSize = Long.MAX_VALUE;
+        limits.maxAlphabetSize = Integer.MAX_VALUE;
+        limits.maxCodeLength = Integer.MAX_VALUE;
+        limits.maxRatio = Double.POSITIVE_INFINITY;
+        return limits;
+    }
+
+    /**
+     * Gets the largest decompressed size.
+     *
+     * @return the number of bytes or characters
+     */
+    public long getMaxOutputSize() {
+        return maxOutputSize;
+    }
+
+    /**
+     * Sets the largest decompressed size.
+     *
+     * @param maxOutputSize the number of bytes or characters
+     */
+    public void setMaxOutputSize(long maxOutputSize) {
+        if (maxOutputSize < 0) {
+            throw new IllegalArgumentException("Maximum output size cannot be negative");
+        }
+        this.maxOutputSize = maxOutputSize;
+    }
+
+    /**
+     * Gets the most distinct symbols a code may have.
+     *
+     * @return the number of symbols
+     */
+    public int getMaxAlphabetSize() {
+        return maxAlphabetSize;
+    }
+
+    /**
+     * Sets the most distinct symbols a code may have.
+     *
+     * @param maxAlphabetSize the number of symbols
+     */
+    public void setMaxAlphabetSize(int maxAlphabetSize) {
+        if (maxAlphabetSize < 1) {
+            throw new IllegalArgumentException("Maximum alphabet size must be positive");
+        }
+        this.maxAlphabetSize = maxAlphabetSize;
+    }
+
+    /**
+     * Gets the longest code a file may use.
+     *
+     * @return the number of bits
+     */
+    public int getMaxCodeLength() {
+        return maxCodeLength;
+    }
+
+    /**
+     * Sets the longest code a file may use.
+     *
+     * @param maxCodeLength the number of bits
+     */
+    public void setMaxCodeLength(int maxCodeLength) {
+        if (maxCodeLength < 1) {
+            throw new IllegalArgumentException("Maximum code length must be positive");
+        }
+        this.maxCodeLength = maxCodeLength;
+    }
+
+    /**
+     * Gets the largest compression ratio.
+     *
+     * @return the decompressed size divided by the compressed size
+     */
+    public double getMaxRatio() {
+        return maxRatio;
+    }
+
+    /**
+     * Sets the largest compression ratio.
+     *
+     * @param maxRatio the decompressed size divided by the compressed size
+     */
+    public void setMaxRatio(double maxRatio) {
+        if (!(maxRatio >= 1)) {
+            throw new IllegalArgumentException("Maximum ratio must be at least 1");
+        }
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * Works out the largest decompressed size allowed for a given compressed size.
+     *
+     * @param inputSize the number of compressed bytes
+     * @return the number of bytes or characters
+     */
+    long getMaxOutputLength(long inputSize) {
+        double ratioLimit = maxRatio * Math.max(1, inputSize);
+        return ratioLimit >= maxOutputSize ? maxOutputSize : (long) ratioLimit;
+    }
+
+    /**
+     * Checks the number of distinct symbols in a code.
+     *
+     * @param symbols the number of symbols
+     * @throws DecodeLimitException if there are too many
+     */
+    void checkAlphabetSize(long symbols) throws DecodeLimitException {
+        if (symbols > maxAlphabetSize) {
+            throw new DecodeLimitException(Limit.ALPHABET_SIZE,
+                    "Code has " + symbols + " symbols, more than the limit of " + maxAlphabetSize);
+        }
+    }
+
+    /**
+     * Checks the length of the longest code.
+     *
+     * @param length the number of bits
+     * @throws DecodeLimitException if it is too long
+     */
+    void checkCodeLength(int length) throws DecodeLimitException {
+        if (length > maxCodeLength) {
+            throw new DecodeLimitException(Limit.CODE_LENGTH,
+                    "Code is " + length + " bits long, more than the limit of " + maxCodeLength);
+        }
+    }
+
+    /**
+     * Checks the size of the decompressed data against the size of the compressed data it came from.
+     *
+     * @param outputSize the number of bytes or characters decompressed, or about to be
+     * @param inputSize  the number of compressed bytes they come from
+     * @throws DecodeLimitException if the output is too big or the ratio too high
+     */
+    void checkOutput(long outputSize, long inputSize) throws DecodeLimitException {
+        if (outputSize > maxOutputSize) {
+            throw new DecodeLimitException(Limit.OUTPUT_SIZE,
+                    "Decompressed size " + outputSize + " is more than the limit of " + maxOutputSize);
+        }
+        if (outputSize > maxRatio * Math.max(1, inputSize)) {
+            throw new DecodeLimitException(Limit.RATIO,
+                    "Decompressing " + inputSize + " bytes to " + outputSize + " is more than the ratio limit of " + maxRatio);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package Huffman;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Huffman tree stored in arrays, with a lookup table that decodes several short codes at once.
+ * <p>
+ * Each entry of the table is found using the next {@link #TABLE_BITS} bits and holds up to
+ * {@link #SYMBOLS_PER_ENTRY} characters whose codes fit completely in those bits, along with how many
+ * bits they use. In text most codes are a few bits long, so one lookup usually decodes 2 or 3 characters.
+ * When the first code is longer than the table, the entry holds the node reached after {@link #TABLE_BITS}
+ * bits and the rest of the code is read one bit at a time.
+ * <p>
+ * A leaf may be a pair of characters (see {@link Digrams}), which decodes to both of them.
+ * <p>
+ * A tree with one character gives it a 1 bit code, and a tree with no characters (from an empty file) has no codes.
+ * <p>
+ * The tree cannot be changed once built, so one can be shared by several threads.
+ */
+final class DecodeTree {
+    /**
+     * The number of bits looked up at once.
+     */
+    static final int TABLE_BITS = 12;
+    /**
+     * The most characters one table entry can hold.
+     */
+    static final int SYMBOLS_PER_ENTRY = 3;
+
+    // The children of each node, a leaf has -1 as its left child
+    private final int[] left;
+    private final int[] right;
+    private final int[] values;
+    private final int maxCodeLength;
+    private final Digrams digrams;
+    // The frequency of the only character of a single leaf tree
+    private final long singleFrequency;
+    // The number of characters in each entry and the bits they use (bits << 8 | count),
+    // or the node reached after TABLE_BITS bits (node << 8) when no code fits
+    private final int[] entries = new int[1 << TABLE_BITS];
+    private final int[] entrySymbols = new int[SYMBOLS_PER_ENTRY << TABLE_BITS];
+
+    /**
+     * Instantiates a new Decode tree.
+     *
+     * @param root the root node of the tree made by {@link Decoder#createTree(String)}
+     */
+    DecodeTree(Node root) {
+        this(root, null);
+    }
+
+    /**
+     * Instantiates a new Decode tree with pairs of characters.
+     *
+     * @param root    the root node of the tree made by {@link Decoder#createTree(String[], Digrams)},
+     *                or null for a tree with no characters
+     * @param digrams the pairs of characters in the tree, or null if there are none
+     */
+    DecodeTree(Node root, Digrams digrams) {
+        this.digrams = digrams;
+        this.singleFrequency = root == null ? 0 : root.getFrequency();
+        List<Node> nodes = new ArrayList<>();
+        if (root != null) {
+            nodes.add(root);
+        }
+        // Number the nodes breadth first so each child is added after its parent
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (!node.isLeafNode()) {
+                nodes.add(node.getChild_left());
+                nodes.add(node.getChild_right());
+            }
+        }
+        left = new int[nodes.size()];
+        right = new int[nodes.size()];
+        values = new int[nodes.size()];
+        int[] depths = new int[nodes.size()];
+        int next = 1;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (node.isLeafNode()) {
+                left[i] = -1;
+                values[i] = node.getValue();
+            } else {
+                left[i] = next++;
+                right[i] = next++;
+                depths[left[i]] = depths[i] + 1;
+                depths[right[i]] = depths[i] + 1;
+            }
+        }
+        // The nodes are numbered breadth first, so the last one is the deepest
+        maxCodeLength = nodes.isEmpty() ? 0 : depths[nodes.size() - 1];
+        if (nodes.size() > 1) {
+            fillTable();
+        }
+    }
+
+    /**
+     * Fills the lookup table by walking the tree for every possible {@link #TABLE_BITS} bits.
+     */
+    private void fillTable() {
+        for (int bits = 0; bits < entries.length; bits++) {
+            int node = 0;
+            int count = 0;
+            int used = 0;
+            for (int i = 0; i < TABLE_BITS; i++) {
+                node = ((bits >>> (TABLE_BITS - 1 - i)) & 1) == 1 ? right[node] : left[node];
+                if (left[node] < 0) {
+                    entrySymbols[bits * SYMBOLS_PER_ENTRY + count] = values[node];
+                    count++;
+                    used = i + 1;
+                    node = 0;
+                    if (count == SYMBOLS_PER_ENTRY) {
+                        break;
+                    }
+                }
+            }
+            entries[bits] = count > 0 ? used << 8 | count : node << 8;
+        }
+    }
+
+    /**
+     * Checks whether the tree is just a leaf, in which case each bit is one more of its character.
+     *
+     * @return true if the root is a leaf
+     */
+    boolean isSingleLeaf() {
+        return left.length == 1;
+    }
+
+    /**
+     * Checks whether the tree has no characters, which only an empty file has.
+     *
+     * @return true if there is no root
+     */
+    boolean isEmpty() {
+        return left.length == 0;
+    }
+
+    /**
+     * Gets the length of the longest code.
+     *
+     * @return the number of bits
+     */
+    int getMaxCodeLength() {
+        return maxCodeLength;
+    }
+
+    /**
+     * Decodes all the compressed bits using the lookup table.
+     *
+     * @param data      the compressed file
+     * @param offset    the index of the first compressed byte
+     * @param totalBits the number of compressed bits, not counting the padding
+     * @param limits    the limits on the decoded size
+     * @return the decoded string
+     * @throws IOException if the compressed data ends in the middle of a code or breaks the limits
+     */
+    String decode(byte[] data, int offset, long totalBits, DecodeLimits limits) throws IOException {
+        StringBuilder output = new StringBuilder();
+        if (isEmpty()) {
+            if (totalBits > 0) {
+                throw new IOException("Compressed data has no characters to decode to");
+            }
+            return output.toString();
+        }
+        if (isSingleLeaf()) {
+            // Each bit is one character. Files written before a single character was given a code have no bits,
+            // so the frequency in the tree structure says how many there are
+            long count = totalBits > 0 ? totalBits : singleFrequency;
+            limits.checkOutput(count * (Digrams.isPair(values[0]) ? 2 : 1), data.length);
+            for (long i = 0; i < count; i++) {
+                append(output, values[0]);
+            }
+            return output.toString();
+        }
+        long maxLength = limits.getMaxOutputLength(data.length);
+        BitReader reader = new BitReader(ByteBuffer.wrap(data), offset, data.length - offset);
+        long position = 0;
+        while (totalBits - position >= TABLE_BITS) {
+            if (output.length() > maxLength) {
+                limits.checkOutput(output.length(), data.length);
+            }
+            int bits = reader.peek(TABLE_BITS);
+            int entry = entries[bits];
+            int count = entry & 0xff;
+            if (count > 0) {
+                int symbol = bits * SYMBOLS_PER_ENTRY;
+                for (int i = 0; i < count; i++) {
+                    append(output, entrySymbols[symbol + i]);
+                }
+                reader.skip(entry >>> 8);
+                position += entry >>> 8;
+            } else {
+                // The code is longer than the table, carry on down the tree from where the table finished
+                reader.skip(TABLE_BITS);
+                position += TABLE_BITS;
+                int node = entry >>> 8;
+                while (left[node] >= 0) {
+                    if (position == totalBits) {
+                        throw new IOException("Compressed data ended in the middle of a code");
+                    }
+                    node = reader.read(1) == 1 ? right[node] : left[node];
+                    position++;
+                }
+                append(output, values[node]);
+            }
+        }
+        // The last few codes might not fill a table lookup, so they are read a bit at a time
+        while (position < totalBits) {
+            if (output.length() > maxLength) {
+                limits.checkOutput(output.length(), data.length);
+            }
+            int node = 0;
+            while (left[node] >= 0) {
+                if (position == totalBits) {
+                    throw new IOException("Compressed data ended in the middle of a code");
+                }
+                node = reader.read(1) == 1 ? right[node] : left[node];
+                position++;
+            }
+            append(output, values[node]);
+        }
+        limits.checkOutput(output.length(), data.length);
+        return output.toString();
+    }
+
+    /**
+     * Decodes the codes found with one table lookup, as {@link #decode(byte[], int, long, DecodeLimits)} does,
+     * for decoding from a position that may not be on a code boundary.
+     * Near the end of the data, where a lookup would read past the last code, one code is decoded instead.
+     *
+     * @param data      the compressed file
+     * @param offset    the index of the first compressed byte
+     * @param position  the bit the first code starts at
+     * @param totalBits the number of compressed bits
+     * @param output    where the decoded characters are appended
+     * @return the bit after the last code decoded, or -1 if the data ends first
+     */
+    long nextStep(byte[] data, int offset, long position, long totalBits, StringBuilder output) {
+        if (totalBits - position < TABLE_BITS) {
+            return next(data, offset, position, totalBits, output);
+        }
+        // The table bits are within the three bytes from the one the position is in
+        int index = offset + (int) (position >>> 3);
+        int window = (data[index] & 0xff) << 16 | (data[index + 1] & 0xff) << 8
+                | (index + 2 < data.length ? data[index + 2] & 0xff : 0);
+        int bits = (window >>> (24 - TABLE_BITS - (int) (position & 7))) & ((1 << TABLE_BITS) - 1);
+        int entry = entries[bits];
+        int count = entry & 0xff;
+        if (count > 0) {
+            int symbol = bits * SYMBOLS_PER_ENTRY;
+            for (int i = 0; i < count; i++) {
+                append(output, entrySymbols[symbol + i]);
+            }
+            return position + (entry >>> 8);
+        }
+        // The code is longer than the table, carry on down the tree from where the table finished
+        position += TABLE_BITS;
+        int node = entry >>> 8;
+        while (left[node] >= 0) {
+            if (position >= totalBits) {
+                return -1;
+            }
+            int bit = (data[offset + (int) (position >>> 3)] >>> (7 - (int) (position & 7))) & 1;
+            node = bit == 1 ? right[node] : left[node];
+            position++;
+        }
+        append(output, values[node]);
+        return position;
+    }
+
+    /**
+     * Decodes one code, going right for a 1 and left for a 0.
+     *
+     * @param data      the compressed file
+     * @param offset    the index of the first compressed byte
+     * @param position  the bit the code starts at
+     * @param totalBits the number of compressed bits
+     * @param output    where the decoded character is appended
+     * @return the bit after the code, or -1 if the data ends first
+     */
+    long next(byte[] data, int offset, long position, long totalBits, StringBuilder output) {
+        int node = 0;
+        while (left[node] >= 0) {
+            if (position >= totalBits) {
+                return -1;
+            }
+            int bit = (data[offset + (int) (position >>> 3)] >>> (7 - (int) (position & 7))) & 1;
+            node = bit == 1 ? right[node] : left[node];
+            position++;
+        }
+        append(output, values[node]);
+        return position;
+    }
+
+    /**
+     * Appends the characters of a symbol.
+     *
+     * @param output where the characters are appended
+     * @param symbol the code point, or a pair of characters
+     */
+    private void append(StringBuilder output, int symbol) {
+        if (Digrams.isPair(symbol)) {
+            output.appendCodePoint(digrams.first(symbol)).appendCodePoint(digrams.second(symbol));
+        } else {
+            output.appendCodePoint(symbol);
+        }
+    }
+}
@@ -11,6 +11,7 @@ import java.util.HashMap;
  * The type Decoder.
  */
 public class Decoder {
+    private static final TableCache<DecodeTree> TREE_CACHE = new TableCache<>(TableCache.DEFAULT_CAPACITY);
 
     /**
      * Function to decompress a compressed file.
@@ -21,71 +22,243 @@ public class Decoder {
      * @throws IOException a possible io exception
      */
     public static void decompress(String fileDir, String newFileDir, String outputFileName) throws IOException {
+        decompress(fileDir, newFileDir, outputFileName, new CodecMetrics());
+    }
+
+    /**
+     * Function to decompress a compressed file, recording the time spent in each stage.
+     *
+     * @param fileDir        the file dir of the compressed file
+     * @param newFileDir     the new file dir for the decompressed file
+     * @param outputFileName the output file name for the decompressed file
+     * @param metrics        the metrics to record to
+     * @throws IOException a possible io exception
+     */
+    public static void decompress(String fileDir, String newFileDir, String outputFileName, CodecMetrics metrics) throws IOException {
+        decompress(fileDir, newFileDir, outputFileName, metrics, DecodeLimits.unlimited());
+    }
+
+    /**
+     * Function to decompress a compressed file from an untrusted source, rejecting it if it breaks the limits.
+     *
+     * @param fileDir        the file dir of the compressed file
+     * @param newFileDir     the new file dir for the decompressed file
+     * @param outputFileName the output file name for the decompressed file
+     * @param metrics        the metrics to record to
+     * @param limits         the limits the file has to keep to
+     * @throws IOException if the file cannot be read or written, is not valid, or breaks the limits
+     */
+    public static void decompress(String fileDir, String newFileDir, String outputFileName, CodecMetrics metrics,
+                                  DecodeLimits limits) throws IOException {
         // Creates the name of the decompressed file
         newFileDir += "/" + outputFileName + "-uncompressed.txt";
 
-        //get the tree structure and the padding stored in the file
-        String[] treeAndPadding = getTreeStructureAndPadding(fileDir);
+        //read the file, the tree structure and padding are on the first two lines
+        long start = metrics.start();
+        byte[] file = readFileAsByteArray(fileDir);
+        String[] treeAndPadding = getTreeStructureAndPadding(file);
+        metrics.addBytesIn(file.length);
 
-        //read the binary data (compressed data) and store in a string
-        String file = readBinaryDataFromFile(fileDir, treeAndPadding[0].length() + treeAndPadding[1].length());
+        //the binary data (compressed data) starts after the two header lines
+        int offset = treeAndPadding[0].length() + treeAndPadding[1].length() + 2;
+        long totalBits = getTotalBits(file, offset, treeAndPadding[1]);
+        start = metrics.record(CodecMetrics.Stage.IO, start);
 
-        //Re-create the tree given the tree structure and padding
-        Node tree = createTree(treeAndPadding[0]);
+        //Re-create the tree given the tree structure and build its lookup table, or reuse the last one built from it
+        metrics.progress(CodecMetrics.Stage.BUILD, offset, file.length);
+        DecodeTree tree = getDecodeTree(treeAndPadding[0], limits);
+        start = metrics.record(CodecMetrics.Stage.BUILD, start);
 
         //decode the compressed data using the tree
-        String decodedFile = decode(tree, file, Integer.parseInt(treeAndPadding[1]));
+        metrics.progress(CodecMetrics.Stage.DECODE, offset, file.length);
+        String decodedFile = tree.decode(file, offset, totalBits, limits);
+        start = metrics.record(CodecMetrics.Stage.DECODE, start);
+        metrics.progress(CodecMetrics.Stage.IO, file.length, file.length);
 
         //save the uncompressed file
         saveFile(decodedFile, newFileDir);
+        metrics.addBytesOut(Files.size(Paths.get(newFileDir)));
+        metrics.record(CodecMetrics.Stage.IO, start);
+    }
+
+    /**
+     * Gets the cache of decode trees built for each tree structure.
+     *
+     * @return the tree cache
+     */
+    public static TableCache<?> getTreeCache() {
+        return TREE_CACHE;
     }
 
     /**
      * Gets the tree structure and padding from the compressed file.
      *
-     * @param fileDir the file dir of the compressed file
+     * @param file the contents of the compressed file
      * @return the tree structure and the padding
+     * @throws IOException if the file does not start with the two header lines
      */
-    private static String[] getTreeStructureAndPadding(String fileDir) {
-        String[] treeAndPadding = new String[2];
-        try {
-            BufferedReader reader = new BufferedReader(new FileReader(fileDir));
-            treeAndPadding[0] = reader.readLine();// Tree structure is on the first line of the file
-            treeAndPadding[1] = reader.readLine();// Padding is on the second line of the file
-            reader.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    static String[] getTreeStructureAndPadding(byte[] file) throws IOException {
+        // Tree structure is on the first line of the file and padding is on the second line
+        int treeEnd = indexOf(file, (byte) '\n', 0);
+        int paddingEnd = indexOf(file, (byte) '\n', treeEnd + 1);
+        if (treeEnd < 0 || paddingEnd < 0) {
+            throw new IOException("Not a compressed file, the header is missing");
         }
+        // The header is all digits and spaces
+        String[] treeAndPadding = new String[2];
+        treeAndPadding[0] = new String(file, 0, treeEnd, StandardCharsets.US_ASCII);
+        treeAndPadding[1] = new String(file, treeEnd + 1, paddingEnd - treeEnd - 1, StandardCharsets.US_ASCII);
         return treeAndPadding;
     }
 
     /**
-     * Read binary data from the compressed file.
+     * Works out the number of compressed bits from the size of the file and the padding line.
+     *
+     * @param file    the contents of the compressed file
+     * @param offset  the index of the first compressed byte
+     * @param padding the padding line
+     * @return the number of compressed bits, not counting the padding
+     * @throws IOException if the padding is not a number of bits from 0 to 7, or more than there are
+     */
+    static long getTotalBits(byte[] file, int offset, String padding) throws IOException {
+        int paddingBits = parseNumber(padding);
+        long bits = (long) Math.max(0, file.length - offset) * 8;
+        if (paddingBits > 7 || paddingBits > bits) {
+            throw new IOException("Invalid padding " + padding);
+        }
+        return bits - paddingBits;
+    }
+
+    /**
+     * Parses a number from a header, which is never negative.
+     *
+     * @param text the digits
+     * @return the number
+     * @throws IOException if the text is not a number that fits in an int
+     */
+    private static int parseNumber(String text) throws IOException {
+        if (text.isEmpty() || text.length() > 10) {
+            throw new IOException("Invalid number in header: " + text);
+        }
+        long number = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IOException("Invalid number in header: " + text);
+            }
+            number = number * 10 + (c - '0');
+        }
+        if (number > Integer.MAX_VALUE) {
+            throw new IOException("Invalid number in header: " + text);
+        }
+        return (int) number;
+    }
+
+    /**
+     * Finds the first index of a byte.
      *
-     * @param fileDir the file dir of the compressed file
-     * @param offset  the offset of bits due to the padding
-     * @return the compressed data as a string
+     * @param data  the bytes to search
+     * @param value the byte to find
+     * @param from  the index to start at
+     * @return the index, or -1 if it is not found
      */
-    private static String readBinaryDataFromFile(String fileDir, int offset) {
-        StringBuilder bits = new StringBuilder();
-        byte[] array = readFileAsByteArray(fileDir);
-        for (int i = offset + 2; i < array.length; i++) {
-            byte b = array[i];
-            int result = b & 0xff;
-            String binary = Integer.toBinaryString(result);
-
-            if (binary.length() != 8) {
-                StringBuilder fullByte = new StringBuilder();
-                for (int j = 0; j < 8 - binary.length(); j++) {
-                    fullByte.append("0");
+    private static int indexOf(byte[] data, byte value, int from) {
+        for (int i = Math.max(0, from); i < data.length; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the decode tree for a tree structure, building it only if it is not in the cache.
+     *
+     * @param treeStructure the structure of the tree
+     * @return the decode tree
+     */
+    static DecodeTree getDecodeTree(String treeStructure) {
+        return TREE_CACHE.get(treeStructure, structure -> {
+            // An empty file has no characters in its tree structure
+            if (structure.isEmpty()) {
+                return new DecodeTree(null);
+            }
+            String[] data = structure.split(" ");
+            Digrams digrams = Digrams.fromTreeStructure(data);
+            return new DecodeTree(createTree(data, digrams), digrams);
+        });
+    }
+
+    /**
+     * Gets the decode tree for a tree structure read from a file, checking the structure before anything is built.
+     * <p>
+     * The number of characters is checked before any of them are parsed, and the length of the longest code
+     * before any nodes are made. The frequencies are not checked against the output limits, because a file
+     * written with a saved encoder holds the frequencies of the file the encoder was made from, so the output
+     * is only limited while it is decoded.
+     *
+     * @param treeStructure the structure of the tree
+     * @param limits        the limits the file has to keep to
+     * @return the decode tree
+     * @throws IOException if the structure is not valid or breaks the limits
+     */
+    static DecodeTree getDecodeTree(String treeStructure, DecodeLimits limits) throws IOException {
+        // Every number is followed by a space
+        long numbers = 0;
+        for (int i = 0; i < treeStructure.length(); i++) {
+            if (treeStructure.charAt(i) == ' ') {
+                numbers++;
+            }
+        }
+        limits.checkAlphabetSize(numbers / 2);
+        if (treeStructure.isEmpty()) {
+            return getDecodeTree(treeStructure);
+        }
+
+        String[] data = treeStructure.split(" ");
+        if (data.length != numbers || data.length % 2 != 0 || data.length == 0) {
+            throw new IOException("Invalid tree structure");
+        }
+        int[] frequencies = new int[data.length / 2];
+        boolean anyUnused = false;
+        long total = 0;
+        for (int i = 0; i < data.length; i += 2) {
+            // A pair of characters is two code points joined by a '+' and decodes to both of them
+            int separator = data[i].indexOf(Digrams.SEPARATOR);
+            String[] characters = separator < 0 ? new String[]{data[i]}
+                    : new String[]{data[i].substring(0, separator), data[i].substring(separator + 1)};
+            for (String character : characters) {
+                if (!Character.isValidCodePoint(parseNumber(character))) {
+                    throw new IOException("Invalid character in tree structure: " + data[i]);
                 }
-                fullByte.append(binary);
-                bits.append(fullByte);
-            } else {
-                bits.append(binary);
             }
+            frequencies[i / 2] = parseNumber(data[i + 1]);
+            if (frequencies[i / 2] == 0) {
+                anyUnused = true;
+            }
+            total += frequencies[i / 2];
+        }
+        // The frequencies come from the characters of one string
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("Invalid tree structure");
+        }
+
+        // Breaking ties in favour of the leaves gives the shortest longest code of any Huffman tree, so if that
+        // is too long the tree this builds is as well. Characters that never appear can make the tree shallower
+        // than the code lengths, which leave them out
+        if (!anyUnused) {
+            int[] lengths = new int[frequencies.length];
+            HuffmanTree.getCodeLengths(frequencies, lengths, Integer.MAX_VALUE);
+            int maxLength = 0;
+            for (int length : lengths) {
+                maxLength = Math.max(maxLength, length);
+            }
+            limits.checkCodeLength(maxLength);
         }
-        return bits.toString();
+
+        DecodeTree tree = getDecodeTree(treeStructure);
+        limits.checkCodeLength(tree.getMaxCodeLength());
+        return tree;
     }
 
     /**
@@ -94,11 +267,28 @@ public class Decoder {
      * @param treeStructure the structure of the tree
      * @return the root node of the tree
      */
-    private static Node createTree(String treeStructure) {
-        HashMap<Character, Integer> characterFrequencies = new HashMap<>();
+    static Node createTree(String treeStructure) {
         String[] data = treeStructure.split(" ");
+        return createTree(data, Digrams.fromTreeStructure(data));
+    }
+
+    /**
+     * Create a tree from the given tree structure, split at the spaces.
+     *
+     * @param data    the structure of the tree, symbols and frequencies in turn
+     * @param digrams the pairs of characters in the structure, or null if there are none
+     * @return the root node of the tree, or null if there are no characters
+     */
+    static Node createTree(String[] data, Digrams digrams) {
+        // Each character is stored as its code point, files from before code points were used
+        // have surrogate pairs stored as two characters which still decode to the same text.
+        // Pairs of characters get the same symbols the encoder gave them, as those only depend on which pairs there are
+        HashMap<Integer, Integer> characterFrequencies = new HashMap<>();
         for (int i = 0; i < data.length; i += 2) {
-            characterFrequencies.put((char) Integer.parseInt(data[i]), Integer.parseInt(data[i + 1]));
+            int separator = data[i].indexOf(Digrams.SEPARATOR);
+            int symbol = separator < 0 ? Integer.parseInt(data[i]) : digrams.symbolOf(
+                    Integer.parseInt(data[i].substring(0, separator)), Integer.parseInt(data[i].substring(separator + 1)));
+            characterFrequencies.put(symbol, Integer.parseInt(data[i + 1]));
         }
 
         //get the leaf nodes of the tree which can be used to traverse it
@@ -107,7 +297,7 @@ public class Decoder {
         //fills the tree using the character frequencies
         HuffmanTree.fillTree(tree);
 
-        return tree.get(0);
+        return tree.isEmpty() ? null : tree.get(0);
     }
 
     /**
@@ -115,44 +305,10 @@ public class Decoder {
      *
      * @param fileDir the file dir for the compressed file
      * @return the byte array of the compressed file
+     * @throws IOException if the file cannot be read
      */
-    private static byte[] readFileAsByteArray(String fileDir) {
-        byte[] array = null;
-        try {
-            array = Files.readAllBytes(Paths.get(fileDir));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return array;
-    }
-
-    /**
-     * Decode the compressed data using the built root node.
-     *
-     * @param rootNode       the root node
-     * @param compressedData the compressed data
-     * @param padding        the padding of bits
-     * @return the decoded string
-     */
-    private static String decode(Node rootNode, String compressedData, int padding) {
-        StringBuilder decodedData = new StringBuilder();
-        Node currentNode = rootNode;
-        int index = 0;
-        //using the compressed data go right if it is a 1 and left if it is a 0
-        //if a leaf node is reached then that is the character to append to the decoded data
-        while (index < compressedData.length() - padding) {
-            while (!currentNode.isLeafNode()) {
-                if (compressedData.charAt(index) == '1') {
-                    currentNode = currentNode.getChild_right();
-                } else if (compressedData.charAt(index) == '0') {
-                    currentNode = currentNode.getChild_left();
-                }
-                index++;
-            }
-            decodedData.append(currentNode.getValue());
-            currentNode = rootNode;
-        }
-        return decodedData.toString();
+    static byte[] readFileAsByteArray(String fileDir) throws IOException {
+        return Files.readAllBytes(Paths.get(fileDir));
     }
 
     /**
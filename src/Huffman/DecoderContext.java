@@ -0,0 +1,147 @@
+package Huffman;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The buffers and tables used by {@link BlockDecoder}, kept so that they can be reused between jobs.
+ * <p>
+ * Once the buffers have grown to fit the largest block, decompressing more data does not allocate.
+ * A context must only be used by one decoder at a time, {@link #local()} gives each thread its own.
+ */
+public class DecoderContext {
+    private static final ThreadLocal<DecoderContext> LOCAL = ThreadLocal.withInitial(DecoderContext::new);
+
+    private final CodeTable table = new CodeTable();
+    private final BitReader bitReader = new BitReader();
+    private final BitReader[] streamReaders = {new BitReader(), new BitReader(), new BitReader(), new BitReader()};
+    private final byte[] header = new byte[BlockFormat.BLOCK_HEADER_SIZE + CodeTable.HEADER_SIZE];
+    private final ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+    private byte[] compressed = new byte[0];
+    private ByteBuffer compressedBuffer = ByteBuffer.wrap(compressed);
+    private byte[] uncompressed = new byte[0];
+    private ByteBuffer uncompressedBuffer = ByteBuffer.wrap(uncompressed);
+    private boolean hasTable = false;
+
+    /**
+     * Gets the context belonging to the current thread.
+     *
+     * @return the context
+     */
+    public static DecoderContext local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Forgets the code table of the previous job. The buffers are kept.
+     */
+    public void reset() {
+        hasTable = false;
+    }
+
+    /**
+     * Gets the code table of the current block.
+     *
+     * @return the code table
+     */
+    CodeTable getTable() {
+        return table;
+    }
+
+    /**
+     * Gets the bit reader used to decode blocks.
+     *
+     * @return the bit reader
+     */
+    BitReader getBitReader() {
+        return bitReader;
+    }
+
+    /**
+     * Gets one bit reader for each stream of an interleaved block.
+     *
+     * @return the bit readers
+     */
+    BitReader[] getStreamReaders() {
+        return streamReaders;
+    }
+
+    /**
+     * Gets a buffer big enough for a block header and code table.
+     *
+     * @return the header buffer
+     */
+    byte[] getHeader() {
+        return header;
+    }
+
+    /**
+     * Gets a buffer to read compressed bytes into.
+     *
+     * @param length the number of bytes needed
+     * @return a buffer with at least length bytes
+     */
+    byte[] getCompressed(int length) {
+        if (compressed.length < length) {
+            compressed = new byte[length];
+            compressedBuffer = ByteBuffer.wrap(compressed);
+        }
+        return compressed;
+    }
+
+    /**
+     * Gets a buffer to decode a block into.
+     *
+     * @param length the number of bytes needed
+     * @return a buffer with at least length bytes
+     */
+    byte[] getUncompressed(int length) {
+        if (uncompressed.length < length) {
+            uncompressed = new byte[length];
+            uncompressedBuffer = ByteBuffer.wrap(uncompressed);
+        }
+        return uncompressed;
+    }
+
+    /**
+     * Gets the header buffer wrapped as a ByteBuffer.
+     *
+     * @return the header buffer
+     */
+    ByteBuffer getHeaderBuffer() {
+        return headerBuffer;
+    }
+
+    /**
+     * Gets the buffer returned by {@link #getCompressed(int)} wrapped as a ByteBuffer.
+     *
+     * @return the compressed buffer
+     */
+    ByteBuffer getCompressedBuffer() {
+        return compressedBuffer;
+    }
+
+    /**
+     * Gets the buffer returned by {@link #getUncompressed(int)} wrapped as a ByteBuffer.
+     *
+     * @return the uncompressed buffer
+     */
+    ByteBuffer getUncompressedBuffer() {
+        return uncompressedBuffer;
+    }
+
+    /**
+     * Checks if a code table has been read in the current job.
+     *
+     * @return true if a block can use the same table
+     */
+    boolean hasTable() {
+        return hasTable;
+    }
+
+    /**
+     * Records that a code table has been read.
+     */
+    void setTableRead() {
+        hasTable = true;
+    }
+}
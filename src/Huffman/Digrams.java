@@ -0,0 +1,361 @@
+package Huffman;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Pairs of characters that are given codes of their own, on top of the single characters.
+ * <p>
+ * A code for a single character is at least one bit long, and pairs such as "e " and "th" are so common in
+ * English and logs that coding them together saves more than the extra symbols cost. The most frequent pairs
+ * become extra symbols numbered from {@link #FIRST_SYMBOL}, above every code point, in the order of the pairs
+ * sorted by first and then second code point. Because the numbers only depend on which pairs there are,
+ * the decoder gives each pair in the header the same symbol without it being written down.
+ * <p>
+ * The text is split into symbols greedily from left to right: if a character and the one after it are a pair,
+ * they are coded together, otherwise the character is coded on its own.
+ */
+final class Digrams {
+    /**
+     * The symbol of the first pair.
+     */
+    static final int FIRST_SYMBOL = Character.MAX_CODE_POINT + 1;
+    /**
+     * The most pairs that can be chosen.
+     */
+    static final int MAX_COUNT = 1 << 16;
+    /**
+     * Separates the two code points of a pair in the tree structure.
+     */
+    static final char SEPARATOR = '+';
+
+    // The code points of each pair, first then second, sorted
+    private final int[] pairs;
+    // Open addressing hash table of pair keys, holding the index of the pair or -1
+    private final int[] slots;
+
+    /**
+     * Instantiates new Digrams.
+     *
+     * @param pairs the code points of each pair, first then second, in any order
+     */
+    Digrams(int[] pairs) {
+        long[] keys = new long[pairs.length / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = key(pairs[2 * i], pairs[2 * i + 1]);
+        }
+        Arrays.sort(keys);
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                keys[count++] = keys[i];
+            }
+        }
+        this.pairs = new int[2 * count];
+        this.slots = new int[Integer.highestOneBit(Math.max(1, count)) * 4];
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < count; i++) {
+            this.pairs[2 * i] = (int) (keys[i] >>> 21);
+            this.pairs[2 * i + 1] = (int) (keys[i] & 0x1fffff);
+            slots[find(this.pairs[2 * i], this.pairs[2 * i + 1])] = i;
+        }
+    }
+
+    /**
+     * Picks the pairs of adjacent characters that appear most often in a text.
+     *
+     * @param text  the text
+     * @param count the most pairs to pick
+     * @return the pairs, which may be fewer than asked for if the text does not have that many repeated pairs
+     */
+    static Digrams select(String text, int count) {
+        if (count < 0 || count > MAX_COUNT) {
+            throw new IllegalArgumentException("Number of digrams must be between 0 and " + MAX_COUNT + ": " + count);
+        }
+        PairCounts pairCounts = new PairCounts();
+        int previous = -1;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (previous >= 0) {
+                pairCounts.add(key(previous, codePoint));
+            }
+            previous = codePoint;
+        }
+        long[] keys = pairCounts.keys;
+        int[] counts = pairCounts.counts;
+
+        // Sort by count, most first, keeping the slot in the low bits; a pair seen once is never worth a symbol
+        long[] ranked = new long[pairCounts.size];
+        int candidates = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != -1 && counts[slot] > 1) {
+                ranked[candidates++] = (long) counts[slot] << 32 | slot;
+            }
+        }
+        Arrays.sort(ranked, 0, candidates);
+        int chosen = Math.min(count, candidates);
+        int[] pairs = new int[2 * chosen];
+        for (int i = 0; i < chosen; i++) {
+            long key = keys[(int) ranked[candidates - 1 - i]];
+            pairs[2 * i] = (int) (key >>> 21);
+            pairs[2 * i + 1] = (int) (key & 0x1fffff);
+        }
+        return new Digrams(pairs);
+    }
+
+    /**
+     * Reads the pairs in a tree structure, where each is written as two code points joined by {@link #SEPARATOR}.
+     *
+     * @param data the tree structure split at the spaces, symbols and frequencies in turn
+     * @return the pairs, or null if there are none
+     */
+    static Digrams fromTreeStructure(String[] data) {
+        int[] pairs = new int[0];
+        int count = 0;
+        for (int i = 0; i < data.length; i += 2) {
+            int separator = data[i].indexOf(SEPARATOR);
+            if (separator >= 0) {
+                if (2 * count == pairs.length) {
+                    pairs = Arrays.copyOf(pairs, Math.max(16, pairs.length * 2));
+                }
+                pairs[2 * count] = Integer.parseInt(data[i].substring(0, separator));
+                pairs[2 * count + 1] = Integer.parseInt(data[i].substring(separator + 1));
+                count++;
+            }
+        }
+        return count == 0 ? null : new Digrams(Arrays.copyOf(pairs, 2 * count));
+    }
+
+    /**
+     * Gets the number of pairs.
+     *
+     * @return the number of pairs
+     */
+    int size() {
+        return pairs.length / 2;
+    }
+
+    /**
+     * Gets the code points of each pair.
+     *
+     * @return a copy of the code points, first then second for each pair in the order of their symbols
+     */
+    int[] toArray() {
+        return pairs.clone();
+    }
+
+    /**
+     * Keeps only the pairs that appear in a set of symbols.
+     *
+     * @param symbols the symbols, such as the keys of the frequencies from {@link #countSymbols(String)}
+     * @return the pairs that are in the set, numbered again from {@link #FIRST_SYMBOL}
+     */
+    Digrams retainAll(Set<Integer> symbols) {
+        int[] kept = new int[pairs.length];
+        int count = 0;
+        for (int i = 0; i < size(); i++) {
+            if (symbols.contains(FIRST_SYMBOL + i)) {
+                kept[2 * count] = pairs[2 * i];
+                kept[2 * count + 1] = pairs[2 * i + 1];
+                count++;
+            }
+        }
+        return new Digrams(Arrays.copyOf(kept, 2 * count));
+    }
+
+    /**
+     * Checks whether a symbol is a pair rather than a single code point.
+     *
+     * @param symbol the symbol
+     * @return true if the symbol is a pair
+     */
+    static boolean isPair(int symbol) {
+        return symbol >= FIRST_SYMBOL;
+    }
+
+    /**
+     * Gets the symbol of a pair.
+     *
+     * @param first  the first code point
+     * @param second the second code point
+     * @return the symbol, or -1 if the characters are not a pair
+     */
+    int symbolOf(int first, int second) {
+        int index = slots[find(first, second)];
+        return index < 0 ? -1 : FIRST_SYMBOL + index;
+    }
+
+    /**
+     * Gets the first code point of a pair.
+     *
+     * @param symbol the symbol of the pair
+     * @return the code point
+     */
+    int first(int symbol) {
+        return pairs[2 * (symbol - FIRST_SYMBOL)];
+    }
+
+    /**
+     * Gets the second code point of a pair.
+     *
+     * @param symbol the symbol of the pair
+     * @return the code point
+     */
+    int second(int symbol) {
+        return pairs[2 * (symbol - FIRST_SYMBOL) + 1];
+    }
+
+    /**
+     * Writes a symbol the way it appears in the tree structure.
+     *
+     * @param symbol the symbol
+     * @param out    where it is written
+     */
+    void appendToken(int symbol, StringBuilder out) {
+        if (isPair(symbol)) {
+            out.append(first(symbol)).append(SEPARATOR).append(second(symbol));
+        } else {
+            out.append(symbol);
+        }
+    }
+
+    /**
+     * Counts how often each symbol appears when a text is split greedily into pairs and single characters.
+     *
+     * @param text the text
+     * @return the frequencies keyed by symbol, added in the order the symbols are first seen
+     */
+    HashMap<Integer, Integer> countSymbols(String text) {
+        SymbolIndex symbols = new SymbolIndex();
+        int[] counts = new int[16];
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            int symbol = codePoint;
+            if (i < text.length()) {
+                int next = text.codePointAt(i);
+                int pair = symbolOf(codePoint, next);
+                if (pair >= 0) {
+                    symbol = pair;
+                    i += Character.charCount(next);
+                }
+            }
+            int index = symbols.add(symbol);
+            if (index == counts.length) {
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+            counts[index]++;
+        }
+        HashMap<Integer, Integer> frequencies = new HashMap<>();
+        for (int i = 0; i < symbols.size(); i++) {
+            frequencies.put(symbols.symbolAt(i), counts[i]);
+        }
+        return frequencies;
+    }
+
+    /**
+     * Works out the key of a pair, with 21 bits for each code point.
+     *
+     * @param first  the first code point
+     * @param second the second code point
+     * @return the key
+     */
+    private static long key(int first, int second) {
+        return (long) first << 21 | second;
+    }
+
+    /**
+     * Works out where a key starts looking in a hash table.
+     *
+     * @param key  the key
+     * @param mask the size of the table minus 1
+     * @return the slot
+     */
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 40) & mask;
+    }
+
+    /**
+     * Finds the slot holding a pair, or the empty slot where it would go.
+     *
+     * @param first  the first code point
+     * @param second the second code point
+     * @return the slot
+     */
+    private int find(int first, int second) {
+        int mask = slots.length - 1;
+        int slot = slot(key(first, second), mask);
+        while (slots[slot] >= 0 && (pairs[2 * slots[slot]] != first || pairs[2 * slots[slot] + 1] != second)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * How often each pair appears, in an open addressing hash table so nothing is boxed.
+     */
+    private static final class PairCounts {
+        private long[] keys = newKeys(1 << 12);
+        private int[] counts = new int[keys.length];
+        private int size = 0;
+
+        /**
+         * Adds one to the count of a pair.
+         *
+         * @param key the key of the pair
+         */
+        void add(long key) {
+            int slot = find(keys, key);
+            if (keys[slot] == -1) {
+                keys[slot] = key;
+                size++;
+            }
+            counts[slot]++;
+            // Keep the table at most half full so the searches stay short
+            if (size * 2 > keys.length) {
+                long[] oldKeys = keys;
+                int[] oldCounts = counts;
+                keys = newKeys(oldKeys.length * 2);
+                counts = new int[keys.length];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != -1) {
+                        int newSlot = find(keys, oldKeys[i]);
+                        keys[newSlot] = oldKeys[i];
+                        counts[newSlot] = oldCounts[i];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Makes an empty table.
+         *
+         * @param size the number of slots
+         * @return the table
+         */
+        private static long[] newKeys(int size) {
+            long[] keys = new long[size];
+            Arrays.fill(keys, -1);
+            return keys;
+        }
+
+        /**
+         * Finds the slot holding a key, or the empty slot where it would go.
+         *
+         * @param keys the table
+         * @param key  the key
+         * @return the slot
+         */
+        private static int find(long[] keys, long key) {
+            int mask = keys.length - 1;
+            int slot = slot(key, mask);
+            while (keys[slot] != key && keys[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
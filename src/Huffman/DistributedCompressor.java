@@ -0,0 +1,651 @@
+package Huffman;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Compresses one large file with several {@link CompressionWorker} processes, map-reduce style.
+ * <p>
+ * The input is cut into shards by byte range and the work is done in two rounds. First every worker counts the
+ * bytes in the shards it is given, and the counts are summed into one code table for the whole file. Then every
+ * worker compresses its shards into the work directory, starting from that table, so a shard only pays for a
+ * table of its own where its data is different enough. The shards are finally copied one after another into a
+ * single block compressed file with a {@link BlockIndex}, which {@link BlockDecoder} and {@link BlockAppender}
+ * read like any other.
+ * <p>
+ * Local workers are started as child JVMs. Workers on other hosts can join by connecting to the coordinator
+ * ({@link #setExternalWorkers(int)}), as long as they see the input and the work directory at the same paths.
+ * A shard whose worker drops its connection, or does not answer within the reply timeout, is given to another worker.
+ * <p>
+ * The compressed file starts with an empty {@link BlockFormat#NEW_TABLE} block holding the shared table, and
+ * another is put before each shard that follows one which changed table, so every shard starts with the table
+ * its worker started from.
+ */
+public class DistributedCompressor {
+    /**
+     * The default number of bytes in each shard.
+     */
+    public static final long DEFAULT_SHARD_SIZE = 64L << 20;
+    /**
+     * The largest number of bytes in a shard, which is mapped into memory by its worker.
+     */
+    public static final long MAX_SHARD_SIZE = 1L << 30;
+    /**
+     * How long to wait for a worker to connect and say it is one, in milliseconds.
+     */
+    private static final int CONNECT_TIMEOUT = 60_000;
+    /**
+     * The default for how long to wait for a worker to answer, in milliseconds.
+     */
+    public static final int DEFAULT_REPLY_TIMEOUT = 600_000;
+    /**
+     * The number of bytes in the empty block that sets the shared table.
+     */
+    private static final int RESET_BLOCK_SIZE = BlockFormat.BLOCK_HEADER_SIZE + CodeTable.HEADER_SIZE;
+
+    private int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int externalWorkers = 0;
+    private int port = 0;
+    private InetAddress listenAddress = InetAddress.getLoopbackAddress();
+    private long shardSize = DEFAULT_SHARD_SIZE;
+    private int blockSize = BlockEncoder.DEFAULT_BLOCK_SIZE;
+    private CompressionLevel level = CompressionLevel.DEFAULT;
+    private int replyTimeout = DEFAULT_REPLY_TIMEOUT;
+    private Path workDirectory;
+
+    /**
+     * Compresses a file from the command line.
+     *
+     * @param args the input file, the output file and optionally the number of local workers
+     * @throws IOException if the files cannot be used or a worker fails
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: DistributedCompressor input output [workers]");
+            System.exit(2);
+        }
+        DistributedCompressor compressor = new DistributedCompressor();
+        if (args.length == 3) {
+            compressor.setWorkers(Integer.parseInt(args[2]));
+        }
+        long start = System.nanoTime();
+        long size = compressor.compress(Paths.get(args[0]), Paths.get(args[1]));
+        System.out.printf("%s: %d bytes in %.1f ms%n", args[1], size, (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Sets the number of worker JVMs started on this machine.
+     *
+     * @param workers the number of workers, which may be 0 if all workers are external
+     */
+    public void setWorkers(int workers) {
+        if (workers < 0) {
+            throw new IllegalArgumentException("Number of workers cannot be negative");
+        }
+        this.workers = workers;
+    }
+
+    /**
+     * Sets the number of workers started by hand that the coordinator waits for, as well as the local ones.
+     *
+     * @param externalWorkers the number of external workers
+     */
+    public void setExternalWorkers(int externalWorkers) {
+        if (externalWorkers < 0) {
+            throw new IllegalArgumentException("Number of external workers cannot be negative");
+        }
+        this.externalWorkers = externalWorkers;
+    }
+
+    /**
+     * Sets the port workers connect to.
+     *
+     * @param port the port, or 0 to pick a free one
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Sets the address workers connect to, which is the loopback address unless there are external workers.
+     *
+     * @param listenAddress the address
+     */
+    public void setListenAddress(InetAddress listenAddress) {
+        this.listenAddress = listenAddress;
+    }
+
+    /**
+     * Sets the number of bytes in each shard.
+     *
+     * @param shardSize the number of bytes, at most {@link #MAX_SHARD_SIZE}
+     */
+    public void setShardSize(long shardSize) {
+        if (shardSize <= 0 || shardSize > MAX_SHARD_SIZE) {
+            throw new IllegalArgumentException("Shard size must be between 1 and " + MAX_SHARD_SIZE + ": " + shardSize);
+        }
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * Sets the largest number of uncompressed bytes in each block.
+     *
+     * @param blockSize the number of bytes
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Sets the compression level the workers use.
+     *
+     * @param level the compression level
+     */
+    public void setLevel(CompressionLevel level) {
+        this.level = level;
+    }
+
+    /**
+     * Sets how long to wait for a worker to count or compress a shard. A worker that takes longer is treated
+     * like one whose connection was lost, and its shard is given to another worker.
+     *
+     * @param replyTimeout the time in milliseconds, which has to allow for the largest shard
+     */
+    public void setReplyTimeout(int replyTimeout) {
+        if (replyTimeout <= 0) {
+            throw new IllegalArgumentException("Reply timeout must be positive: " + replyTimeout);
+        }
+        this.replyTimeout = replyTimeout;
+    }
+
+    /**
+     * Sets where the compressed shards are written before they are joined, which every worker must be able
+     * to write to. By default a temporary directory is made next to the output.
+     *
+     * @param workDirectory the directory
+     */
+    public void setWorkDirectory(Path workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    /**
+     * Compresses a file.
+     *
+     * @param file       the file to compress
+     * @param compressed the compressed file, replaced if it exists
+     * @return the number of bytes in the compressed file
+     * @throws IOException if the files cannot be used, a worker fails or no worker connects
+     */
+    public long compress(Path file, Path compressed) throws IOException {
+        Path input = file.toAbsolutePath();
+        Path output = compressed.toAbsolutePath();
+        List<Shard> shards = split(Files.size(input));
+        if (shards.isEmpty()) {
+            return join(output, null, shards);
+        }
+        if (workers + externalWorkers == 0) {
+            throw new IllegalStateException("No workers to compress with");
+        }
+
+        Path parent = output.getParent() != null ? output.getParent() : Paths.get(".").toAbsolutePath();
+        Path directory = workDirectory != null ? Files.createDirectories(workDirectory.toAbsolutePath())
+                : Files.createTempDirectory(parent, "huffman-shards");
+        List<Process> processes = new ArrayList<>();
+        List<Socket> sockets = new ArrayList<>();
+        List<Path> shardFiles = new ArrayList<>();
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "huffman-coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (ServerSocket server = new ServerSocket(port, 50, listenAddress)) {
+            server.setSoTimeout(CONNECT_TIMEOUT);
+            for (int i = 0; i < workers; i++) {
+                processes.add(startWorker(server));
+            }
+            for (int i = 0; i < workers + externalWorkers; i++) {
+                sockets.add(accept(server, replyTimeout));
+            }
+
+            long[] totals = new long[CodeTable.ALPHABET_SIZE];
+            List<Connection> connections = new ArrayList<>();
+            for (Socket socket : sockets) {
+                connections.add(new Connection(connections.size(), socket));
+            }
+            run(executor, connections, shards, (connection, shard) -> {
+                long[] histogram = connection.count(input, shard);
+                synchronized (totals) {
+                    for (int symbol = 0; symbol < totals.length; symbol++) {
+                        totals[symbol] += histogram[symbol];
+                    }
+                }
+            });
+            int[] smoothed = new int[CodeTable.ALPHABET_SIZE];
+            ArchiveWriter.smooth(totals, smoothed);
+            CodeTable table = CodeTable.fromHistogram(smoothed);
+            byte[] tableBytes = new byte[CodeTable.HEADER_SIZE];
+            table.write(ByteBuffer.wrap(tableBytes), 0);
+
+            run(executor, connections, shards, (connection, shard) -> {
+                // A worker that timed out may still be writing, so the worker trying again writes another file
+                Path shardFile = directory.resolve("shard-" + shard.number + "-" + connection.number + ".huf");
+                synchronized (shardFiles) {
+                    shardFiles.add(shardFile);
+                }
+                shard.blocks = connection.compress(input, shard, shardFile, blockSize, level, tableBytes);
+                shard.file = shardFile;
+            });
+            for (Connection connection : connections) {
+                connection.shutdown();
+            }
+            long size = join(output, tableBytes, shards);
+            for (Process process : processes) {
+                process.waitFor(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            return size;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing " + input);
+        } finally {
+            executor.shutdownNow();
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            for (Process process : processes) {
+                process.destroy();
+            }
+            for (Path shardFile : shardFiles) {
+                Files.deleteIfExists(shardFile);
+            }
+            if (workDirectory == null) {
+                Files.deleteIfExists(directory);
+            }
+        }
+    }
+
+    /**
+     * Cuts the input into shards.
+     *
+     * @param size the number of bytes in the input
+     * @return the shards, in order
+     */
+    private List<Shard> split(long size) {
+        // Shards hold whole blocks, so the blocks of the joined file are the same as a single encoder would make
+        long length = Math.max(blockSize, shardSize / blockSize * blockSize);
+        List<Shard> shards = new ArrayList<>();
+        for (long offset = 0; offset < size; offset += length) {
+            shards.add(new Shard(shards.size(), offset, (int) Math.min(length, size - offset)));
+        }
+        return shards;
+    }
+
+    /**
+     * Starts a worker JVM on this machine, which connects back to the coordinator.
+     *
+     * @param server the socket the worker connects to
+     * @return the worker process
+     * @throws IOException if the JVM cannot be started
+     */
+    private static Process startWorker(ServerSocket server) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                CompressionWorker.class.getName(), server.getInetAddress().getHostAddress(),
+                Integer.toString(server.getLocalPort()));
+        builder.inheritIO();
+        return builder.start();
+    }
+
+    /**
+     * Waits for a worker to connect and checks that it is one.
+     *
+     * @param server       the socket workers connect to
+     * @param replyTimeout how long the worker's answers are waited for once it has connected, in milliseconds
+     * @return the connection
+     * @throws IOException if no worker connects in time or the connection is not from a worker
+     */
+    private static Socket accept(ServerSocket server, int replyTimeout) throws IOException {
+        Socket socket;
+        try {
+            socket = server.accept();
+        } catch (SocketTimeoutException e) {
+            throw new IOException("Timed out waiting for a worker to connect", e);
+        }
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(CONNECT_TIMEOUT);
+            try {
+                if (new DataInputStream(socket.getInputStream()).readInt() != CompressionWorker.MAGIC) {
+                    throw new IOException("Connection from " + socket.getRemoteSocketAddress() + " is not a worker");
+                }
+            } catch (SocketTimeoutException e) {
+                throw new IOException("Connection from " + socket.getRemoteSocketAddress()
+                        + " did not say it was a worker in time", e);
+            }
+            socket.setSoTimeout(replyTimeout);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives every shard to a worker, one shard per worker at a time, and waits for them all to be done.
+     * A shard whose worker loses its connection goes back in the queue for another worker.
+     *
+     * @param executor    the threads that talk to the workers
+     * @param connections the workers
+     * @param shards      the shards
+     * @param task        what to do with each shard
+     * @throws IOException          if a worker fails a shard or every connection is lost
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void run(ExecutorService executor, List<Connection> connections, List<Shard> shards,
+                            ShardTask task) throws IOException, InterruptedException {
+        BlockingQueue<Shard> queue = new LinkedBlockingQueue<>(shards);
+        CountDownLatch done = new CountDownLatch(shards.size());
+        List<Future<?>> futures = new ArrayList<>();
+        for (Connection connection : connections) {
+            if (connection.lost) {
+                continue;
+            }
+            futures.add(executor.submit(() -> {
+                Shard shard;
+                while ((shard = queue.poll()) != null) {
+                    try {
+                        task.run(connection, shard);
+                        done.countDown();
+                    } catch (WorkerException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        // The connection is gone or the worker took too long, so another worker picks up the shard
+                        connection.close();
+                        queue.add(shard);
+                        throw e;
+                    }
+                }
+                return null;
+            }));
+        }
+
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof WorkerException) {
+                    throw (WorkerException) e.getCause();
+                }
+                failure = new IOException("Lost a worker", e.getCause());
+            }
+        }
+        // Shards given back by a lost worker after the others finished are retried by whoever is left
+        if (done.getCount() > 0) {
+            List<Connection> remaining = new ArrayList<>();
+            for (Connection connection : connections) {
+                if (!connection.lost) {
+                    remaining.add(connection);
+                }
+            }
+            if (remaining.isEmpty()) {
+                throw failure != null ? failure : new IOException("No workers left");
+            }
+            run(executor, remaining, new ArrayList<>(queue), task);
+        }
+    }
+
+    /**
+     * Writes the compressed file from the compressed shards.
+     *
+     * @param output     the compressed file
+     * @param tableBytes the shared code table, or null if there are no shards
+     * @param shards     the compressed shards, in order
+     * @return the number of bytes in the compressed file
+     * @throws IOException if a file cannot be read or written
+     */
+    private static long join(Path output, byte[] tableBytes, List<Shard> shards) throws IOException {
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(BlockFormat.FRAME_SIZE);
+            header.putInt(BlockFormat.MAGIC).put((byte) BlockFormat.END).flip();
+            BlockIndex.writeFully(out, header, 0);
+
+            BlockIndex index = new BlockIndex();
+            boolean changedTable = true;
+            for (Shard shard : shards) {
+                if (changedTable) {
+                    ByteBuffer reset = ByteBuffer.allocate(RESET_BLOCK_SIZE);
+                    reset.put((byte) BlockFormat.NEW_TABLE).putInt(0).put(tableBytes).putInt(0).flip();
+                    // The first type byte replaces the end marker, which BlockIndex writes last
+                    if (index.getEndOffset() == 4) {
+                        reset.position(1);
+                    }
+                    BlockIndex.writeFully(out, reset, index.getEndOffset() + reset.position());
+                    index.add(BlockFormat.NEW_TABLE, 0, RESET_BLOCK_SIZE);
+                    changedTable = false;
+                }
+                try (FileChannel in = FileChannel.open(shard.file, StandardOpenOption.READ)) {
+                    long position = index.getEndOffset();
+                    long size = in.size();
+                    for (long copied = 0; copied < size; ) {
+                        copied += out.transferFrom(in, position + copied, size - copied);
+                    }
+                }
+                for (BlockInfo block : shard.blocks) {
+                    int type = block.type & BlockFormat.TABLE_MASK;
+                    index.add(type, block.length, block.size);
+                    changedTable |= type == BlockFormat.NEW_TABLE;
+                }
+            }
+            index.write(out, output, 4, shards.isEmpty() ? BlockFormat.END : (byte) BlockFormat.NEW_TABLE);
+            return out.size();
+        }
+    }
+
+    /**
+     * Something done with a shard on a worker.
+     */
+    private interface ShardTask {
+        /**
+         * Runs the task.
+         *
+         * @param connection the worker
+         * @param shard      the shard
+         * @throws IOException if the worker fails the shard or the connection is lost
+         */
+        void run(Connection connection, Shard shard) throws IOException;
+    }
+
+    /**
+     * Thrown when a worker reports that it could not do what it was asked, which fails the whole job
+     * rather than being retried on another worker.
+     */
+    private static final class WorkerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Instantiates a new Worker exception.
+         *
+         * @param message the message from the worker
+         */
+        WorkerException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A byte range of the input.
+     */
+    private static final class Shard {
+        private final int number;
+        private final long offset;
+        private final int length;
+        private Path file;
+        private List<BlockInfo> blocks;
+
+        /**
+         * Instantiates a new Shard.
+         *
+         * @param number the position of the shard in the input
+         * @param offset the offset of its first byte
+         * @param length the number of bytes
+         */
+        Shard(int number, long offset, int length) {
+            this.number = number;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A block written by a worker.
+     */
+    private static final class BlockInfo {
+        private final byte type;
+        private final int length;
+        private final int size;
+
+        /**
+         * Instantiates a new Block info.
+         *
+         * @param type   the type byte of the block
+         * @param length the number of uncompressed bytes
+         * @param size   the number of bytes the block takes in the file
+         */
+        BlockInfo(byte type, int length, int size) {
+            this.type = type;
+            this.length = length;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The coordinator's end of the connection to a worker.
+     */
+    private static final class Connection {
+        private final int number;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private volatile boolean lost;
+
+        /**
+         * Instantiates a new Connection.
+         *
+         * @param number the number of the connection, which names the files its worker writes
+         * @param socket the socket the worker connected on, with the reply timeout set
+         * @throws IOException if the socket cannot be used
+         */
+        Connection(int number, Socket socket) throws IOException {
+            this.number = number;
+            this.socket = socket;
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        /**
+         * Asks the worker for the histogram of a shard.
+         *
+         * @param input the input file
+         * @param shard the shard
+         * @return how often each byte appears in the shard
+         * @throws IOException if the worker fails or the connection is lost
+         */
+        long[] count(Path input, Shard shard) throws IOException {
+            out.writeInt(CompressionWorker.COUNT);
+            out.writeUTF(input.toString());
+            out.writeLong(shard.offset);
+            out.writeInt(shard.length);
+            out.flush();
+            readStatus();
+            long[] histogram = new long[CodeTable.ALPHABET_SIZE];
+            for (int symbol = 0; symbol < histogram.length; symbol++) {
+                histogram[symbol] = in.readLong();
+            }
+            return histogram;
+        }
+
+        /**
+         * Asks the worker to compress a shard into a file.
+         *
+         * @param input      the input file
+         * @param shard      the shard
+         * @param shardFile  the file to write the compressed shard to
+         * @param blockSize  the largest number of uncompressed bytes in a block
+         * @param level      the compression level
+         * @param tableBytes the code table to start with
+         * @return the blocks the worker wrote
+         * @throws IOException if the worker fails or the connection is lost
+         */
+        List<BlockInfo> compress(Path input, Shard shard, Path shardFile, int blockSize, CompressionLevel level,
+                                 byte[] tableBytes) throws IOException {
+            out.writeInt(CompressionWorker.COMPRESS);
+            out.writeUTF(input.toString());
+            out.writeLong(shard.offset);
+            out.writeInt(shard.length);
+            out.writeInt(blockSize);
+            out.writeUTF(level.name());
+            out.write(tableBytes);
+            out.writeUTF(shardFile.toString());
+            out.flush();
+            readStatus();
+            int count = in.readInt();
+            List<BlockInfo> blocks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                blocks.add(new BlockInfo(in.readByte(), in.readInt(), in.readInt()));
+            }
+            return blocks;
+        }
+
+        /**
+         * Stops using the connection after it was lost or the worker took too long, which also tells the worker
+         * to give up.
+         */
+        void close() {
+            lost = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // It is not used again either way
+            }
+        }
+
+        /**
+         * Tells the worker to exit.
+         *
+         * @throws IOException if the connection is lost
+         */
+        void shutdown() throws IOException {
+            if (!lost) {
+                out.writeInt(CompressionWorker.SHUTDOWN);
+                out.flush();
+            }
+        }
+
+        /**
+         * Reads the start of an answer.
+         *
+         * @throws IOException if the worker failed or the connection is lost
+         */
+        private void readStatus() throws IOException {
+            if (in.readInt() != CompressionWorker.OK) {
+                throw new WorkerException("Worker failed: " + in.readUTF());
+            }
+        }
+    }
+}
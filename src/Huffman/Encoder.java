@@ -2,23 +2,77 @@ package Huffman;
 
 import java.io.*;
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * The type Encoder.
  */
 public class Encoder implements Serializable {
-    private HashMap<Character, Integer> characterFrequencies;
-    private HashMap<Character, String> encodings;
+    // The value the class had before it was given one, so that saved encoders can still be loaded
+    private static final long serialVersionUID = -2744452684407330655L;
+    // How many characters are encoded between progress reports
+    private static final int PROGRESS_INTERVAL = 1 << 20;
+
+    private HashMap<Integer, Integer> characterFrequencies;
+    private HashMap<Integer, String> encodings;
+    // The pairs of characters with codes of their own, null in encoders saved before pairs were added
+    private int[] digrams;
+    private transient CodecMetrics metrics;
+    private transient long unknownCharacters;
 
     /**
      * Instantiates a new Encoder.
      *
-     * @param characterFrequencies the character frequencies
-     * @param encodings            the encodings
+     * @param characterFrequencies the character frequencies, keyed by code point
+     * @param encodings            the encodings, keyed by code point
+     */
+    public Encoder(HashMap<Integer, Integer> characterFrequencies, HashMap<Integer, String> encodings) {
+        this(characterFrequencies, encodings, new int[0]);
+    }
+
+    /**
+     * Instantiates a new Encoder that codes pairs of characters together where it can.
+     *
+     * @param characterFrequencies the character frequencies, keyed by symbol
+     * @param encodings            the encodings, keyed by symbol
+     * @param digrams              the pairs of characters from {@link HuffmanTree#getDigrams()}
      */
-    public Encoder(HashMap<Character, Integer> characterFrequencies, HashMap<Character, String> encodings) {
+    public Encoder(HashMap<Integer, Integer> characterFrequencies, HashMap<Integer, String> encodings, int[] digrams) {
         this.characterFrequencies = characterFrequencies;
         this.encodings = encodings;
+        this.digrams = digrams.clone();
+    }
+
+    /**
+     * Gets the metrics that this encoder records to.
+     *
+     * @return the metrics
+     */
+    public CodecMetrics getMetrics() {
+        if (metrics == null) {
+            // Not set by the constructor when the encoder has been loaded from a .ser file
+            metrics = new CodecMetrics();
+        }
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics that this encoder records to.
+     *
+     * @param metrics the metrics
+     */
+    public void setMetrics(CodecMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Gets the number of characters in the last file compressed that had no code, so were written as an underscore
+     * and will not come back when it is decompressed. Only an encoder saved from another file can be missing codes.
+     *
+     * @return the number of characters replaced by an underscore
+     */
+    public long getUnknownCharacters() {
+        return unknownCharacters;
     }
 
     /**
@@ -33,34 +87,133 @@ public class Encoder implements Serializable {
         // Creates the name of the compressed file
         newFileDir += "/" + outputFileName + "-compressed.bin";
 
-        //turns data in file into 1's and 0's
-        String compressedData = getCompressedData(fileContents, encodings);
+        CodecMetrics metrics = getMetrics();
 
-        //adds the padding and tree structure to the compressed file
-        int padding = addTreeStructureAndPaddingToFile(newFileDir, compressedData, characterFrequencies);
+        //packs the codes for the data in the file into bytes
+        long start = metrics.start();
+        metrics.progress(CodecMetrics.Stage.ENCODE, 0, fileContents.length());
+        Digrams pairs = getPairs();
+        BitWriter compressedData = new BitWriter(fileContents.length() / 2);
+        long bits = getCompressedData(fileContents, encodings, pairs, compressedData);
+        metrics.addSymbols(fileContents.codePointCount(0, fileContents.length()), bits);
+        start = metrics.record(CodecMetrics.Stage.ENCODE, start);
+        metrics.progress(CodecMetrics.Stage.IO, fileContents.length(), fileContents.length());
+
+        //adds the padding and tree structure to the compressed file, an empty file needs no tree so that
+        //the frequencies of a saved encoder are not mistaken for characters to decode
+        int padding = fileContents.isEmpty()
+                ? addTreeStructureAndPaddingToFile(newFileDir, bits, new HashMap<>(), null)
+                : addTreeStructureAndPaddingToFile(newFileDir, bits, characterFrequencies, pairs);
 
         //writes the compressed data as binary to a file
-        writeBinaryDataToFile(compressedData, newFileDir, padding);
+        writeBinaryDataToFile(compressedData, newFileDir);
+        metrics.record(CodecMetrics.Stage.IO, start);
     }
 
     /**
-     * Compresses the data using the encoder
+     * Compresses the data using the encoder.
+     * <p>
+     * The codes are turned into numbers once, then packed into bytes through a 64-bit buffer, rather than
+     * being built up as a string of '0' and '1' characters that takes a byte of memory for every bit.
+     *
+     * <p>
+     * With pairs of characters, a character and the one after it are coded together whenever they are a pair
+     * with a code.
      *
-     * @param fileContents the contents of the file
-     * @param encoder      the encoder
-     * @return the compressed data
+     * @param fileContents   the contents of the file
+     * @param encoder        the encoder
+     * @param pairs          the pairs of characters, or null for none
+     * @param compressedData where the codes are written, padded with 0's to a whole byte
+     * @return the number of bits written, not counting the padding
+     * @throws IOException if a character has no code and there is no code for an underscore either
      */
-    private String getCompressedData(String fileContents, HashMap<Character, String> encoder) {
-        StringBuilder compressedData = new StringBuilder();
-        for (int i = 0; i < fileContents.length(); i++) {
-            if (encoder.get(fileContents.charAt(i)) != null) {
-                compressedData.append(encoder.get(fileContents.charAt(i)));
+    private long getCompressedData(String fileContents, HashMap<Integer, String> encoder, Digrams pairs,
+                                   BitWriter compressedData) throws IOException {
+        // Give each code point with a code a small index, then keep its code as a number
+        SymbolIndex symbols = new SymbolIndex();
+        long[] codes = new long[encoder.size()];
+        int[] lengths = new int[encoder.size()];
+        String[] longCodes = new String[encoder.size()];
+        for (Map.Entry<Integer, String> entry : encoder.entrySet()) {
+            int index = symbols.add(entry.getKey());
+            String code = entry.getValue();
+            lengths[index] = code.length();
+            if (code.isEmpty()) {
+                //Encoders saved before a single character was given a code have an empty one, it is written as a 0
+                lengths[index] = 1;
+            } else if (code.length() > 64) {
+                longCodes[index] = code;
             } else {
+                codes[index] = Long.parseUnsignedLong(code, 2);
+            }
+        }
+        int unknown = symbols.indexOf(HuffmanTree.UNKNOWN_CHARACTER);
+        CodecMetrics metrics = getMetrics();
+        unknownCharacters = 0;
+
+        long bits = 0;
+        int nextProgress = PROGRESS_INTERVAL;
+        for (int i = 0; i < fileContents.length(); ) {
+            if (i >= nextProgress) {
+                metrics.progress(CodecMetrics.Stage.ENCODE, i, fileContents.length());
+                nextProgress = i + PROGRESS_INTERVAL;
+            }
+            int codePoint = fileContents.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (pairs != null && i < fileContents.length()) {
+                int next = fileContents.codePointAt(i);
+                int pair = pairs.symbolOf(codePoint, next);
+                int index = pair < 0 ? -1 : symbols.indexOf(pair);
+                if (index >= 0) {
+                    i += Character.charCount(next);
+                    writeCode(compressedData, codes[index], lengths[index], longCodes[index]);
+                    bits += lengths[index];
+                    continue;
+                }
+            }
+            int index = symbols.indexOf(codePoint);
+            if (index < 0 && Character.isSupplementaryCodePoint(codePoint)
+                    && symbols.indexOf(Character.highSurrogate(codePoint)) >= 0
+                    && symbols.indexOf(Character.lowSurrogate(codePoint)) >= 0) {
+                //Encoders saved before code points were used have a code for each half of a surrogate pair
+                int high = symbols.indexOf(Character.highSurrogate(codePoint));
+                writeCode(compressedData, codes[high], lengths[high], longCodes[high]);
+                bits += lengths[high];
+                index = symbols.indexOf(Character.lowSurrogate(codePoint));
+            } else if (index < 0) {
                 //If the character does not have a place in the tree then use the encoding for an underscore
-                compressedData.append(encoder.get('_'));
+                if (unknown < 0) {
+                    throw new IOException("The encoder has no code for character " + codePoint + " or for an underscore");
+                }
+                index = unknown;
+                unknownCharacters++;
+            }
+            writeCode(compressedData, codes[index], lengths[index], longCodes[index]);
+            bits += lengths[index];
+        }
+        compressedData.flush();
+        return bits;
+    }
+
+    /**
+     * Writes one code, splitting it into pieces the bit writer can take.
+     *
+     * @param compressedData where the code is written
+     * @param code           the code as a number
+     * @param length         the number of bits in the code
+     * @param longCode       the code as '0's and '1's if it is longer than 64 bits, otherwise null
+     */
+    private static void writeCode(BitWriter compressedData, long code, int length, String longCode) {
+        if (length <= 32) {
+            compressedData.write((int) code, length);
+        } else if (longCode == null) {
+            compressedData.write((int) (code >>> 32), length - 32);
+            compressedData.write((int) code, 32);
+        } else {
+            for (int i = 0; i < longCode.length(); i++) {
+                compressedData.write(longCode.charAt(i) - '0', 1);
             }
         }
-        return compressedData.toString();
     }
 
     /**
@@ -68,70 +221,106 @@ public class Encoder implements Serializable {
      * how much padding has been used when compressing the data.
      *
      * @param newFileDir           the file dir of the compressed file
-     * @param compressedData       the compressed data
+     * @param bits                 the number of bits of compressed data
      * @param characterFrequencies dictionary containing the characters and their frequencies
+     * @param pairs                the pairs of characters, or null for none
      */
-    private int addTreeStructureAndPaddingToFile(String newFileDir, String compressedData, HashMap<Character, Integer> characterFrequencies) throws IOException {
-        int padding = 8 - (compressedData.length() % 8);
-        if (compressedData.length() % 8 == 0) {
+    private int addTreeStructureAndPaddingToFile(String newFileDir, long bits, HashMap<Integer, Integer> characterFrequencies,
+                                                 Digrams pairs) throws IOException {
+        int padding = (int) (8 - (bits % 8));
+        if (bits % 8 == 0) {
             padding = 0;
         }
 
-        // Tree structure:
-        // char as an integer followed by the frequency of that character
-        StringBuilder treeStructure = new StringBuilder();
-        for (Character character : characterFrequencies.keySet()) {
-            treeStructure.append((int) character).append(" ").append(characterFrequencies.get(character)).append(" ");
-        }
+        String treeStructure = getTreeStructure(characterFrequencies, pairs);
 
         PrintWriter printLine = new PrintWriter(new FileWriter(newFileDir, false));//don't append to the file
-        printLine.print(treeStructure.toString() + "\n");
+        printLine.print(treeStructure + "\n");
         printLine.print(padding + "\n");
 
         printLine.close();
+        // The header is all digits, spaces and new lines so each character is one byte
+        getMetrics().addBytesOut(treeStructure.length() + String.valueOf(padding).length() + 2);
         return padding;
     }
 
     /**
-     * Write the compressed data to file.
+     * Gets the tree structure written on the first line of a compressed file.
+     * <p>
+     * Tree structure:
+     * code point of the char followed by the frequency of that character,
+     * with a pair of characters written as both code points joined by a '+'
      *
-     * @param compressedData the compressed data
-     * @param fileDir        the file dir of the compressed file
+     * @param characterFrequencies dictionary containing the characters and their frequencies
+     * @param pairs                the pairs of characters, or null for none
+     * @return the tree structure
      */
-    private void writeBinaryDataToFile(String compressedData, String fileDir, int padding) throws IOException {
-        compressedData = addPadding(compressedData, padding);
-
-        // Create an array to store the bytes of the compressed file
-        byte[] data = new byte[compressedData.length() / 8];
-        int index = 0;
-        for (int i = 0; i < compressedData.length(); i += 8) {
-            // Split the string of bits into chunks of 8 to create a byte value
-            data[index] = (byte) Integer.parseInt(compressedData.substring(i, i + 8), 2);
-            index++;
+    static String getTreeStructure(HashMap<Integer, Integer> characterFrequencies, Digrams pairs) {
+        StringBuilder treeStructure = new StringBuilder();
+        for (Integer character : characterFrequencies.keySet()) {
+            if (pairs != null) {
+                pairs.appendToken(character, treeStructure);
+            } else {
+                treeStructure.append((int) character);
+            }
+            treeStructure.append(" ").append(characterFrequencies.get(character)).append(" ");
         }
+        return treeStructure.toString();
+    }
+
+    /**
+     * Gets the pairs of characters this encoder codes together.
+     *
+     * @return the pairs, or null if there are none
+     */
+    private Digrams getPairs() {
+        return digrams == null || digrams.length == 0 ? null : new Digrams(digrams);
+    }
 
+    /**
+     * Write the compressed data to file.
+     *
+     * @param compressedData the compressed data, already padded to a whole byte
+     * @param fileDir        the file dir of the compressed file
+     */
+    private void writeBinaryDataToFile(BitWriter compressedData, String fileDir) throws IOException {
         // Write the bytes to the file
-        InputStream is = new ByteArrayInputStream(data);
-        OutputStream os = new FileOutputStream(fileDir, true);// Append to the file
-        while (is.read(data) != -1) {
-            os.write(data);
+        try (OutputStream os = new FileOutputStream(fileDir, true)) {// Append to the file
+            os.write(compressedData.getBuffer().array(), 0, compressedData.size());
         }
+        getMetrics().addBytesOut(compressedData.size());
     }
 
     /**
-     * Adds padding to the compressed data to ensure that the number of bits
-     * can be divided by 8 without any remainder.
+     * Loads a saved encoder, converting the char keys of encoders saved before code points were used.
      *
-     * @param compressedData the compressed data
-     * @param padding        the amount of padding needed
-     * @return the compressed data with padding
+     * @param in the stream the encoder was saved to
+     * @throws IOException            the io exception
+     * @throws ClassNotFoundException if a class in the stream cannot be found
      */
-    private String addPadding(String compressedData, int padding) {
-        StringBuilder compressedDataBuilder = new StringBuilder(compressedData);
-        for (int i = 0; i < padding; i++) {
-            compressedDataBuilder.append("0");
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        characterFrequencies = toCodePointKeys(characterFrequencies);
+        encodings = toCodePointKeys(encodings);
+    }
+
+    /**
+     * Turns the Character keys of a dictionary loaded from an old encoder into code points.
+     *
+     * @param map the dictionary as it was loaded
+     * @param <V> the type of the values
+     * @return the dictionary keyed by code point
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> HashMap<Integer, V> toCodePointKeys(HashMap<?, V> map) {
+        if (map.isEmpty() || !(map.keySet().iterator().next() instanceof Character)) {
+            return (HashMap<Integer, V>) map;
+        }
+        // Character and Integer have the same hash codes, so the keys keep their order
+        HashMap<Integer, V> converted = new HashMap<>();
+        for (Map.Entry<?, V> entry : map.entrySet()) {
+            converted.put((int) (Character) entry.getKey(), entry.getValue());
         }
-        compressedData = compressedDataBuilder.toString();
-        return compressedData;
+        return converted;
     }
 }
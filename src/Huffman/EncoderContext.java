@@ -0,0 +1,163 @@
+package Huffman;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The buffers and tables used by {@link BlockEncoder}, kept so that they can be reused between jobs.
+ * <p>
+ * Once the buffers have grown to fit the block size, compressing more data does not allocate.
+ * A context must only be used by one encoder at a time, {@link #local()} gives each thread its own.
+ */
+public class EncoderContext {
+    private static final ThreadLocal<EncoderContext> LOCAL = ThreadLocal.withInitial(EncoderContext::new);
+
+    private final int[] histogram = new int[CodeTable.ALPHABET_SIZE];
+    private final int[][] histogramLanes = ByteHistogram.newLanes();
+    private CodeTable table = new CodeTable();
+    private CodeTable candidateTable = new CodeTable();
+    private final BitWriter bitWriter = new BitWriter(0);
+    private final int[] streamSizes = new int[BlockFormat.STREAM_COUNT];
+    private byte[] block = new byte[0];
+    private ByteBuffer blockBuffer = ByteBuffer.wrap(block);
+    private boolean hasTable = false;
+    private double tableRedundancy = 0;
+
+    /**
+     * Gets the context belonging to the current thread.
+     *
+     * @return the context
+     */
+    public static EncoderContext local() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Forgets the previous job so that the next block writes a new code table.
+     * The buffers are kept.
+     */
+    public void reset() {
+        Arrays.fill(histogram, 0);
+        bitWriter.reset();
+        hasTable = false;
+        tableRedundancy = 0;
+    }
+
+    /**
+     * Gets the histogram of the current block.
+     *
+     * @return the histogram
+     */
+    int[] getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Gets the scratch sub-histograms used while counting a block.
+     *
+     * @return the sub-histograms
+     */
+    int[][] getHistogramLanes() {
+        return histogramLanes;
+    }
+
+    /**
+     * Gets the code table used by the previous block.
+     *
+     * @return the code table
+     */
+    CodeTable getTable() {
+        return table;
+    }
+
+    /**
+     * Gets a spare code table that a new table can be built in without losing the current one.
+     *
+     * @return the candidate table
+     */
+    CodeTable getCandidateTable() {
+        return candidateTable;
+    }
+
+    /**
+     * Makes the candidate table the current table, the old current table becomes the spare.
+     */
+    void useCandidateTable() {
+        CodeTable previous = table;
+        table = candidateTable;
+        candidateTable = previous;
+    }
+
+    /**
+     * Gets the bit writer that blocks are encoded into.
+     *
+     * @return the bit writer
+     */
+    BitWriter getBitWriter() {
+        return bitWriter;
+    }
+
+    /**
+     * Gets space to keep the size of each stream of an interleaved block.
+     *
+     * @return the stream sizes
+     */
+    int[] getStreamSizes() {
+        return streamSizes;
+    }
+
+    /**
+     * Gets a buffer to read uncompressed blocks into.
+     *
+     * @param blockSize the number of bytes in a block
+     * @return a buffer with at least blockSize bytes
+     */
+    byte[] getBlock(int blockSize) {
+        if (block.length < blockSize) {
+            block = new byte[blockSize];
+            blockBuffer = ByteBuffer.wrap(block);
+            // Worst case every byte has the longest code, plus the block header, code table and jump table
+            bitWriter.ensureCapacity(blockSize / 8 * CodeTable.MAX_CODE_LENGTH + CodeTable.MAX_CODE_LENGTH
+                    + BlockFormat.BLOCK_HEADER_SIZE + CodeTable.HEADER_SIZE
+                    + BlockFormat.JUMP_TABLE_SIZE + BlockFormat.STREAM_COUNT);
+        }
+        return block;
+    }
+
+    /**
+     * Gets the buffer returned by {@link #getBlock(int)} wrapped as a ByteBuffer.
+     *
+     * @return the block buffer
+     */
+    ByteBuffer getBlockBuffer() {
+        return blockBuffer;
+    }
+
+    /**
+     * Checks if a code table has been written in the current job.
+     *
+     * @return true if the next block can use the same table
+     */
+    boolean hasTable() {
+        return hasTable;
+    }
+
+    /**
+     * Records that the code table has been rebuilt.
+     *
+     * @param redundancy how many bits per byte the table used over the entropy of the block it was built for
+     */
+    void setTableBuilt(double redundancy) {
+        hasTable = true;
+        tableRedundancy = redundancy;
+    }
+
+    /**
+     * Gets the redundancy of the current table.
+     *
+     * @return the bits per byte the table used over the entropy of the block it was built for
+     */
+    double getTableRedundancy() {
+        return tableRedundancy;
+    }
+}
@@ -0,0 +1,359 @@
+package Huffman;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The command line entry point of the core jar, which has only the Huffman package and no JavaFX,
+ * so one-shot compressions from scripts start quickly:
+ * <pre>
+ * java -jar huffman-core.jar compress --level best input.txt input.huf
+ * java -jar huffman-core.jar decompress --limits input.huf input.txt
+ * tar cf - dir | java -jar huffman-core.jar compress - - &gt; dir.tar.huf
+ * </pre>
+ * Commands:
+ * <pre>
+ * compress   [options] input output   compress to the block format
+ * decompress [options] input output   decompress a block compressed file
+ * append     [options] file input     compress onto the end of a block compressed file
+ * analyze    input                    predict how well a file compresses
+ * </pre>
+ * A path of - means standard input or output. Options:
+ * <pre>
+ * --level fast|default|best   how hard the encoder works, default is default
+ * --block-size 128K           uncompressed bytes per block, with K or M suffixes
+ * --threads 4                 compress a file on several threads
+ * --limits                    decompress with the default {@link DecodeLimits}, for untrusted files
+ * --max-output 1G             decompress with limits and at most this many bytes of output
+ * </pre>
+ * An output file is only replaced once the command has succeeded, so a bad input leaves it as it was.
+ * The exit status is 0 on success, 1 if the command failed and 2 if the command line is wrong.
+ */
+public class HuffmanCli {
+    private static final String USAGE = "Usage: huffman compress|decompress|append [options] input output\n"
+            + "       huffman analyze input\n"
+            + "Options: --level fast|default|best, --block-size SIZE, --threads N, --limits, --max-output SIZE";
+
+    private CompressionLevel level = CompressionLevel.DEFAULT;
+    private int blockSize = BlockEncoder.DEFAULT_BLOCK_SIZE;
+    private int threads = 1;
+    private DecodeLimits limits = DecodeLimits.unlimited();
+    private final List<String> paths = new ArrayList<>();
+
+    /**
+     * Runs a command.
+     *
+     * @param args the command, its options and its paths
+     */
+    public static void main(String[] args) {
+        HuffmanCli cli = new HuffmanCli();
+        String command;
+        try {
+            if (args.length == 0) {
+                throw new IllegalArgumentException("No command given");
+            }
+            command = args[0];
+            cli.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        try {
+            cli.run(command);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        } catch (IOException | RuntimeException e) {
+            System.err.println(command + " failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the options and paths after the command.
+     *
+     * @param args the command line
+     */
+    private void parse(String[] args) {
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                paths.add(arg);
+                continue;
+            }
+            if (arg.equals("--limits")) {
+                limits = new DecodeLimits();
+                continue;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            try {
+                switch (arg) {
+                    case "--level":
+                        level = parseLevel(value);
+                        break;
+                    case "--block-size":
+                        blockSize = (int) parseSize(value, Integer.MAX_VALUE);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--max-output":
+                        limits = new DecodeLimits();
+                        limits.setMaxOutputSize(parseSize(value, Long.MAX_VALUE));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad value for " + arg + ": " + value);
+            }
+        }
+        if (blockSize <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("Block size and threads must be positive");
+        }
+    }
+
+    /**
+     * Runs a command with the options that were read.
+     *
+     * @param command the command
+     * @throws IOException if a file cannot be read or written, or is not valid
+     */
+    private void run(String command) throws IOException {
+        switch (command) {
+            case "compress":
+                checkPaths(2);
+                compress(paths.get(0), paths.get(1));
+                break;
+            case "decompress":
+                checkPaths(2);
+                decompress(paths.get(0), paths.get(1));
+                break;
+            case "append":
+                checkPaths(2);
+                append(Paths.get(paths.get(0)), paths.get(1));
+                break;
+            case "analyze":
+                checkPaths(1);
+                System.out.println(new CompressionAnalyzer().analyze(Paths.get(paths.get(0))));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command " + command);
+        }
+    }
+
+    /**
+     * Compresses a file or standard input.
+     *
+     * @param input  the input path, or - for standard input
+     * @param output the output path, or - for standard output
+     * @throws IOException if the input cannot be read or the output written
+     */
+    private void compress(String input, String output) throws IOException {
+        if (threads > 1 && !input.equals("-") && !output.equals("-")) {
+            PipelinedEncoder encoder = new PipelinedEncoder(blockSize, threads, 2 * threads);
+            encoder.setLevel(level);
+            Path target = Paths.get(output);
+            Path temporary = getTemporaryPath(target);
+            try {
+                encoder.compress(Paths.get(input), temporary);
+                replace(temporary, target);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            return;
+        }
+        BlockEncoder encoder = new BlockEncoder(blockSize);
+        encoder.setLevel(level);
+        try (InputStream in = openInput(input)) {
+            writeOutput(output, out -> encoder.compress(in, out));
+        }
+    }
+
+    /**
+     * Decompresses a file or standard input.
+     *
+     * @param input  the input path, or - for standard input
+     * @param output the output path, or - for standard output
+     * @throws IOException if the input is not valid or breaks a limit, or the output cannot be written
+     */
+    private void decompress(String input, String output) throws IOException {
+        BlockDecoder decoder = new BlockDecoder();
+        decoder.setLimits(limits);
+        try (InputStream in = openInput(input)) {
+            writeOutput(output, out -> decoder.decompress(in, out));
+        }
+    }
+
+    /**
+     * Compresses a file or standard input onto the end of a block compressed file.
+     *
+     * @param file  the compressed file, created if it does not exist
+     * @param input the input path, or - for standard input
+     * @throws IOException if the input cannot be read or the file is not a block compressed file
+     */
+    private void append(Path file, String input) throws IOException {
+        BlockAppender appender = new BlockAppender(blockSize);
+        appender.setLevel(level);
+        if (input.equals("-")) {
+            appender.append(file, System.in);
+        } else {
+            appender.append(file, ByteBuffer.wrap(Files.readAllBytes(Paths.get(input))));
+        }
+    }
+
+    /**
+     * Checks that the command was given the right number of paths.
+     *
+     * @param count the number of paths the command takes
+     */
+    private void checkPaths(int count) {
+        if (paths.size() != count) {
+            throw new IllegalArgumentException("Expected " + count + " paths but got " + paths.size());
+        }
+    }
+
+    /**
+     * Opens an input path.
+     *
+     * @param path the path, or - for standard input
+     * @return the stream
+     * @throws IOException if the file cannot be opened
+     */
+    private static InputStream openInput(String path) throws IOException {
+        if (path.equals("-")) {
+            return new BufferedInputStream(new FileInputStream(FileDescriptor.in), 1 << 16);
+        }
+        return new BufferedInputStream(Files.newInputStream(Paths.get(path)), 1 << 16);
+    }
+
+    /**
+     * Something that writes a command's output.
+     */
+    private interface OutputWriter {
+        /**
+         * Writes the output.
+         *
+         * @param out the stream to write to
+         * @throws IOException if the output cannot be made or written
+         */
+        void write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes an output path. A file is written under a temporary name next to it and only replaces the file
+     * once it is complete, so a bad input or a failed write never leaves a truncated or partial file behind.
+     *
+     * @param path   the path, or - for standard output
+     * @param writer what writes the output
+     * @throws IOException if the output cannot be made or written
+     */
+    private static void writeOutput(String path, OutputWriter writer) throws IOException {
+        if (path.equals("-")) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+            writer.write(out);
+            out.flush();
+            return;
+        }
+        Path target = Paths.get(path);
+        Path temporary = getTemporaryPath(target);
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporary,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), 1 << 16)) {
+                writer.write(out);
+            }
+            replace(temporary, target);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Gets a hidden name in the same directory as a file to write it under until it is complete,
+     * so that it can be renamed over the file without copying.
+     *
+     * @param target the file
+     * @return the temporary path, which does not exist yet
+     */
+    static Path getTemporaryPath(Path target) {
+        return target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(System.nanoTime()) + ".tmp");
+    }
+
+    /**
+     * Moves a complete file over the one it replaces, atomically if the file system can.
+     *
+     * @param temporary the complete file
+     * @param target    the file it replaces
+     * @throws IOException if the file cannot be moved
+     */
+    static void replace(Path temporary, Path target) throws IOException {
+        try {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Reads a compression level, in any case.
+     *
+     * @param level the name of the level
+     * @return the level
+     */
+    private static CompressionLevel parseLevel(String level) {
+        try {
+            return CompressionLevel.valueOf(level.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            StringBuilder levels = new StringBuilder();
+            for (CompressionLevel known : CompressionLevel.values()) {
+                levels.append(levels.length() == 0 ? "" : "|").append(known.name().toLowerCase(Locale.ROOT));
+            }
+            throw new IllegalArgumentException("Bad value for --level: " + level + ", expected " + levels);
+        }
+    }
+
+    /**
+     * Reads a size with an optional K, M or G suffix.
+     *
+     * @param size the size
+     * @param max  the largest size allowed
+     * @return the number of bytes
+     */
+    private static long parseSize(String size, long max) {
+        size = size.trim().toUpperCase(Locale.ROOT);
+        int shift = 0;
+        switch (size.isEmpty() ? ' ' : size.charAt(size.length() - 1)) {
+            case 'K':
+                shift = 10;
+                break;
+            case 'M':
+                shift = 20;
+                break;
+            case 'G':
+                shift = 30;
+                break;
+            default:
+                break;
+        }
+        long value = Long.parseLong(shift == 0 ? size : size.substring(0, size.length() - 1));
+        if (value < 0 || value > max >> shift) {
+            throw new NumberFormatException("Size out of range: " + size);
+        }
+        return value << shift;
+    }
+}
@@ -4,18 +4,38 @@ import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * Creates a Huffman tree based on input data.
  * Options to compress and uncompress data
+ * <p>
+ * The symbols are Unicode code points, so characters outside the Basic Multilingual Plane (such as emoji)
+ * get one code instead of one for each half of their surrogate pair. Optionally the most frequent pairs of
+ * characters get codes of their own as well (see {@link Digrams}).
  */
 public class HuffmanTree {
+    /**
+     * The character used in place of any character that a saved encoder does not have a code for.
+     */
+    public static final int UNKNOWN_CHARACTER = '_';
+    /**
+     * A number of pairs of characters that suits English and logs, for {@link #HuffmanTree(String, boolean, CodecMetrics, int)}.
+     */
+    public static final int DEFAULT_DIGRAMS = 256;
+
+    private static final TableCache<HashMap<Integer, String>> CODE_CACHE = new TableCache<>(TableCache.DEFAULT_CAPACITY);
+
     private String fileContents;
-    private HashMap<Character, String> codes;
-    private HashMap<Character, Integer> characterFrequencies;
+    private HashMap<Integer, String> codes;
+    private HashMap<Integer, Integer> characterFrequencies;
+    private Digrams digrams;
 
     /**
      * Instantiates a new Huffman tree.
@@ -24,17 +44,61 @@ public class HuffmanTree {
      * @param savingEncoder true if the user is saving the encoder
      */
     public HuffmanTree(String fileDir, boolean savingEncoder) {
+        this(fileDir, savingEncoder, new CodecMetrics());
+    }
+
+    /**
+     * Instantiates a new Huffman tree, recording the time spent reading, counting and building.
+     *
+     * @param fileDir       the file dir
+     * @param savingEncoder true if the user is saving the encoder
+     * @param metrics       the metrics to record to
+     */
+    public HuffmanTree(String fileDir, boolean savingEncoder, CodecMetrics metrics) {
+        this(fileDir, savingEncoder, metrics, 0);
+    }
+
+    /**
+     * Instantiates a new Huffman tree that also gives codes to the most frequent pairs of characters,
+     * which makes English and logs smaller at little cost to decoding. The pairs are only used if they make
+     * the file smaller once the longer header is counted, see {@link #getDigrams()}.
+     *
+     * @param fileDir       the file dir
+     * @param savingEncoder true if the user is saving the encoder
+     * @param metrics       the metrics to record to
+     * @param digramCount   the most pairs to give codes to, 0 for none
+     */
+    public HuffmanTree(String fileDir, boolean savingEncoder, CodecMetrics metrics, int digramCount) {
         // Reads the file given by the user and stores it as a string
-        fileContents = readFile(fileDir);
+        long start = metrics.start();
+        metrics.progress(CodecMetrics.Stage.IO, 0, -1);
+        fileContents = readFile(fileDir, metrics);
+        start = metrics.record(CodecMetrics.Stage.IO, start);
+        metrics.progress(CodecMetrics.Stage.COUNT, 0, fileContents.length());
 
         // Get the frequencies of each character in the file
-        characterFrequencies = getCharFrequencies(fileContents, savingEncoder);
-
-        // Create the leaf nodes for the given data in the file
-        ArrayList<Node> leafNodes = getTree(characterFrequencies);
+        characterFrequencies = getCharFrequencies(fileContents, savingEncoder, metrics);
+        if (digramCount > 0) {
+            choosePairs(digramCount, savingEncoder);
+        }
+        start = metrics.record(CodecMetrics.Stage.COUNT, start);
+        metrics.progress(CodecMetrics.Stage.BUILD, 0, fileContents.length());
+
+        // Create the leaf nodes for the given data in the file and an encoder to compress the data,
+        // unless the same frequencies have been seen before
+        HashMap<Integer, String> cachedCodes = CODE_CACHE.get(Encoder.getTreeStructure(characterFrequencies, digrams),
+                treeStructure -> getEncoder(getTree(characterFrequencies)));
+        codes = new HashMap<>(cachedCodes);
+        metrics.record(CodecMetrics.Stage.BUILD, start);
+    }
 
-        // Create an encoder to compress the data
-        codes = getEncoder(leafNodes);
+    /**
+     * Gets the cache of codes built for each set of character frequencies.
+     *
+     * @return the code cache
+     */
+    public static TableCache<?> getCodeCache() {
+        return CODE_CACHE;
     }
 
     /**
@@ -51,19 +115,81 @@ public class HuffmanTree {
      *
      * @return the codes
      */
-    public HashMap<Character, String> getCodes() {
+    public HashMap<Integer, String> getCodes() {
         return codes;
     }
 
     /**
-     * Gets character frequencies.
+     * Gets character frequencies, keyed by code point.
+     * Pairs of characters, if there are any, are keyed by the symbols described in {@link #getDigrams()}.
      *
      * @return the character frequencies
      */
-    public HashMap<Character, Integer> getCharacterFrequencies() {
+    public HashMap<Integer, Integer> getCharacterFrequencies() {
         return characterFrequencies;
     }
 
+    /**
+     * Gets the pairs of characters that have codes of their own, to pass to
+     * {@link Encoder#Encoder(HashMap, HashMap, int[])}. Pair i has the symbol {@code Character.MAX_CODE_POINT + 1 + i}.
+     *
+     * @return the code points of each pair, first then second, or an empty array if pairs are not used
+     */
+    public int[] getDigrams() {
+        return digrams == null ? new int[0] : digrams.toArray();
+    }
+
+    /**
+     * Picks the most frequent pairs of characters and counts the symbols again with them,
+     * keeping them only if the file comes out smaller.
+     *
+     * @param digramCount   the most pairs to pick
+     * @param savingEncoder true if the user is saving the encoder
+     */
+    private void choosePairs(int digramCount, boolean savingEncoder) {
+        Digrams candidates = Digrams.select(fileContents, digramCount);
+        // The decoder only learns of the pairs in the header, so pairs the split never used are dropped
+        // before the symbols are counted for real, which does not change how the text is split
+        candidates = candidates.retainAll(candidates.countSymbols(fileContents).keySet());
+        if (candidates.size() == 0) {
+            return;
+        }
+        HashMap<Integer, Integer> pairFrequencies = candidates.countSymbols(fileContents);
+        if (pairFrequencies.size() < 2) {
+            // A single symbol would get an empty code
+            return;
+        }
+        if (savingEncoder && !pairFrequencies.containsKey(UNKNOWN_CHARACTER)) {
+            pairFrequencies.put(UNKNOWN_CHARACTER, 0);
+        }
+        if (getCompressedSize(pairFrequencies, candidates) < getCompressedSize(characterFrequencies, null)) {
+            characterFrequencies = pairFrequencies;
+            digrams = candidates;
+        }
+    }
+
+    /**
+     * Works out roughly how big a compressed file would be, from the length of its header and of its codes.
+     *
+     * @param frequencies how often each symbol appears
+     * @param digrams     the pairs of characters, or null for none
+     * @return the number of bytes
+     */
+    private static long getCompressedSize(HashMap<Integer, Integer> frequencies, Digrams digrams) {
+        int[] counts = new int[frequencies.size()];
+        int index = 0;
+        for (int frequency : frequencies.values()) {
+            counts[index++] = frequency;
+        }
+        int[] lengths = new int[counts.length];
+        getCodeLengths(counts, lengths, 32);
+        long bits = 0;
+        for (int i = 0; i < counts.length; i++) {
+            bits += (long) counts[i] * lengths[i];
+        }
+        return Encoder.getTreeStructure(frequencies, digrams).length() + bits / 8;
+    }
+
 
     /**
      * Fills the tree with the data.
@@ -71,7 +197,7 @@ public class HuffmanTree {
      * @param characterFrequencies the file dir
      * @return the leaf nodes of the tree
      */
-    private ArrayList<Node> getTree(HashMap<Character, Integer> characterFrequencies) {
+    private ArrayList<Node> getTree(HashMap<Integer, Integer> characterFrequencies) {
         //get the leaf nodes of the tree which can be used to traverse it
         ArrayList<Node> tree = createLeafNodes(characterFrequencies);
 
@@ -90,16 +216,19 @@ public class HuffmanTree {
      * @param leafNodes the leaf nodes
      * @return the encoder
      */
-    private HashMap<Character, String> getEncoder(ArrayList<Node> leafNodes) {
+    private HashMap<Integer, String> getEncoder(ArrayList<Node> leafNodes) {
         // Dictionary where the key is the path and the value is the character of the respected leaf node
-        HashMap<Character, String> encoder = new HashMap<>();
+        HashMap<Integer, String> encoder = new HashMap<>();
 
         for (Node leafNode : leafNodes) {
-            // Finds the path to get to the leaf node
+            // Finds the path to get to the leaf node, a single character still needs one bit so that it can be counted when decoding
             String path = getPath(leafNode);
+            if (path.isEmpty()) {
+                path = "0";
+            }
 
-            // store the value of the leaf node as a char
-            char value = leafNode.getValue();
+            // store the value of the leaf node as a code point
+            int value = leafNode.getValue();
 
             //put the value and the path into the dictionary
             encoder.put(value, path);
@@ -109,28 +238,68 @@ public class HuffmanTree {
 
 
     /**
-     * Creates a dictionary where the key is the character and the value is how often that key appears in the text.
+     * Creates a dictionary where the key is the code point of a character and the value is how often that key appears in the text.
+     * <p>
+     * The counting is done in an array indexed by {@link SymbolIndex} so that nothing is boxed until the dictionary is made.
      *
-     * @param fileContents          the file dir
+     * @param fileContents  the file dir
      * @param savingEncoder true if the user is saving the encoder
+     * @param metrics       the metrics to add the entropy of the text to
      * @return the character frequencies
      */
-    private HashMap<Character, Integer> getCharFrequencies(String fileContents, boolean savingEncoder) {
-        HashMap<Character, Integer> characterFrequencies = new HashMap<>();
-
-        for (int i = 0; i < fileContents.length(); i++) {
-            char character = fileContents.charAt(i);
-            if (characterFrequencies.containsKey(character)) {
-                characterFrequencies.put(character, characterFrequencies.get(character) + 1);
-            } else {
-                characterFrequencies.put(character, 1);
+    private HashMap<Integer, Integer> getCharFrequencies(String fileContents, boolean savingEncoder, CodecMetrics metrics) {
+        SymbolIndex symbols = new SymbolIndex();
+        int[] counts = new int[16];
+        // Characters below 256 are counted in sub-histograms by character (see ByteHistogram),
+        // only their first appearance goes through the symbol index
+        int[][] lanes = ByteHistogram.newLanes();
+        boolean[] seen = new boolean[CodeTable.ALPHABET_SIZE];
+        int length = fileContents.length();
+        int offset = 0;
+        while (offset < length) {
+            char c = fileContents.charAt(offset);
+            if (c < CodeTable.ALPHABET_SIZE && seen[c] && offset + ByteHistogram.LANES <= length) {
+                char c1 = fileContents.charAt(offset + 1);
+                char c2 = fileContents.charAt(offset + 2);
+                char c3 = fileContents.charAt(offset + 3);
+                if (c1 < CodeTable.ALPHABET_SIZE && c2 < CodeTable.ALPHABET_SIZE && c3 < CodeTable.ALPHABET_SIZE
+                        && seen[c1] && seen[c2] && seen[c3]) {
+                    lanes[0][c]++;
+                    lanes[1][c1]++;
+                    lanes[2][c2]++;
+                    lanes[3][c3]++;
+                    offset += ByteHistogram.LANES;
+                    continue;
+                }
+            }
+            int codePoint = fileContents.codePointAt(offset);
+            offset += Character.charCount(codePoint);
+            int index = symbols.add(codePoint);
+            if (index == counts.length) {
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+            counts[index]++;
+            if (codePoint < CodeTable.ALPHABET_SIZE) {
+                seen[codePoint] = true;
+            }
+        }
+        for (int c = 0; c < CodeTable.ALPHABET_SIZE; c++) {
+            if (seen[c]) {
+                counts[symbols.indexOf(c)] += lanes[0][c] + lanes[1][c] + lanes[2][c] + lanes[3][c];
             }
         }
+        metrics.addEntropy(CodeTable.entropyBits(Arrays.copyOf(counts, symbols.size())));
+
+        // Added in the order the characters were first seen, the same as when they were counted straight into the dictionary
+        HashMap<Integer, Integer> characterFrequencies = new HashMap<>();
+        for (int i = 0; i < symbols.size(); i++) {
+            characterFrequencies.put(symbols.symbolAt(i), counts[i]);
+        }
         // This is executed do if the user has selected to save the encoder
         if (savingEncoder) {
             // This is done so that any unknown characters will be represented using an underscore
-            if (!characterFrequencies.containsKey('_')) {
-                characterFrequencies.put('_', 0);
+            if (!characterFrequencies.containsKey(UNKNOWN_CHARACTER)) {
+                characterFrequencies.put(UNKNOWN_CHARACTER, 0);
             }
         }
 
@@ -143,7 +312,7 @@ public class HuffmanTree {
      * @param characterFrequencies the character frequencies
      * @return the leaf nodes
      */
-    public static ArrayList<Node> createLeafNodes(HashMap<Character, Integer> characterFrequencies) {
+    public static ArrayList<Node> createLeafNodes(HashMap<Integer, Integer> characterFrequencies) {
         ArrayList<Node> tree = new ArrayList<>();
         final int[] index = {0};
         characterFrequencies.forEach((key, value) -> {
@@ -204,10 +373,30 @@ public class HuffmanTree {
      * A parent node is created and added to the tree
      * <p>
      * This is repeated until there is only 1 node left which is the root node
+     * <p>
+     * An empty list, from an empty file, is left empty as there is no tree
+     * <p>
+     * The list is only sorted once. Files are decoded by building the same tree again, so the nodes with equal
+     * frequencies have to end up in the order quickSort leaves them in, see {@link #mergeRuns(ArrayList)}.
      *
      * @param tree the list of leaf nodes
      */
     public static void fillTree(ArrayList<Node> tree) {
+        if (tree.isEmpty()) {
+            return;
+        }
+        long total = 0;
+        for (Node node : tree) {
+            total += node.getFrequency();
+        }
+        if (total <= Integer.MAX_VALUE) {
+            quickSort(tree, 0, tree.size() - 1);
+            mergeRuns(tree);
+            tree.get(0).setRoot(true);
+            return;
+        }
+
+        // The parent frequencies overflow, so they are not in order any more and the list is sorted every time
         while (tree.size() > 1) {
             quickSort(tree, 0, tree.size() - 1);
             Node childLeft = tree.get(0);
@@ -220,6 +409,112 @@ public class HuffmanTree {
         tree.get(0).setRoot(true);
     }
 
+    /**
+     * Merges a sorted list of nodes into a tree, leaving only the root in the list.
+     * <p>
+     * Once the list is sorted, sorting it again with quickSort after the first two nodes are replaced by their
+     * parent only moves two things. The parent goes in front of the nodes with the same frequency, and every
+     * run of nodes with a frequency below the parent's is turned round by one, its last node going to the front.
+     * The parent frequencies never go down, so a run that is turned once is turned after every merge until it
+     * is used up. The runs are kept in a map by frequency and only turned when their first node is needed,
+     * which takes the tree from a sort per merge to a map lookup per merge.
+     *
+     * @param tree the list of nodes sorted by {@link #quickSort(ArrayList, int, int)}, with frequencies that
+     *             add up to no more than {@link Integer#MAX_VALUE}
+     */
+    private static void mergeRuns(ArrayList<Node> tree) {
+        TreeMap<Integer, Run> runs = new TreeMap<>();
+        for (Node node : tree) {
+            Run run = runs.get(node.getFrequency());
+            if (run == null) {
+                run = new Run();
+                runs.put(node.getFrequency(), run);
+            }
+            run.nodes.addLast(node);
+        }
+
+        int size = tree.size();
+        int sorts = 0;
+        int turnedBelow = Integer.MIN_VALUE;
+        Node parent = tree.get(0);
+        while (size > 1) {
+            Node childLeft = takeFirst(runs, sorts);
+            Node childRight = takeFirst(runs, sorts);
+            parent = createNode(childLeft, childRight);
+            size--;
+            if (size == 1) {
+                break;
+            }
+
+            // The runs below the parent's frequency start turning, the parent goes in front of its own run
+            sorts++;
+            int frequency = parent.getFrequency();
+            for (Run run : runs.subMap(turnedBelow, true, frequency, false).values()) {
+                if (run.turned < 0) {
+                    run.turned = sorts - 1;
+                }
+            }
+            turnedBelow = frequency;
+            Run run = runs.get(frequency);
+            if (run == null) {
+                run = new Run();
+                runs.put(frequency, run);
+            }
+            run.nodes.addFirst(parent);
+        }
+        tree.clear();
+        tree.add(parent);
+    }
+
+    /**
+     * Removes the node that would be first in the list after the given number of sorts.
+     *
+     * @param runs  the runs of nodes with the same frequency, by frequency
+     * @param sorts the number of times the list would have been sorted since the first sort
+     * @return the node with the lowest frequency
+     */
+    private static Node takeFirst(TreeMap<Integer, Run> runs, int sorts) {
+        Map.Entry<Integer, Run> first = runs.firstEntry();
+        Run run = first.getValue();
+        run.turn(sorts);
+        Node node = run.nodes.removeFirst();
+        if (run.nodes.isEmpty()) {
+            runs.remove(first.getKey());
+        }
+        return node;
+    }
+
+    /**
+     * Nodes with the same frequency, in the order quickSort would leave them in.
+     */
+    private static final class Run {
+        private final ArrayDeque<Node> nodes = new ArrayDeque<>();
+        // The number of sorts already applied to the order, or -1 while the run is not turning
+        private int turned = -1;
+
+        /**
+         * Turns the run round once for each sort since it was last turned.
+         *
+         * @param sorts the number of sorts since the first sort
+         */
+        private void turn(int sorts) {
+            if (turned < 0) {
+                return;
+            }
+            int turns = (sorts - turned) % nodes.size();
+            turned = sorts;
+            if (turns <= nodes.size() / 2) {
+                for (int i = 0; i < turns; i++) {
+                    nodes.addFirst(nodes.removeLast());
+                }
+            } else {
+                for (int i = turns; i < nodes.size(); i++) {
+                    nodes.addLast(nodes.removeFirst());
+                }
+            }
+        }
+    }
+
     /**
      * Quick sort:
      * Pick one item from the list and call it pivot.
@@ -230,17 +525,24 @@ public class HuffmanTree {
      * and all the elements greater than the pivot are in the right partition.
      * <p>
      * Since every partition is a list on its own, recursion can be used to sort those partitions.
+     * Only the smaller partition is sorted by recursion and the larger one by going round the loop again,
+     * as many equal frequencies always split unevenly and would otherwise overflow the stack.
      *
      * @param tree  the tree that is being sorted
      * @param start the start index
      * @param end   the end index
      */
     public static void quickSort(ArrayList<Node> tree, int start, int end) {
-        if (start < end) {
+        while (start < end) {
             int pivot = partition(tree, start, end);
 
-            quickSort(tree, start, pivot - 1);
-            quickSort(tree, pivot + 1, end);
+            if (pivot - start < end - pivot) {
+                quickSort(tree, start, pivot - 1);
+                start = pivot + 1;
+            } else {
+                quickSort(tree, pivot + 1, end);
+                end = pivot - 1;
+            }
         }
     }
 
@@ -271,6 +573,144 @@ public class HuffmanTree {
         return i + 1;
     }
 
+    /**
+     * Reusable arrays for {@link #getCodeLengths(int[], int[], int, CodeLengthBuffers)} so that building
+     * a code does not allocate once the buffers are big enough.
+     */
+    static final class CodeLengthBuffers {
+        private int[] weights = new int[0];
+        private long[] leaves = new long[0];
+        private long[] nodeWeights = new long[0];
+        private int[] parents = new int[0];
+        private int[] depths = new int[0];
+
+        /**
+         * Makes sure the buffers can hold an alphabet of the given size.
+         *
+         * @param alphabetSize the number of symbols
+         */
+        private void ensureCapacity(int alphabetSize) {
+            if (weights.length < alphabetSize) {
+                weights = new int[alphabetSize];
+                leaves = new long[alphabetSize];
+                nodeWeights = new long[2 * alphabetSize];
+                parents = new int[2 * alphabetSize];
+                depths = new int[2 * alphabetSize];
+            }
+        }
+    }
+
+    /**
+     * Works out the length of the Huffman code for every symbol in a histogram
+     * without building a tree of nodes.
+     *
+     * @param frequencies how often each symbol appears, indexed by symbol
+     * @param lengths     filled with the code length of each symbol (0 if the symbol is not used)
+     * @param maxLength   the longest code length allowed
+     * @see #getCodeLengths(int[], int[], int, CodeLengthBuffers)
+     */
+    public static void getCodeLengths(int[] frequencies, int[] lengths, int maxLength) {
+        getCodeLengths(frequencies, lengths, maxLength, new CodeLengthBuffers());
+    }
+
+    /**
+     * Works out the length of the Huffman code for every symbol in a histogram
+     * without building a tree of nodes.
+     * <p>
+     * The symbols are sorted by frequency once and then merged using two queues, one for the
+     * leaves and one for the parent nodes (which are always created in order of frequency).
+     * If the longest code is longer than maxLength, the frequencies are halved and the
+     * lengths are worked out again until every code fits.
+     *
+     * @param frequencies how often each symbol appears, indexed by symbol
+     * @param lengths     filled with the code length of each symbol (0 if the symbol is not used)
+     * @param maxLength   the longest code length allowed
+     * @param buffers     the arrays to work in
+     */
+    static void getCodeLengths(int[] frequencies, int[] lengths, int maxLength, CodeLengthBuffers buffers) {
+        buffers.ensureCapacity(frequencies.length);
+        int[] weights = buffers.weights;
+        System.arraycopy(frequencies, 0, weights, 0, frequencies.length);
+        while (!fillCodeLengths(weights, frequencies.length, lengths, maxLength, buffers)) {
+            // Flatten the distribution, symbols that are used keep a frequency of at least 1
+            for (int i = 0; i < frequencies.length; i++) {
+                if (weights[i] > 0) {
+                    weights[i] = Math.max(1, weights[i] >>> 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the code lengths for the given frequencies.
+     *
+     * @param frequencies  how often each symbol appears, indexed by symbol
+     * @param alphabetSize the number of symbols
+     * @param lengths      filled with the code length of each symbol
+     * @param maxLength    the longest code length allowed
+     * @param buffers      the arrays to work in
+     * @return true if every code length is at most maxLength
+     */
+    private static boolean fillCodeLengths(int[] frequencies, int alphabetSize, int[] lengths, int maxLength, CodeLengthBuffers buffers) {
+        Arrays.fill(lengths, 0, alphabetSize, 0);
+
+        // Sort the used symbols by frequency, the symbol is kept in the low bits of the key
+        long[] leaves = buffers.leaves;
+        int leafCount = 0;
+        for (int symbol = 0; symbol < alphabetSize; symbol++) {
+            if (frequencies[symbol] > 0) {
+                leaves[leafCount++] = ((long) frequencies[symbol] << 32) | symbol;
+            }
+        }
+        if (leafCount == 0) {
+            return true;
+        }
+        if (leafCount == 1) {
+            // A single symbol still needs one bit so that it can be counted when decoding
+            lengths[(int) leaves[0]] = 1;
+            return true;
+        }
+        Arrays.sort(leaves, 0, leafCount);
+
+        // Nodes 0..leafCount-1 are the leaves, the rest are parent nodes in the order they are created
+        int nodeCount = 2 * leafCount - 1;
+        long[] weight = buffers.nodeWeights;
+        int[] parent = buffers.parents;
+        for (int i = 0; i < leafCount; i++) {
+            weight[i] = leaves[i] >>> 32;
+        }
+        int nextLeaf = 0;
+        int nextParent = leafCount;
+        for (int created = leafCount; created < nodeCount; created++) {
+            weight[created] = 0;
+            for (int child = 0; child < 2; child++) {
+                int smallest;
+                if (nextLeaf < leafCount && (nextParent == created || weight[nextLeaf] <= weight[nextParent])) {
+                    smallest = nextLeaf++;
+                } else {
+                    smallest = nextParent++;
+                }
+                weight[created] += weight[smallest];
+                parent[smallest] = created;
+            }
+        }
+
+        // The depth of a node is one more than its parent, the root is the last node created
+        int[] depth = buffers.depths;
+        depth[nodeCount - 1] = 0;
+        for (int node = nodeCount - 2; node >= 0; node--) {
+            depth[node] = depth[parent[node]] + 1;
+        }
+        boolean fits = true;
+        for (int i = 0; i < leafCount; i++) {
+            lengths[(int) leaves[i]] = depth[i];
+            if (depth[i] > maxLength) {
+                fits = false;
+            }
+        }
+        return fits;
+    }
+
     /**
      * Create a parent node with two child nodes.
      *
@@ -293,16 +733,18 @@ public class HuffmanTree {
      * Read a file given a file directory.
      *
      * @param fileDir the file dir
+     * @param metrics the metrics to add the number of bytes read to
      * @return the contents of the file as a string
      */
-    private String readFile(String fileDir) {
+    private String readFile(String fileDir, CodecMetrics metrics) {
         StringBuilder text = new StringBuilder();
         try {
             DataInputStream reader = new DataInputStream(new FileInputStream(fileDir));
             int numberOfBytes = reader.available();
             if (numberOfBytes > 0) {
                 byte[] bytes = new byte[numberOfBytes];
-                reader.read(bytes);
+                reader.readFully(bytes);
+                metrics.addBytesIn(numberOfBytes);
                 text.append(new String(bytes, StandardCharsets.UTF_8));
             }
         } catch (IOException e) {
@@ -7,7 +7,7 @@ public class Node {
     private boolean root = false;
     private final boolean leafNode;
     private final int frequency;
-    private Character value;
+    private int value;
     private Node child_left = null;
     private Node child_right = null;
     private Node parent = null;
@@ -62,9 +62,9 @@ public class Node {
     /**
      * Gets value.
      *
-     * @return the value
+     * @return the code point of the character
      */
-    public Character getValue() {
+    public int getValue() {
         return value;
     }
 
@@ -116,9 +116,9 @@ public class Node {
     /**
      * Sets character value.
      *
-     * @param value the value
+     * @param value the code point of the character
      */
-    public void setValue(Character value) {
+    public void setValue(int value) {
         this.value = value;
     }
 
@@ -0,0 +1,302 @@
+package Huffman;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Decompresses files written by {@link Encoder} using several threads.
+ * <p>
+ * The compressed bits are cut into chunks at arbitrary bit positions and each chunk is decoded by its own thread.
+ * A thread that starts in the middle of a code decodes garbage at first, but Huffman codes synchronise themselves:
+ * after a few codes the thread almost always lands on a real code boundary and from then on its output is correct.
+ * <p>
+ * Each thread decodes with the lookup table of {@link DecodeTree}, several codes at a time, and remembers the
+ * boundaries between its lookups near the start of its chunk. Once every thread has finished, the chunks are
+ * joined in order: the real position where the previous chunk ended is decoded one code at a time until it
+ * reaches one of the boundaries the next chunk saw, and the rest of that chunk's output is kept.
+ * If a chunk never synchronised, it is simply decoded again from the real position, so the output is always
+ * the same as {@link Decoder}'s.
+ */
+public class ParallelDecoder {
+    /**
+     * How many bits at the start of each chunk have their code boundaries remembered.
+     */
+    private static final int SYNC_WINDOW_BITS = 1 << 15;
+    /**
+     * Chunks are never made smaller than this many bits, so small files are decoded by one thread.
+     */
+    private static final long MIN_CHUNK_BITS = 1 << 20;
+
+    /**
+     * Function to decompress a compressed file using one thread per processor.
+     *
+     * @param fileDir        the file dir of the compressed file
+     * @param newFileDir     the new file dir for the decompressed file
+     * @param outputFileName the output file name for the decompressed file
+     * @throws IOException a possible io exception
+     */
+    public static void decompress(String fileDir, String newFileDir, String outputFileName) throws IOException {
+        decompress(fileDir, newFileDir, outputFileName, Runtime.getRuntime().availableProcessors(), new CodecMetrics());
+    }
+
+    /**
+     * Function to decompress a compressed file, recording the time spent in each stage.
+     *
+     * @param fileDir        the file dir of the compressed file
+     * @param newFileDir     the new file dir for the decompressed file
+     * @param outputFileName the output file name for the decompressed file
+     * @param threads        the most threads to decode with
+     * @param metrics        the metrics to record to
+     * @throws IOException a possible io exception
+     */
+    public static void decompress(String fileDir, String newFileDir, String outputFileName, int threads, CodecMetrics metrics) throws IOException {
+        decompress(fileDir, newFileDir, outputFileName, threads, metrics, DecodeLimits.unlimited());
+    }
+
+    /**
+     * Function to decompress a compressed file from an untrusted source, rejecting it if it breaks the limits.
+     *
+     * @param fileDir        the file dir of the compressed file
+     * @param newFileDir     the new file dir for the decompressed file
+     * @param outputFileName the output file name for the decompressed file
+     * @param threads        the most threads to decode with
+     * @param metrics        the metrics to record to
+     * @param limits         the limits the file has to keep to
+     * @throws IOException if the file cannot be read or written, is not valid, or breaks the limits
+     */
+    public static void decompress(String fileDir, String newFileDir, String outputFileName, int threads, CodecMetrics metrics,
+                                  DecodeLimits limits) throws IOException {
+        // Creates the name of the decompressed file, the same as Decoder does
+        newFileDir += "/" + outputFileName + "-uncompressed.txt";
+
+        long start = metrics.start();
+        byte[] file = Decoder.readFileAsByteArray(fileDir);
+        String[] treeAndPadding = Decoder.getTreeStructureAndPadding(file);
+        metrics.addBytesIn(file.length);
+        start = metrics.record(CodecMetrics.Stage.IO, start);
+
+        // The compressed bits start after the two header lines
+        int offset = treeAndPadding[0].length() + treeAndPadding[1].length() + 2;
+        long totalBits = Decoder.getTotalBits(file, offset, treeAndPadding[1]);
+
+        metrics.progress(CodecMetrics.Stage.BUILD, offset, file.length);
+        DecodeTree tree = Decoder.getDecodeTree(treeAndPadding[0], limits);
+        start = metrics.record(CodecMetrics.Stage.BUILD, start);
+
+        metrics.progress(CodecMetrics.Stage.DECODE, offset, file.length);
+        String decodedFile = decode(tree, file, offset, totalBits, threads, limits, metrics);
+        start = metrics.record(CodecMetrics.Stage.DECODE, start);
+        metrics.progress(CodecMetrics.Stage.IO, file.length, file.length);
+
+        Decoder.saveFile(decodedFile, newFileDir);
+        metrics.addBytesOut(Files.size(Paths.get(newFileDir)));
+        metrics.record(CodecMetrics.Stage.IO, start);
+    }
+
+    /**
+     * Decodes the compressed bits, splitting them between threads.
+     *
+     * @param tree      the tree the bits were encoded with
+     * @param data      the compressed file
+     * @param offset    the index of the first compressed byte
+     * @param totalBits the number of compressed bits, not counting the padding
+     * @param threads   the most threads to decode with
+     * @param limits    the limits on the decoded size
+     * @param metrics   the metrics to report progress to as the chunks finish
+     * @return the decoded string
+     * @throws IOException if the compressed data ends in the middle of a code, breaks the limits
+     *                     or decoding is interrupted
+     */
+    static String decode(DecodeTree tree, byte[] data, int offset, long totalBits, int threads, DecodeLimits limits,
+                         CodecMetrics metrics) throws IOException {
+        // A tree with one character or none has nothing to split between threads
+        if (tree.isEmpty() || tree.isSingleLeaf() || totalBits <= 0) {
+            return tree.decode(data, offset, totalBits, limits);
+        }
+        int chunkCount = (int) Math.max(1, Math.min(threads, totalBits / MIN_CHUNK_BITS));
+        // No chunk can be longer than the whole output, so each one stops once it passes the limit
+        long maxLength = limits.getMaxOutputLength(data.length);
+        List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            chunks.add(new Chunk(totalBits * i / chunkCount, totalBits * (i + 1) / chunkCount, maxLength));
+        }
+
+        if (chunkCount == 1) {
+            chunks.get(0).decode(tree, data, offset, totalBits);
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(chunkCount);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (Chunk chunk : chunks) {
+                    futures.add(executor.submit(() -> chunk.decode(tree, data, offset, totalBits)));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    futures.get(i).get();
+                    metrics.progress(CodecMetrics.Stage.DECODE, offset + chunks.get(i).end / 8, data.length);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decoding");
+            } catch (ExecutionException e) {
+                throw new IOException("Decoding a chunk failed", e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        for (Chunk chunk : chunks) {
+            limits.checkOutput(chunk.output.length(), data.length);
+        }
+        String decodedData = join(tree, data, offset, totalBits, chunks);
+        limits.checkOutput(decodedData.length(), data.length);
+        return decodedData;
+    }
+
+    /**
+     * Joins the output of every chunk, fixing up the start of any chunk whose thread began on the wrong boundary.
+     *
+     * @param tree      the tree the bits were encoded with
+     * @param data      the compressed file
+     * @param offset    the index of the first compressed byte
+     * @param totalBits the number of compressed bits
+     * @param chunks    the decoded chunks in order
+     * @return the decoded string
+     * @throws IOException if the compressed data ends in the middle of a code
+     */
+    private static String join(DecodeTree tree, byte[] data, int offset, long totalBits, List<Chunk> chunks) throws IOException {
+        // The first chunk starts at bit 0 so it is always right
+        Chunk first = chunks.get(0);
+        if (first.finish < first.end) {
+            throw new IOException("Compressed data ended in the middle of a code");
+        }
+        StringBuilder decodedData = first.output;
+        long position = first.finish;
+
+        for (int i = 1; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            while (true) {
+                // Both decodings are on the same boundary, so the rest of the chunk is right
+                int outputBefore = chunk.outputBefore(position);
+                if (outputBefore >= 0) {
+                    decodedData.append(chunk.output, outputBefore, chunk.output.length());
+                    position = chunk.finish;
+                    if (position < 0) {
+                        throw new IOException("Compressed data ended in the middle of a code");
+                    }
+                    break;
+                }
+                if (position >= chunk.end) {
+                    break;
+                }
+                if (!chunk.remembers(position)) {
+                    // Past the boundaries the chunk remembered, so it never got in step and the rest is decoded again
+                    while (position < chunk.end) {
+                        position = tree.nextStep(data, offset, position, totalBits, decodedData);
+                        if (position < 0) {
+                            throw new IOException("Compressed data ended in the middle of a code");
+                        }
+                    }
+                    break;
+                }
+                // Not in step yet, decode one more code from the real boundary
+                position = tree.next(data, offset, position, totalBits, decodedData);
+                if (position < 0) {
+                    throw new IOException("Compressed data ended in the middle of a code");
+                }
+            }
+        }
+        if (position != totalBits) {
+            throw new IOException("Compressed data ended in the middle of a code");
+        }
+        return decodedData.toString();
+    }
+
+    /**
+     * The part of the compressed bits decoded by one thread.
+     */
+    private static final class Chunk {
+        private final long start;
+        private final long end;
+        private final long maxLength;
+        private final StringBuilder output = new StringBuilder();
+        // The length of the output at each lookup boundary near the start plus one, or 0 if it is not one
+        private final int[] boundaries;
+        // The bit after the last code decoded, or -1 if the data ended in the middle of a code
+        private long finish;
+
+        /**
+         * Instantiates a new Chunk.
+         *
+         * @param start     the first bit of the chunk
+         * @param end       the bit after the chunk
+         * @param maxLength the most chars to decode before giving up
+         */
+        Chunk(long start, long end, long maxLength) {
+            this.start = start;
+            this.end = end;
+            this.maxLength = maxLength;
+            this.boundaries = new int[(int) Math.min(SYNC_WINDOW_BITS, end - start + 1)];
+        }
+
+        /**
+         * Decodes from the start of the chunk until the first lookup that finishes at or after its end.
+         *
+         * @param tree      the tree the bits were encoded with
+         * @param data      the compressed file
+         * @param offset    the index of the first compressed byte
+         * @param totalBits the number of compressed bits
+         */
+        void decode(DecodeTree tree, byte[] data, int offset, long totalBits) {
+            long position = start;
+            mark(position);
+            while (position < end && output.length() <= maxLength) {
+                position = tree.nextStep(data, offset, position, totalBits, output);
+                if (position < 0) {
+                    // Ran off the end of the data, which only matters if this chunk turns out to be in step
+                    break;
+                }
+                mark(position);
+            }
+            finish = position;
+        }
+
+        /**
+         * Remembers that a code starts at the given bit if it is near the start of the chunk.
+         *
+         * @param position the bit
+         */
+        private void mark(long position) {
+            if (position - start < boundaries.length) {
+                boundaries[(int) (position - start)] = output.length() + 1;
+            }
+        }
+
+        /**
+         * Checks whether the given bit is near enough the start of the chunk for its boundaries to be remembered.
+         *
+         * @param position the bit
+         * @return true if this chunk could have remembered a boundary there
+         */
+        boolean remembers(long position) {
+            return position - start < boundaries.length;
+        }
+
+        /**
+         * Finds how much output this chunk had decoded when it reached the given bit.
+         *
+         * @param position the bit
+         * @return the number of chars, or -1 if this chunk did not find a code starting there
+         */
+        int outputBefore(long position) {
+            long index = position - start;
+            if (index < 0 || index >= boundaries.length) {
+                return -1;
+            }
+            return boundaries[(int) index] - 1;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package Huffman;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.*;
+
+/**
+ * Compresses a file into the block format using separate stages for reading, encoding and writing.
+ * <p>
+ * A reader thread fills blocks from the input file and hands them to a pool of encoder threads.
+ * The calling thread writes the compressed blocks in order as they finish. The stages are joined by a
+ * bounded queue, so while one block is being read the earlier ones are being encoded and written,
+ * and the whole job takes about as long as the slowest stage instead of the sum of them all.
+ * <p>
+ * Every block carries its own code table so that blocks can be encoded in any order, the output is read
+ * by {@link BlockDecoder} like any other block compressed file.
+ */
+public class PipelinedEncoder {
+    /**
+     * The default number of blocks that can wait between the reader and the writer.
+     */
+    public static final int DEFAULT_QUEUE_DEPTH = 8;
+
+    private final int blockSize;
+    private final int threads;
+    private final int queueDepth;
+    private boolean asynchronousIO = false;
+    private CompressionLevel level = CompressionLevel.DEFAULT;
+    private ProgressListener progressListener = null;
+    private CodecMetrics metrics = new CodecMetrics();
+
+    /**
+     * Instantiates a new Pipelined encoder using the default block size, one encoder thread per processor
+     * and the default queue depth.
+     */
+    public PipelinedEncoder() {
+        this(BlockEncoder.DEFAULT_BLOCK_SIZE, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * Instantiates a new Pipelined encoder.
+     *
+     * @param blockSize  the number of bytes in a block
+     * @param threads    the number of encoder threads
+     * @param queueDepth the most blocks that can wait between the reader and the writer
+     */
+    public PipelinedEncoder(int blockSize, int threads, int queueDepth) {
+        if (blockSize <= 0 || threads <= 0 || queueDepth <= 0) {
+            throw new IllegalArgumentException("Block size, threads and queue depth must be positive");
+        }
+        this.blockSize = blockSize;
+        this.threads = threads;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Gets the metrics that this encoder records to.
+     *
+     * @return the metrics
+     */
+    public CodecMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets the metrics that this encoder records to.
+     *
+     * @param metrics the metrics
+     */
+    public void setMetrics(CodecMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets whether the files are read and written with {@link AsynchronousFileChannel}s.
+     * <p>
+     * When set, the writer starts writing a block and goes on to wait for the next one to be encoded,
+     * only waiting for the write to finish when the block's buffers are needed again.
+     *
+     * @param asynchronousIO true to use asynchronous file channels
+     */
+    public void setAsynchronousIO(boolean asynchronousIO) {
+        this.asynchronousIO = asynchronousIO;
+    }
+
+    /**
+     * Sets how much work is done choosing how to store each block.
+     *
+     * @param level the compression level
+     */
+    public void setLevel(CompressionLevel level) {
+        this.level = level;
+    }
+
+    /**
+     * Sets the listener told each time a block has been written.
+     *
+     * @param progressListener the listener, or null for none
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Compresses a file.
+     *
+     * @param input  the file to compress
+     * @param output where the compressed file is written, replacing anything already there
+     * @return the number of bytes written
+     * @throws IOException if a file cannot be read or written
+     */
+    public long compress(Path input, Path output) throws IOException {
+        try (BlockChannel in = BlockChannel.open(input, asynchronousIO, StandardOpenOption.READ);
+             BlockChannel out = BlockChannel.open(output, asynchronousIO, StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            return compress(in, out, in.size());
+        }
+    }
+
+    /**
+     * Runs the reader and encoders in the background and writes the blocks on this thread.
+     *
+     * @param in         the input file
+     * @param out        the output file
+     * @param totalBytes the size of the input file
+     * @return the number of bytes written
+     * @throws IOException if a file cannot be read or written
+     */
+    private long compress(BlockChannel in, BlockChannel out, long totalBytes) throws IOException {
+        // Every block is either waiting in the queue, being read or being written
+        BlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<>(queueDepth + 2);
+        for (int i = 0; i < queueDepth + 2; i++) {
+            freeBlocks.add(new Block());
+        }
+        BlockingQueue<Future<Block>> encodedBlocks = new ArrayBlockingQueue<>(queueDepth);
+        ExecutorService encoders = Executors.newFixedThreadPool(threads, daemonThreads("huffman-encoder"));
+        Thread reader = daemonThreads("huffman-reader").newThread(() -> read(in, freeBlocks, encodedBlocks, encoders));
+        reader.start();
+
+        long position = 0;
+        long bytesProcessed = 0;
+        try {
+            position = out.write(ByteBuffer.wrap(BlockEncoder.MAGIC_BYTES), position);
+            Block writing = null;
+            Block block;
+            // A block of null marks the end of the input
+            while ((block = encodedBlocks.take().get()) != null) {
+                long start = metrics.start();
+                if (writing != null) {
+                    writing.finishWrite();
+                    freeBlocks.put(writing);
+                }
+                block.compressed.clear().limit(block.compressedLength);
+                block.startWrite(out, position);
+                position += block.compressedLength;
+                writing = block;
+                metrics.record(CodecMetrics.Stage.IO, start);
+
+                bytesProcessed += block.rawLength;
+                if (progressListener != null) {
+                    progressListener.onProgress(new ProgressEvent(CodecMetrics.Stage.ENCODE, bytesProcessed, totalBytes));
+                }
+            }
+            long start = metrics.start();
+            if (writing != null) {
+                writing.finishWrite();
+            }
+            position = out.write(ByteBuffer.wrap(new byte[]{BlockFormat.END}), position);
+            metrics.addBytesOut(BlockFormat.FRAME_SIZE);
+            metrics.record(CodecMetrics.Stage.IO, start);
+            return position;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Compressing a block failed", e.getCause());
+        } finally {
+            reader.interrupt();
+            encoders.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads blocks from the input and passes them to the encoders, until the input ends.
+     * <p>
+     * The futures are queued in the order the blocks were read, so the writer gets them back in order
+     * however long each one takes to encode. A failure is passed on to the writer through the queue.
+     *
+     * @param in            the input file
+     * @param freeBlocks    blocks that can be read into
+     * @param encodedBlocks the queue the writer takes blocks from
+     * @param encoders      the encoder threads
+     */
+    private void read(BlockChannel in, BlockingQueue<Block> freeBlocks, BlockingQueue<Future<Block>> encodedBlocks,
+                      ExecutorService encoders) {
+        try {
+            long position = 0;
+            while (true) {
+                Block block = freeBlocks.take();
+                long start = metrics.start();
+                block.raw.clear();
+                int length = in.readFully(block.raw, position);
+                metrics.record(CodecMetrics.Stage.IO, start);
+                if (length == 0) {
+                    encodedBlocks.put(CompletableFuture.completedFuture(null));
+                    return;
+                }
+                position += length;
+                encodedBlocks.put(encoders.submit(() -> encode(block, length)));
+            }
+        } catch (InterruptedException e) {
+            // The writer has stopped
+        } catch (IOException | RuntimeException e) {
+            CompletableFuture<Block> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            try {
+                encodedBlocks.put(failed);
+            } catch (InterruptedException stopped) {
+                // The writer has stopped
+            }
+        }
+    }
+
+    /**
+     * Compresses a block on one of the encoder threads, using that thread's context.
+     *
+     * @param block  the block
+     * @param length the number of bytes read into it
+     * @return the block
+     */
+    private Block encode(Block block, int length) {
+        BlockEncoder encoder = new BlockEncoder(blockSize);
+        encoder.setMetrics(metrics);
+        encoder.setLevel(level);
+        block.compressed.clear();
+        block.rawLength = length;
+        block.compressedLength = encoder.encodeIndependentBlock(block.raw, 0, length, block.compressed, 0);
+        return block;
+    }
+
+    /**
+     * Makes daemon threads so a failed job cannot keep the program running.
+     *
+     * @param name the name given to each thread
+     * @return the thread factory
+     */
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * The buffers for one block, reused once the block has been written.
+     */
+    private final class Block {
+        private final ByteBuffer raw = ByteBuffer.allocate(blockSize);
+        private final ByteBuffer compressed = ByteBuffer.allocate(BlockEncoder.maxCompressedLength(blockSize, blockSize));
+        private int rawLength;
+        private int compressedLength;
+        private Future<?> pendingWrite;
+
+        /**
+         * Starts writing the compressed block.
+         *
+         * @param out      the output file
+         * @param position where in the file to write it
+         * @throws IOException if the block cannot be written
+         */
+        void startWrite(BlockChannel out, long position) throws IOException {
+            pendingWrite = out.startWrite(compressed, position);
+        }
+
+        /**
+         * Waits for the compressed block to be written.
+         *
+         * @throws IOException          if the block could not be written
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void finishWrite() throws IOException, InterruptedException {
+            try {
+                pendingWrite.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Writing a block failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * A file that blocks are read from or written to at a given position.
+     */
+    private abstract static class BlockChannel implements Closeable {
+        /**
+         * Opens a file.
+         *
+         * @param path         the file
+         * @param asynchronous true to use an {@link AsynchronousFileChannel}
+         * @param options      how to open the file
+         * @return the channel
+         * @throws IOException if the file cannot be opened
+         */
+        static BlockChannel open(Path path, boolean asynchronous, OpenOption... options) throws IOException {
+            if (asynchronous) {
+                return new AsynchronousBlockChannel(AsynchronousFileChannel.open(path, options));
+            }
+            return new SynchronousBlockChannel(FileChannel.open(path, options));
+        }
+
+        /**
+         * Reads until the buffer is full or the file ends.
+         *
+         * @param buffer   where the bytes are read to
+         * @param position where in the file to read from
+         * @return the number of bytes read, 0 at the end of the file
+         * @throws IOException if the file cannot be read
+         */
+        abstract int readFully(ByteBuffer buffer, long position) throws IOException;
+
+        /**
+         * Gets the size of the file.
+         *
+         * @return the number of bytes
+         * @throws IOException if the size cannot be read
+         */
+        abstract long size() throws IOException;
+
+        /**
+         * Starts writing the rest of a buffer.
+         *
+         * @param buffer   the bytes to write
+         * @param position where in the file to write them
+         * @return a future that finishes when every byte has been written
+         * @throws IOException if the bytes cannot be written
+         */
+        abstract Future<?> startWrite(ByteBuffer buffer, long position) throws IOException;
+
+        /**
+         * Writes the rest of a buffer and waits for it to finish.
+         *
+         * @param buffer   the bytes to write
+         * @param position where in the file to write them
+         * @return the position after the bytes
+         * @throws IOException          if the bytes cannot be written
+         * @throws InterruptedException if interrupted while waiting
+         */
+        long write(ByteBuffer buffer, long position) throws IOException, InterruptedException {
+            int length = buffer.remaining();
+            try {
+                startWrite(buffer, position).get();
+            } catch (ExecutionException e) {
+                throw new IOException("Writing failed", e.getCause());
+            }
+            return position + length;
+        }
+    }
+
+    /**
+     * Reads and writes using a {@link FileChannel}, every write finishes before it returns.
+     */
+    private static final class SynchronousBlockChannel extends BlockChannel {
+        private final FileChannel channel;
+
+        /**
+         * Instantiates a new Synchronous block channel.
+         *
+         * @param channel the file channel
+         */
+        SynchronousBlockChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        int readFully(ByteBuffer buffer, long position) throws IOException {
+            int read = 0;
+            while (buffer.hasRemaining()) {
+                int count = channel.read(buffer, position + read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return read;
+        }
+
+        @Override
+        long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        Future<?> startWrite(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads and writes using an {@link AsynchronousFileChannel}, so writes carry on in the background.
+     */
+    private static final class AsynchronousBlockChannel extends BlockChannel {
+        private final AsynchronousFileChannel channel;
+
+        /**
+         * Instantiates a new Asynchronous block channel.
+         *
+         * @param channel the file channel
+         */
+        AsynchronousBlockChannel(AsynchronousFileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        int readFully(ByteBuffer buffer, long position) throws IOException {
+            int read = 0;
+            try {
+                while (buffer.hasRemaining()) {
+                    int count = channel.read(buffer, position + read).get();
+                    if (count < 0) {
+                        break;
+                    }
+                    read += count;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading");
+            } catch (ExecutionException e) {
+                throw new IOException("Reading failed", e.getCause());
+            }
+            return read;
+        }
+
+        @Override
+        long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        Future<?> startWrite(ByteBuffer buffer, long position) {
+            CompletableFuture<Void> written = new CompletableFuture<>();
+            writeRest(buffer, position, written);
+            return written;
+        }
+
+        /**
+         * Writes what is left of the buffer, starting another write if only part of it was written.
+         *
+         * @param buffer   the bytes to write
+         * @param position where in the file to write them
+         * @param written  completed once every byte has been written
+         */
+        private void writeRest(ByteBuffer buffer, long position, CompletableFuture<Void> written) {
+            channel.write(buffer, position, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer count, Void attachment) {
+                    if (buffer.hasRemaining()) {
+                        writeRest(buffer, position + count, written);
+                    } else {
+                        written.complete(null);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    written.completeExceptionally(e);
+                }
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package Huffman;
+
+/**
+ * How far a compression or decompression job has got.
+ */
+public class ProgressEvent {
+    private final CodecMetrics.Stage stage;
+    private final long bytesProcessed;
+    private final long totalBytes;
+
+    /**
+     * Instantiates a new Progress event.
+     *
+     * @param stage          the stage the job is in
+     * @param bytesProcessed the number of input bytes finished with so far
+     * @param totalBytes     the number of input bytes in the whole job, or -1 if it is not known
+     */
+    public ProgressEvent(CodecMetrics.Stage stage, long bytesProcessed, long totalBytes) {
+        this.stage = stage;
+        this.bytesProcessed = bytesProcessed;
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Gets the stage the job is in.
+     *
+     * @return the stage
+     */
+    public CodecMetrics.Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * Gets the number of input bytes finished with so far.
+     *
+     * @return the bytes processed
+     */
+    public long getBytesProcessed() {
+        return bytesProcessed;
+    }
+
+    /**
+     * Gets the number of input bytes in the whole job.
+     *
+     * @return the total bytes, or -1 if it is not known
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Gets how much of the job is done.
+     *
+     * @return a number from 0 to 1, or -1 if the total is not known
+     */
+    public double getFraction() {
+        if (totalBytes < 0) {
+            return -1;
+        }
+        return totalBytes == 0 ? 1 : Math.min(1, (double) bytesProcessed / totalBytes);
+    }
+
+    @Override
+    public String toString() {
+        return stage.name().toLowerCase() + " " + bytesProcessed + "/" + (totalBytes < 0 ? "?" : totalBytes) + "B";
+    }
+}
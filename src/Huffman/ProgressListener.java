@@ -0,0 +1,17 @@
+package Huffman;
+
+/**
+ * Told about the progress of a compression or decompression job.
+ * <p>
+ * Listeners are called on the thread doing the work, so they should return quickly. Throwing an unchecked
+ * exception from a listener stops the job.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+    /**
+     * Called each time a block has been finished with.
+     *
+     * @param event how far the job has got
+     */
+    void onProgress(ProgressEvent event);
+}
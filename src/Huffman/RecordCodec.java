@@ -0,0 +1,349 @@
+package Huffman;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compresses short records (log fields, keys, column values) one at a time with a shared code table.
+ * <p>
+ * A record is written as its length in bytes as a varint followed by the Huffman codes of its bytes, padded
+ * to a whole byte. There is no header and no code table in the record, so a one byte key takes two bytes
+ * instead of the hundreds a compressed file would. The code table is built once, from a sample of the records
+ * or a saved {@link CodeTable}, and every byte must have a code, so any record can be encoded with it.
+ * <p>
+ * Nothing is allocated per record and the codec cannot be changed once built, so one codec can be shared by
+ * any number of threads. The caller keeps track of where each record starts, as a record store does anyway;
+ * {@link #encodeAll} and {@link #decodeAll} work through a column of records laid out by an array of offsets.
+ */
+public class RecordCodec {
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[256]);
+
+    // The code of each byte in the upper bits and its length in the lowest 8 bits
+    private final int[] codes = new int[CodeTable.ALPHABET_SIZE];
+    private final int[] decodeTable;
+
+    /**
+     * Instantiates a new Record codec.
+     *
+     * @param table the code table, which must have a code for every byte
+     */
+    public RecordCodec(CodeTable table) {
+        for (int symbol = 0; symbol < CodeTable.ALPHABET_SIZE; symbol++) {
+            int length = table.getLength(symbol);
+            if (length == 0) {
+                throw new IllegalArgumentException("Code table has no code for byte " + symbol);
+            }
+            codes[symbol] = table.getCode(symbol) << 8 | length;
+        }
+        // A copy, so rebuilding the table afterwards does not change the codec
+        decodeTable = table.getDecodeTable().clone();
+    }
+
+    /**
+     * Creates a codec for records with the given byte frequencies.
+     * Bytes that never appear are counted once, so that they still get a code.
+     *
+     * @param histogram how often each byte appears
+     * @return the codec
+     */
+    public static RecordCodec fromHistogram(int[] histogram) {
+        int[] counts = new int[CodeTable.ALPHABET_SIZE];
+        for (int symbol = 0; symbol < CodeTable.ALPHABET_SIZE; symbol++) {
+            counts[symbol] = Math.max(1, histogram[symbol]);
+        }
+        return new RecordCodec(CodeTable.fromHistogram(counts));
+    }
+
+    /**
+     * Creates a codec from a sample of the records.
+     *
+     * @param sample the sample, for example a batch of records laid end to end
+     * @param offset the index of the first byte of the sample
+     * @param length the number of bytes in the sample
+     * @return the codec
+     */
+    public static RecordCodec train(byte[] sample, int offset, int length) {
+        int[] histogram = new int[CodeTable.ALPHABET_SIZE];
+        ByteHistogram.add(sample, offset, length, histogram, ByteHistogram.newLanes());
+        return fromHistogram(histogram);
+    }
+
+    /**
+     * Works out the most bytes a record of the given length can take once encoded.
+     *
+     * @param length the number of bytes in the record
+     * @return the number of bytes
+     */
+    public static int maxEncodedLength(int length) {
+        long bound = BlockFormat.varIntSize(length) + ((long) length * CodeTable.MAX_CODE_LENGTH + 7) / 8;
+        if (bound > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Record too large: " + length);
+        }
+        return (int) bound;
+    }
+
+    /**
+     * Reads the length of a record once decoded from the start of the encoded record.
+     *
+     * @param src    the encoded record
+     * @param offset the index of the first byte of the record
+     * @param length the number of bytes in the encoded record
+     * @return the number of bytes in the record
+     * @throws IOException if the length is not valid
+     */
+    public static int decodedLength(byte[] src, int offset, int length) throws IOException {
+        int decodedLength = readVarInt(src, offset, offset + length);
+        // Every byte takes at least one bit
+        if (decodedLength > 8L * length) {
+            throw new IOException("Record is too short for its length");
+        }
+        return decodedLength;
+    }
+
+    /**
+     * Encodes a record.
+     *
+     * @param src       the bytes of the record
+     * @param srcOffset the index of the first byte of the record
+     * @param length    the number of bytes in the record
+     * @param dst       where the encoded record is written
+     * @param dstOffset the index to write the encoded record at
+     * @return the number of bytes written
+     * @throws BufferOverflowException if dst has less than {@link #maxEncodedLength(int)} bytes left, in which case
+     *                                 nothing is written
+     */
+    public int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        if (dst.length - dstOffset < maxEncodedLength(length)) {
+            throw new BufferOverflowException();
+        }
+        int index = dstOffset;
+        int value = length;
+        while ((value & ~0x7f) != 0) {
+            dst[index++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        dst[index++] = (byte) value;
+
+        // The codes are collected in a 64 bit buffer and written 4 bytes at a time
+        int[] codes = this.codes;
+        long bits = 0;
+        int bitCount = 0;
+        for (int i = srcOffset, end = srcOffset + length; i < end; i++) {
+            int code = codes[src[i] & 0xff];
+            int codeLength = code & 0xff;
+            bits = (bits << codeLength) | (code >>> 8);
+            bitCount += codeLength;
+            if (bitCount >= 32) {
+                bitCount -= 32;
+                int word = (int) (bits >>> bitCount);
+                dst[index] = (byte) (word >>> 24);
+                dst[index + 1] = (byte) (word >>> 16);
+                dst[index + 2] = (byte) (word >>> 8);
+                dst[index + 3] = (byte) word;
+                index += 4;
+            }
+        }
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            dst[index++] = (byte) (bits >>> bitCount);
+        }
+        if (bitCount > 0) {
+            dst[index++] = (byte) (bits << (8 - bitCount));
+        }
+        return index - dstOffset;
+    }
+
+    /**
+     * Encodes the UTF-8 bytes of a string.
+     *
+     * @param record    the record
+     * @param dst       where the encoded record is written
+     * @param dstOffset the index to write the encoded record at
+     * @return the number of bytes written
+     * @throws BufferOverflowException if dst does not have room for the longest encoding of the record,
+     *                                 in which case nothing is written
+     */
+    public int encode(CharSequence record, byte[] dst, int dstOffset) {
+        byte[] scratch = scratch(3 * record.length());
+        int length = 0;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (c < 0x80) {
+                scratch[length++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[length++] = (byte) (0xc0 | c >>> 6);
+                scratch[length++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < record.length()
+                    && Character.isLowSurrogate(record.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, record.charAt(++i));
+                scratch[length++] = (byte) (0xf0 | codePoint >>> 18);
+                scratch[length++] = (byte) (0x80 | codePoint >>> 12 & 0x3f);
+                scratch[length++] = (byte) (0x80 | codePoint >>> 6 & 0x3f);
+                scratch[length++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                // A surrogate without its other half is written as '?', the same as String.getBytes
+                scratch[length++] = '?';
+            } else {
+                scratch[length++] = (byte) (0xe0 | c >>> 12);
+                scratch[length++] = (byte) (0x80 | c >>> 6 & 0x3f);
+                scratch[length++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return encode(scratch, 0, length, dst, dstOffset);
+    }
+
+    /**
+     * Decodes a record.
+     *
+     * @param src       the encoded record
+     * @param srcOffset the index of the first byte of the encoded record
+     * @param srcLength the number of bytes in the encoded record
+     * @param dst       where the record is written
+     * @param dstOffset the index to write the record at
+     * @return the number of bytes in the record
+     * @throws IOException             if the encoded record is not valid
+     * @throws BufferOverflowException if dst does not have room for the record, in which case nothing is written
+     */
+    public int decode(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset) throws IOException {
+        int end = srcOffset + srcLength;
+        int length = decodedLength(src, srcOffset, srcLength);
+        if (dst.length - dstOffset < length) {
+            throw new BufferOverflowException();
+        }
+        int index = srcOffset;
+        while (src[index++] < 0) {
+            // Skip the length
+        }
+
+        // The next bits are kept at the top of a 64 bit buffer, which is topped up a byte at a time
+        int[] decodeTable = this.decodeTable;
+        long bits = 0;
+        int bitCount = 0;
+        for (int i = dstOffset, dstEnd = dstOffset + length; i < dstEnd; i++) {
+            if (bitCount < CodeTable.MAX_CODE_LENGTH) {
+                while (bitCount <= 56 && index < end) {
+                    bits |= (long) (src[index++] & 0xff) << (56 - bitCount);
+                    bitCount += 8;
+                }
+            }
+            int entry = decodeTable[(int) (bits >>> (64 - CodeTable.MAX_CODE_LENGTH))];
+            int codeLength = entry & 0xff;
+            if (codeLength == 0 || codeLength > bitCount) {
+                throw new IOException("Invalid code in record");
+            }
+            dst[i] = (byte) (entry >>> 8);
+            bits <<= codeLength;
+            bitCount -= codeLength;
+        }
+        return length;
+    }
+
+    /**
+     * Decodes a record written by {@link #encode(CharSequence, byte[], int)}.
+     *
+     * @param src       the encoded record
+     * @param srcOffset the index of the first byte of the encoded record
+     * @param srcLength the number of bytes in the encoded record
+     * @return the record
+     * @throws IOException if the encoded record is not valid
+     */
+    public String decodeString(byte[] src, int srcOffset, int srcLength) throws IOException {
+        byte[] scratch = scratch(decodedLength(src, srcOffset, srcLength));
+        int length = decode(src, srcOffset, srcLength, scratch, 0);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a column of records laid end to end.
+     * <p>
+     * Record i is the bytes from {@code srcOffsets[i]} up to {@code srcOffsets[i + 1]}, so srcOffsets holds
+     * count + 1 offsets. The encoded records are written end to end in the same way, and their offsets are
+     * written to dstOffsets, starting with dstOffset.
+     *
+     * @param src        the records
+     * @param srcOffsets where each record starts, followed by where the last one ends
+     * @param count      the number of records
+     * @param dst        where the encoded records are written
+     * @param dstOffset  the index to write the first encoded record at
+     * @param dstOffsets where the offset of each encoded record is written, followed by where the last one ends
+     * @return the number of bytes written
+     * @throws BufferOverflowException if dst runs out of room, in which case the records before the one that did
+     *                                 not fit have been written
+     */
+    public int encodeAll(byte[] src, int[] srcOffsets, int count, byte[] dst, int dstOffset, int[] dstOffsets) {
+        int index = dstOffset;
+        dstOffsets[0] = index;
+        for (int i = 0; i < count; i++) {
+            index += encode(src, srcOffsets[i], srcOffsets[i + 1] - srcOffsets[i], dst, index);
+            dstOffsets[i + 1] = index;
+        }
+        return index - dstOffset;
+    }
+
+    /**
+     * Decodes a column of records written by {@link #encodeAll}, laying them end to end in the same way.
+     *
+     * @param src        the encoded records
+     * @param srcOffsets where each encoded record starts, followed by where the last one ends
+     * @param count      the number of records
+     * @param dst        where the records are written
+     * @param dstOffset  the index to write the first record at
+     * @param dstOffsets where the offset of each record is written, followed by where the last one ends
+     * @return the number of bytes written
+     * @throws IOException             if an encoded record is not valid
+     * @throws BufferOverflowException if dst runs out of room, in which case the records before the one that did
+     *                                 not fit have been written
+     */
+    public int decodeAll(byte[] src, int[] srcOffsets, int count, byte[] dst, int dstOffset, int[] dstOffsets) throws IOException {
+        int index = dstOffset;
+        dstOffsets[0] = index;
+        for (int i = 0; i < count; i++) {
+            index += decode(src, srcOffsets[i], srcOffsets[i + 1] - srcOffsets[i], dst, index);
+            dstOffsets[i + 1] = index;
+        }
+        return index - dstOffset;
+    }
+
+    /**
+     * Reads a varint written at the start of a record.
+     *
+     * @param src    the encoded record
+     * @param offset the index of the varint
+     * @param end    the index after the encoded record
+     * @return the value
+     * @throws IOException if the varint runs past the record or does not fit in an int
+     */
+    private static int readVarInt(byte[] src, int offset, int end) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (offset >= end) {
+                throw new IOException("Record ended in the middle of its length");
+            }
+            int next = src[offset++];
+            value |= (long) (next & 0x7f) << shift;
+            if (next >= 0) {
+                if (value > Integer.MAX_VALUE) {
+                    break;
+                }
+                return (int) value;
+            }
+        }
+        throw new IOException("Invalid record length");
+    }
+
+    /**
+     * Gets this thread's scratch buffer, making it bigger if needed.
+     *
+     * @param length the number of bytes needed
+     * @return a buffer with at least length bytes
+     */
+    private static byte[] scratch(int length) {
+        byte[] scratch = SCRATCH.get();
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+            SCRATCH.set(scratch);
+        }
+        return scratch;
+    }
+}
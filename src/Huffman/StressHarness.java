@@ -0,0 +1,532 @@
+package Huffman;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Round trips large generated files through each codec under a fixed heap limit and checks the results.
+ * <p>
+ * Every case runs in its own JVM started with {@code -Xmx}, so a codec that needs more memory than it should
+ * fails with an OutOfMemoryError instead of passing on a developer's large heap. The child JVM generates the
+ * input, compresses and decompresses it, compares the output byte for byte and reports the time taken and the
+ * peak heap used. This class then checks each case against its limits, prints a table and exits with status 1
+ * if any case failed, so it can be run as a release check with the jar made by build-core.sh:
+ * <pre>
+ * java -cp build/huffman-core.jar Huffman.StressHarness --sizes 1M,64M,1G,4G --threads 1,2,4
+ * </pre>
+ * Options:
+ * <pre>
+ * --sizes 1M,16M,256M       input sizes, with K, M or G suffixes
+ * --codecs legacy,legacy-parallel,block,pipelined
+ * --threads 1,2,4           thread counts for the codecs that use threads
+ * --heap 256M               the -Xmx for the streaming codecs, whatever the input size
+ * --working-set 32M         the most heap the streaming codecs may use, whatever the input size
+ * --legacy-heap-factor 12   the -Xmx for the legacy codecs as a multiple of the input size
+ * --legacy-bound-factor 8   the most heap the legacy codecs may use as a multiple of the input size
+ * --legacy-max 64M          the largest input given to the legacy codecs
+ * --min-mbps 2              the slowest allowed round trip, in MB of input per second
+ * --dir /tmp                where the generated files are written
+ * </pre>
+ * The peak heap is checked against a bound below the {@code -Xmx}, so a codec that uses more than it should
+ * but still fits in the JVM fails the check rather than passing. The legacy codecs are never given less than
+ * the working set.
+ */
+public class StressHarness {
+    private static final long KB = 1024;
+    private static final long MB = KB * 1024;
+    private static final long GB = MB * 1024;
+    private static final String RESULT = "RESULT";
+
+    /**
+     * The codecs that can be tested.
+     */
+    enum Codec {
+        /**
+         * {@link HuffmanTree}, {@link Encoder} and {@link Decoder}, which hold the whole file in memory.
+         */
+        LEGACY(false),
+        /**
+         * {@link HuffmanTree}, {@link Encoder} and {@link ParallelDecoder}, which hold the whole file in memory.
+         */
+        LEGACY_PARALLEL(true),
+        /**
+         * {@link BlockEncoder} and {@link BlockDecoder} over streams, one thread.
+         */
+        BLOCK(false),
+        /**
+         * {@link PipelinedEncoder} with {@link BlockDecoder}.
+         */
+        PIPELINED(true);
+
+        private final boolean threaded;
+
+        Codec(boolean threaded) {
+            this.threaded = threaded;
+        }
+
+        /**
+         * Checks whether the codec holds the whole file in memory.
+         *
+         * @return true for the legacy codecs
+         */
+        boolean isLegacy() {
+            return this == LEGACY || this == LEGACY_PARALLEL;
+        }
+    }
+
+    private long[] sizes = {MB, 16 * MB, 256 * MB};
+    private List<Codec> codecs = Arrays.asList(Codec.values());
+    private int[] threads = {1, Runtime.getRuntime().availableProcessors()};
+    private long heap = 256 * MB;
+    private long workingSet = 32 * MB;
+    private int legacyHeapFactor = 12;
+    private int legacyBoundFactor = 8;
+    private long legacyMax = 64 * MB;
+    private double minMbps = 2;
+    private Path dir = Paths.get(System.getProperty("java.io.tmpdir"));
+
+    /**
+     * Runs the stress cases, or a single case when started by another harness with {@code --child}.
+     *
+     * @param args the options described above
+     * @throws Exception if a child JVM cannot be started
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--child")) {
+            runChild(Codec.valueOf(args[1]), Long.parseLong(args[2]), Integer.parseInt(args[3]), Paths.get(args[4]));
+            return;
+        }
+        StressHarness harness = new StressHarness();
+        harness.parse(args);
+        System.exit(harness.run() ? 0 : 1);
+    }
+
+    /**
+     * Reads the command line options.
+     *
+     * @param args the options
+     */
+    private void parse(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = Arrays.stream(value.split(",")).mapToLong(StressHarness::parseSize).toArray();
+                    break;
+                case "--codecs":
+                    codecs = new ArrayList<>();
+                    for (String codec : value.split(",")) {
+                        codecs.add(Codec.valueOf(codec.trim().toUpperCase(Locale.ROOT).replace('-', '_')));
+                    }
+                    break;
+                case "--threads":
+                    threads = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).distinct().sorted().toArray();
+                    break;
+                case "--heap":
+                    heap = parseSize(value);
+                    break;
+                case "--working-set":
+                    workingSet = parseSize(value);
+                    break;
+                case "--legacy-heap-factor":
+                    legacyHeapFactor = Integer.parseInt(value);
+                    break;
+                case "--legacy-bound-factor":
+                    legacyBoundFactor = Integer.parseInt(value);
+                    break;
+                case "--legacy-max":
+                    legacyMax = parseSize(value);
+                    break;
+                case "--min-mbps":
+                    minMbps = Double.parseDouble(value);
+                    break;
+                case "--dir":
+                    dir = Paths.get(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    /**
+     * Runs every case in its own JVM and checks the results.
+     *
+     * @return true if every case passed
+     * @throws IOException          if a child JVM cannot be started
+     * @throws InterruptedException if interrupted while waiting for a child JVM
+     */
+    private boolean run() throws IOException, InterruptedException {
+        boolean passed = true;
+        System.out.printf("%-16s %8s %7s %8s %8s %10s %10s %10s  %s%n",
+                "codec", "size", "threads", "heap", "bound", "peak", "MB/s", "speedup", "result");
+        for (Codec codec : codecs) {
+            for (long size : sizes) {
+                if (codec.isLegacy() && size > legacyMax) {
+                    System.out.printf("%-16s %8s %7s %8s %8s %10s %10s %10s  %s%n", codec, formatSize(size),
+                            "-", "-", "-", "-", "-", "-", "skipped, larger than --legacy-max");
+                    continue;
+                }
+                long limit = codec.isLegacy() ? Math.max(heap, size * legacyHeapFactor) : heap;
+                long bound = codec.isLegacy() ? Math.max(workingSet, size * legacyBoundFactor) : workingSet;
+                if (bound >= limit) {
+                    throw new IllegalArgumentException("The heap bound for " + codec + " of " + formatSize(bound)
+                            + " is not below its -Xmx of " + formatSize(limit));
+                }
+                double singleThreadMbps = 0;
+                for (int threadCount : codec.threaded ? threads : new int[]{1}) {
+                    Result result = runCase(codec, size, threadCount, limit);
+                    List<String> failures = new ArrayList<>();
+                    if (result.error != null) {
+                        failures.add(result.error);
+                    } else {
+                        if (result.peakHeap > bound) {
+                            failures.add("peak heap over " + formatSize(bound));
+                        }
+                        if (result.mbps < minMbps) {
+                            failures.add(String.format("slower than %.1f MB/s", minMbps));
+                        }
+                        if (singleThreadMbps == 0) {
+                            singleThreadMbps = result.mbps;
+                        } else if (threadCount <= Runtime.getRuntime().availableProcessors()
+                                && result.mbps < singleThreadMbps * 0.8) {
+                            // More threads may not help on every machine, but they should never cost much
+                            failures.add("slower than with 1 thread");
+                        }
+                    }
+                    passed &= failures.isEmpty();
+                    System.out.printf("%-16s %8s %7d %8s %8s %10s %10.1f %10s  %s%n", codec, formatSize(size),
+                            threadCount, formatSize(limit), formatSize(bound), formatSize(result.peakHeap), result.mbps,
+                            singleThreadMbps == 0 ? "-" : String.format("%.2fx", result.mbps / singleThreadMbps),
+                            failures.isEmpty() ? "ok" : "FAILED: " + String.join(", ", failures));
+                }
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Starts a JVM with the given heap limit to run one case and reads its result.
+     *
+     * @param codec       the codec
+     * @param size        the input size in bytes
+     * @param threadCount the number of threads
+     * @param limit       the heap limit in bytes
+     * @return the result
+     * @throws IOException          if the JVM cannot be started
+     * @throws InterruptedException if interrupted while waiting for the JVM
+     */
+    private Result runCase(Codec codec, long size, int threadCount, long limit) throws IOException, InterruptedException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-Xmx" + (limit / MB) + "m",
+                "-cp", System.getProperty("java.class.path"), StressHarness.class.getName(), "--child",
+                codec.name(), Long.toString(size), Integer.toString(threadCount), dir.toString());
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+
+        Result result = new Result();
+        String lastLine = "no output";
+        try (BufferedReader output = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(RESULT)) {
+                    String[] fields = line.split(" ");
+                    result.peakHeap = Long.parseLong(fields[1]);
+                    result.mbps = Double.parseDouble(fields[2]);
+                    result.error = fields.length > 3 ? line.substring(line.indexOf(fields[3])) : null;
+                } else if (!line.trim().isEmpty()) {
+                    lastLine = line.trim();
+                }
+            }
+        }
+        if (process.waitFor() != 0 && result.error == null) {
+            result.error = lastLine.contains("OutOfMemoryError") ? "out of memory" : "exited with " + lastLine;
+        }
+        return result;
+    }
+
+    /**
+     * Runs one case inside the child JVM and prints its result line.
+     *
+     * @param codec       the codec
+     * @param size        the input size in bytes
+     * @param threadCount the number of threads
+     * @param dir         where the files are written
+     * @throws IOException if the files cannot be written
+     */
+    private static void runChild(Codec codec, long size, int threadCount, Path dir) throws IOException {
+        Path work = Files.createTempDirectory(dir, "huffman-stress");
+        Path input = work.resolve("input.txt");
+        Path compressed = work.resolve("input-compressed.bin");
+        Path output = work.resolve("input-uncompressed.txt");
+        String error = null;
+        long peak = 0;
+        double mbps = 0;
+        try {
+            generate(input, size);
+            System.gc();
+            resetPeakHeap();
+            long start = System.nanoTime();
+            roundTrip(codec, threadCount, input, compressed, output, work);
+            long nanos = System.nanoTime() - start;
+            peak = peakHeap();
+            mbps = size / (double) MB / Math.max(nanos / 1e9, 1e-9);
+            if (!sameContents(input, output)) {
+                error = "output differs from input";
+            }
+        } catch (OutOfMemoryError e) {
+            error = "out of memory";
+        } finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(compressed);
+            Files.deleteIfExists(output);
+            Files.deleteIfExists(work);
+        }
+        System.out.println(RESULT + " " + peak + " " + mbps + (error == null ? "" : " " + error));
+    }
+
+    /**
+     * Compresses and decompresses a file with one codec.
+     *
+     * @param codec       the codec
+     * @param threadCount the number of threads
+     * @param input       the file to compress
+     * @param compressed  where the compressed file is written
+     * @param output      where the decompressed file is written
+     * @param work        the directory holding the files
+     * @throws IOException if a file cannot be read or written
+     */
+    private static void roundTrip(Codec codec, int threadCount, Path input, Path compressed, Path output, Path work)
+            throws IOException {
+        switch (codec) {
+            case LEGACY:
+            case LEGACY_PARALLEL:
+                HuffmanTree huffman = new HuffmanTree(input.toString(), false);
+                Encoder encoder = new Encoder(huffman.getCharacterFrequencies(), huffman.getCodes());
+                encoder.compress(huffman.getFileContents(), work.toString(), "input");
+                huffman = null;
+                encoder = null;
+                if (codec == Codec.LEGACY) {
+                    Decoder.decompress(compressed.toString(), work.toString(), "input");
+                } else {
+                    ParallelDecoder.decompress(compressed.toString(), work.toString(), "input", threadCount,
+                            new CodecMetrics());
+                }
+                break;
+            case BLOCK:
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(input));
+                     OutputStream out = new BufferedOutputStream(Files.newOutputStream(compressed))) {
+                    new BlockEncoder().compress(in, out);
+                }
+                decompress(compressed, output);
+                break;
+            case PIPELINED:
+                new PipelinedEncoder(BlockEncoder.DEFAULT_BLOCK_SIZE, threadCount, PipelinedEncoder.DEFAULT_QUEUE_DEPTH)
+                        .compress(input, compressed);
+                decompress(compressed, output);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown codec " + codec);
+        }
+    }
+
+    /**
+     * Decompresses a block compressed file.
+     *
+     * @param compressed the compressed file
+     * @param output     where the decompressed file is written
+     * @throws IOException if a file cannot be read or written
+     */
+    private static void decompress(Path compressed, Path output) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(compressed));
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(output))) {
+            new BlockDecoder().decompress(in, out);
+        }
+    }
+
+    /**
+     * Writes English-like text made of words picked with a skewed distribution, so that it compresses
+     * about as well as real text. The same size always gives the same file, and the text is written in
+     * small pieces so generating a large file does not need a large heap.
+     *
+     * @param file the file to write
+     * @param size the number of bytes
+     * @throws IOException if the file cannot be written
+     */
+    static void generate(Path file, long size) throws IOException {
+        Random random = new Random(size);
+        String[] words = new String[2000];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 1 + random.nextInt(4) + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + Math.min(25, (int) (-Math.log(1 - random.nextDouble()) * 6))));
+            }
+            words[i] = word.toString();
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            long written = 0;
+            int used = 0;
+            int lineLength = 0;
+            while (written + used < size) {
+                // Squaring a uniform number makes the first words much more common than the rest
+                double pick = random.nextDouble();
+                String word = words[(int) (pick * pick * words.length)];
+                for (int i = 0; i <= word.length() && written + used < size; i++) {
+                    byte next;
+                    if (i < word.length()) {
+                        next = (byte) word.charAt(i);
+                    } else if (lineLength > 70) {
+                        next = '\n';
+                        lineLength = 0;
+                    } else {
+                        next = (byte) (random.nextInt(12) == 0 ? ',' : ' ');
+                    }
+                    buffer[used++] = next;
+                    lineLength++;
+                    if (used == buffer.length) {
+                        out.write(buffer, 0, used);
+                        written += used;
+                        used = 0;
+                    }
+                }
+            }
+            out.write(buffer, 0, used);
+        }
+    }
+
+    /**
+     * Compares two files a piece at a time.
+     *
+     * @param first  a file
+     * @param second the other file
+     * @return true if the files hold the same bytes
+     * @throws IOException if a file cannot be read
+     */
+    static boolean sameContents(Path first, Path second) throws IOException {
+        if (!Files.exists(second) || Files.size(first) != Files.size(second)) {
+            return false;
+        }
+        byte[] firstBuffer = new byte[1 << 16];
+        byte[] secondBuffer = new byte[1 << 16];
+        try (InputStream a = new BufferedInputStream(Files.newInputStream(first));
+             InputStream b = new BufferedInputStream(Files.newInputStream(second))) {
+            int read;
+            while ((read = readFully(a, firstBuffer)) > 0) {
+                if (readFully(b, secondBuffer) != read
+                        || !Arrays.equals(Arrays.copyOf(firstBuffer, read), Arrays.copyOf(secondBuffer, read))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fills a buffer from a stream unless the stream ends first.
+     *
+     * @param in     the stream
+     * @param buffer the buffer
+     * @return the number of bytes read
+     * @throws IOException if the stream cannot be read
+     */
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Clears the recorded peaks of the heap memory pools.
+     */
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Adds up the peak usage of the heap memory pools since they were last reset. The pools do not peak
+     * at the same moment, so this is an upper bound on the heap that was in use.
+     *
+     * @return the peak heap in bytes
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Reads a size such as 64M or 2G.
+     *
+     * @param size the size
+     * @return the number of bytes
+     */
+    private static long parseSize(String size) {
+        size = size.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        switch (size.charAt(size.length() - 1)) {
+            case 'K':
+                unit = KB;
+                break;
+            case 'M':
+                unit = MB;
+                break;
+            case 'G':
+                unit = GB;
+                break;
+            default:
+                return Long.parseLong(size);
+        }
+        return Long.parseLong(size.substring(0, size.length() - 1)) * unit;
+    }
+
+    /**
+     * Writes a size in the largest unit that keeps it a whole number.
+     *
+     * @param size the number of bytes
+     * @return the size as text
+     */
+    private static String formatSize(long size) {
+        if (size >= GB && size % GB == 0) {
+            return size / GB + "G";
+        } else if (size >= MB) {
+            return size / MB + "M";
+        } else if (size >= KB) {
+            return size / KB + "K";
+        }
+        return Long.toString(size);
+    }
+
+    /**
+     * What a child JVM reported.
+     */
+    private static final class Result {
+        private long peakHeap;
+        private double mbps;
+        private String error;
+    }
+}
@@ -0,0 +1,103 @@
+package Huffman;
+
+import java.util.Arrays;
+
+/**
+ * Gives each code point that appears in a file a small index, in the order they are first seen.
+ * <p>
+ * There are over a million code points but a file only uses a few of them, so the counts can be kept
+ * in an array as long as the number of different code points instead of one entry per possible code point.
+ * The code points are kept in an open addressing hash table so nothing is boxed.
+ */
+final class SymbolIndex {
+    private int[] slots = new int[64];
+    private int[] symbols = new int[16];
+    private int size = 0;
+
+    /**
+     * Instantiates a new Symbol index.
+     */
+    SymbolIndex() {
+        Arrays.fill(slots, -1);
+    }
+
+    /**
+     * Gets the index of a code point, adding it if it has not been seen before.
+     *
+     * @param codePoint the code point
+     * @return the index
+     */
+    int add(int codePoint) {
+        int slot = find(codePoint);
+        if (slots[slot] >= 0) {
+            return slots[slot];
+        }
+        if (size == symbols.length) {
+            symbols = Arrays.copyOf(symbols, size * 2);
+        }
+        symbols[size] = codePoint;
+        slots[slot] = size;
+        size++;
+        // Keep the table at most half full so the searches stay short
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * Gets the index of a code point.
+     *
+     * @param codePoint the code point
+     * @return the index, or -1 if the code point has not been added
+     */
+    int indexOf(int codePoint) {
+        return slots[find(codePoint)];
+    }
+
+    /**
+     * Gets the code point with the given index.
+     *
+     * @param index the index
+     * @return the code point
+     */
+    int symbolAt(int index) {
+        return symbols[index];
+    }
+
+    /**
+     * Gets the number of different code points.
+     *
+     * @return the size
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Finds the slot holding a code point, or the empty slot where it would go.
+     *
+     * @param codePoint the code point
+     * @return the slot
+     */
+    private int find(int codePoint) {
+        int mask = slots.length - 1;
+        int hash = codePoint * 0x9E3779B9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (slots[slot] >= 0 && symbols[slots[slot]] != codePoint) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Doubles the hash table and puts every code point back in.
+     */
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < size; i++) {
+            slots[find(symbols[i])] = i;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package Huffman;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Keeps the most recently used tables built from a header, so that files with the same header
+ * (for example files compressed with the same saved encoder) do not rebuild the same tree again.
+ * <p>
+ * Tables are found using a 64 bit fingerprint of the header, and the header itself is kept to make sure
+ * two different headers with the same fingerprint are never mixed up. When the cache is full the table that
+ * was used longest ago is dropped. The cache can be used by several threads at once.
+ *
+ * @param <V> the type of table
+ */
+public class TableCache<V> {
+    /**
+     * The number of tables kept unless {@link #setCapacity(int)} is used.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final LinkedHashMap<Long, CachedTable<V>> tables = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private int capacity;
+
+    /**
+     * Instantiates a new Table cache.
+     *
+     * @param capacity the most tables to keep
+     */
+    public TableCache(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Gets the table built from a header, building it if it is not in the cache.
+     * <p>
+     * The table is built without holding the lock, so two threads may both build a missing table
+     * and one of them is kept.
+     *
+     * @param header the header the table is built from
+     * @param build  builds the table from the header
+     * @return the table
+     */
+    V get(String header, Function<String, V> build) {
+        long fingerprint = fingerprint(header);
+        synchronized (this) {
+            CachedTable<V> cached = tables.get(fingerprint);
+            if (cached != null && cached.header.equals(header)) {
+                hits.increment();
+                return cached.table;
+            }
+        }
+        misses.increment();
+        V table = build.apply(header);
+        synchronized (this) {
+            tables.put(fingerprint, new CachedTable<>(header, table));
+            trim();
+        }
+        return table;
+    }
+
+    /**
+     * Gets the number of times a table was found in the cache.
+     *
+     * @return the hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets the number of times a table had to be built.
+     *
+     * @return the misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Gets the fraction of lookups that found a table in the cache.
+     *
+     * @return the hit rate, or 0 if nothing has been looked up
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * Gets the number of tables in the cache.
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        return tables.size();
+    }
+
+    /**
+     * Gets the most tables the cache keeps.
+     *
+     * @return the capacity
+     */
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the most tables the cache keeps, dropping the least recently used ones if there are too many.
+     *
+     * @param capacity the capacity, 0 turns the cache off
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        trim();
+    }
+
+    /**
+     * Drops every table and sets the hits and misses back to 0.
+     */
+    public synchronized void clear() {
+        tables.clear();
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Drops the least recently used tables until the cache is within its capacity.
+     */
+    private void trim() {
+        while (tables.size() > capacity) {
+            Map.Entry<Long, CachedTable<V>> eldest = tables.entrySet().iterator().next();
+            tables.remove(eldest.getKey());
+        }
+    }
+
+    /**
+     * Works out the 64 bit FNV-1a hash of a header.
+     *
+     * @param header the header
+     * @return the fingerprint
+     */
+    static long fingerprint(String header) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < header.length(); i++) {
+            hash ^= header.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/%d tables, %d hits, %d misses (%.1f%% hit rate)",
+                size(), getCapacity(), getHits(), getMisses(), getHitRate() * 100);
+    }
+
+    /**
+     * A table along with the header it was built from.
+     *
+     * @param <V> the type of table
+     */
+    private static final class CachedTable<V> {
+        private final String header;
+        private final V table;
+
+        /**
+         * Instantiates a new Cached table.
+         *
+         * @param header the header
+         * @param table  the table
+         */
+        CachedTable(String header, V table) {
+            this.header = header;
+            this.table = table;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package Huffman;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A file of named code tables that are ready to use, for loading many dictionaries at start up without building them.
+ * <p>
+ * Each table is stored with its codes and its filled decode table (see {@link CodeTable#writeSnapshot(ByteBuffer, int)})
+ * at a fixed offset, so nothing is worked out when a table is loaded. Opening a snapshot maps the file read-only
+ * and reads only the header and the list of names, the tables themselves are not touched until they are used.
+ * Because the file is mapped, every process using the same snapshot shares one copy of it through the page cache.
+ * <p>
+ * The file is laid out as:
+ * <pre>
+ * int     {@link #MAGIC}
+ * int     {@link #VERSION}
+ * int     number of tables
+ * int     offset of the names
+ * then the tables, {@link CodeTable#SNAPSHOT_SIZE} bytes each
+ * then for each table:
+ * short   length of the name in bytes
+ * byte[]  the name in UTF-8
+ * int     CRC32 of the table
+ * </pre>
+ * All numbers are big-endian.
+ */
+public class TableSnapshot {
+    /**
+     * The first 4 bytes of a snapshot ("HUFT").
+     */
+    static final int MAGIC = 0x48554654;
+    /**
+     * The version of the layout, which changes if the layout of a table does.
+     */
+    static final int VERSION = 1;
+    /**
+     * The number of bytes before the first table.
+     */
+    private static final int HEADER_SIZE = 16;
+    /**
+     * The longest name in bytes.
+     */
+    private static final int MAX_NAME_LENGTH = 0xffff;
+
+    private final MappedByteBuffer data;
+    private final Map<String, Entry> entries;
+    private final List<String> names;
+
+    /**
+     * Instantiates a new Table snapshot.
+     *
+     * @param data    the mapped file
+     * @param entries where each table is, by name
+     * @param names   the names in the order they were written
+     */
+    private TableSnapshot(MappedByteBuffer data, Map<String, Entry> entries, List<String> names) {
+        this.data = data;
+        this.entries = entries;
+        this.names = names;
+    }
+
+    /**
+     * Writes code tables to a snapshot file, replacing the file if it exists.
+     *
+     * @param file   the snapshot file
+     * @param tables the tables by name, written in the order of the map
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path file, Map<String, CodeTable> tables) throws IOException {
+        List<byte[]> encodedNames = new ArrayList<>(tables.size());
+        int namesSize = 0;
+        for (String name : tables.keySet()) {
+            byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+            if (encodedName.length > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Table name is too long: " + name);
+            }
+            encodedNames.add(encodedName);
+            namesSize += 2 + encodedName.length + 4;
+        }
+        long namesOffset = HEADER_SIZE + (long) tables.size() * CodeTable.SNAPSHOT_SIZE;
+        if (namesOffset + namesSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many tables for one snapshot: " + tables.size());
+        }
+
+        ByteBuffer snapshot = ByteBuffer.allocate((int) namesOffset + namesSize);
+        snapshot.putInt(MAGIC).putInt(VERSION).putInt(tables.size()).putInt((int) namesOffset);
+        int[] crcs = new int[tables.size()];
+        CRC32 crc = new CRC32();
+        int index = 0;
+        for (CodeTable table : tables.values()) {
+            int offset = HEADER_SIZE + index * CodeTable.SNAPSHOT_SIZE;
+            table.writeSnapshot(snapshot, offset);
+            crc.reset();
+            crc.update(snapshot.array(), offset, CodeTable.SNAPSHOT_SIZE);
+            crcs[index++] = (int) crc.getValue();
+        }
+        snapshot.position((int) namesOffset);
+        for (int i = 0; i < encodedNames.size(); i++) {
+            snapshot.putShort((short) encodedNames.get(i).length).put(encodedNames.get(i)).putInt(crcs[i]);
+        }
+        snapshot.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (snapshot.hasRemaining()) {
+                channel.write(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Maps a snapshot file and reads its list of names.
+     * <p>
+     * The file stays mapped while the snapshot is in use, the file itself is closed before this returns.
+     *
+     * @param file the snapshot file
+     * @return the snapshot
+     * @throws IOException if the file cannot be read or is not a snapshot
+     */
+    public static TableSnapshot map(Path file) throws IOException {
+        MappedByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot is too large to map");
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a table snapshot");
+        }
+        if (data.getInt(4) != VERSION) {
+            throw new IOException("Unsupported table snapshot version " + data.getInt(4));
+        }
+        int count = data.getInt(8);
+        int namesOffset = data.getInt(12);
+        if (count < 0 || namesOffset != HEADER_SIZE + (long) count * CodeTable.SNAPSHOT_SIZE || namesOffset > data.limit()) {
+            throw new IOException("Table snapshot is corrupt");
+        }
+
+        Map<String, Entry> entries = new HashMap<>(count * 2);
+        List<String> names = new ArrayList<>(count);
+        ByteBuffer directory = data.duplicate();
+        directory.position(namesOffset);
+        try {
+            for (int i = 0; i < count; i++) {
+                byte[] encodedName = new byte[directory.getShort() & MAX_NAME_LENGTH];
+                directory.get(encodedName);
+                String name = new String(encodedName, StandardCharsets.UTF_8);
+                Entry entry = new Entry(HEADER_SIZE + i * CodeTable.SNAPSHOT_SIZE, directory.getInt());
+                if (entries.putIfAbsent(name, entry) != null) {
+                    throw new IOException("Table snapshot has two tables named " + name);
+                }
+                names.add(name);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Table snapshot is corrupt", e);
+        }
+        return new TableSnapshot(data, entries, Collections.unmodifiableList(names));
+    }
+
+    /**
+     * Gets the names of the tables, in the order they were written.
+     *
+     * @return the names
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * Checks whether the snapshot has a table.
+     *
+     * @param name the table name
+     * @return true if the table is in the snapshot
+     */
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Loads a table into a new code table, which can be passed to
+     * {@link BlockEncoder#compress(ByteBuffer, ByteBuffer, CodeTable)} or
+     * {@link BlockDecoder#decompress(ByteBuffer, ByteBuffer, CodeTable)} as a dictionary.
+     *
+     * @param name the table name
+     * @return the code table
+     * @throws IOException if there is no such table or it is corrupt
+     */
+    public CodeTable getTable(String name) throws IOException {
+        CodeTable table = new CodeTable();
+        loadInto(name, table);
+        return table;
+    }
+
+    /**
+     * Loads a table into an existing code table, so loading tables over and over does not allocate.
+     * <p>
+     * The table is checked against its CRC each time, which reads it once before it is copied.
+     *
+     * @param name  the table name
+     * @param table the code table to replace
+     * @throws IOException if there is no such table or it is corrupt
+     */
+    public void loadInto(String name, CodeTable table) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            throw new IOException("No such table: " + name);
+        }
+        ByteBuffer snapshot = data.duplicate();
+        snapshot.position(entry.offset).limit(entry.offset + CodeTable.SNAPSHOT_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(snapshot);
+        if ((int) crc.getValue() != entry.crc) {
+            throw new IOException("Table is corrupt: " + name);
+        }
+        table.readSnapshot(data, entry.offset);
+    }
+
+    /**
+     * Where a table is in the snapshot.
+     */
+    private static final class Entry {
+        private final int offset;
+        private final int crc;
+
+        /**
+         * Instantiates a new Entry.
+         *
+         * @param offset the offset of the table
+         * @param crc    the CRC32 of the table
+         */
+        Entry(int offset, int crc) {
+            this.offset = offset;
+            this.crc = crc;
+        }
+    }
+}
@@ -1,6 +1,12 @@
-import Huffman.Decoder;
+import Huffman.BlockDecoder;
+import Huffman.CodecMetrics;
+import Huffman.CompressionAnalysis;
+import Huffman.CompressionAnalyzer;
 import Huffman.Encoder;
 import Huffman.HuffmanTree;
+import Huffman.ParallelDecoder;
+import Huffman.PipelinedEncoder;
+import Huffman.ProgressListener;
 import javafx.concurrent.Task;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
@@ -13,6 +19,7 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 
@@ -21,10 +28,18 @@ import java.util.Arrays;
  * Makes the UI for the options to compress and the uncompress files.
  */
 public class OptionsUI {
+    // The block sizes the user can pick from, 0 meaning the text format which has no blocks
+    private static final String[] BLOCK_SIZE_NAMES = {"None (.bin)", "64 KB", "128 KB", "256 KB", "1 MB", "4 MB"};
+    private static final int[] BLOCK_SIZES = {0, 64 << 10, 128 << 10, 256 << 10, 1 << 20, 4 << 20};
+
     private File fileSelected = null;
     private File outputDir = null;
     private File encoderFile = null;
     private CheckBox saveEncoder = null;
+    private Spinner<Integer> threads = null;
+    private ComboBox<String> blockSize = null;
+    // The number of characters the last compression replaced with an underscore
+    private long unknownCharacters = 0;
 
     /**
      * Instantiates a new Options ui.
@@ -45,9 +60,9 @@ public class OptionsUI {
         Text select = getTextElement("File: ");
         Button selectBtn;
         if (compress) {
-            selectBtn = getSelectFileButton(stage, "*", "Select a text File");
+            selectBtn = getSelectFileButton(stage, "Select a text File", "*");
         } else {
-            selectBtn = getSelectFileButton(stage, "*.bin", "Select a .bin File");
+            selectBtn = getSelectFileButton(stage, "Select a .bin or .huf File", "*.bin", "*.huf");
         }
         HBox hBox1 = new HBox();
 
@@ -69,6 +84,9 @@ public class OptionsUI {
         }
 
 
+        // Creates the UI to choose how many threads to use and, when compressing, the block size
+        HBox hBox5 = getPerformanceBox(compress);
+
         // Creates the UI option to select an output directory
         Text selectOut = getTextElement("Select output location: ");
         Button selectDirBtn = getSelectDirButton(stage);
@@ -82,13 +100,13 @@ public class OptionsUI {
         hBox4.getChildren().addAll(backButton, okButton);
 
         // Adds all the components together
-        VBox root = getVBox(hBox1, hBox2, hBox3, hBox4);
+        VBox root = getVBox(hBox1, hBox2, hBox5, hBox3, hBox4);
 
         // Creates the window with all the components
         if (compress) {
-            stage.setScene(new Scene(root, 600, 400));
+            stage.setScene(new Scene(root, 600, 470));
         } else {
-            stage.setScene(new Scene(root, 600, 300));
+            stage.setScene(new Scene(root, 600, 370));
         }
 
         // Shows the window
@@ -108,6 +126,46 @@ public class OptionsUI {
         return saveEncoder;
     }
 
+    /**
+     * Gets the UI to choose how many threads to use and, for the compression UI, the block size.
+     * <p>
+     * The text format (.bin) is compressed on one thread; picking a block size compresses to the block format
+     * (.huf) instead, which splits the file into blocks that are compressed on the chosen number of threads.
+     *
+     * @param compress whether or not the UI is for compression
+     * @return the h box containing the threads and block size options
+     */
+    private HBox getPerformanceBox(boolean compress) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        Text threadsText = getTextElement("Threads: ");
+        threads = new Spinner<>(1, processors, processors);
+        threads.setPrefSize(100, 50);
+        threads.setStyle("-fx-font-size: 18");
+        HBox hBox = new HBox(threadsText, threads);
+
+        if (compress) {
+            Text blockSizeText = getTextElement("Block size: ");
+            blockSizeText.setTranslateX(30);
+            blockSize = new ComboBox<>();
+            blockSize.getItems().addAll(BLOCK_SIZE_NAMES);
+            blockSize.getSelectionModel().selectFirst();
+            blockSize.setPrefSize(160, 50);
+            blockSize.setStyle("-fx-font-size: 18");
+            blockSize.setTranslateX(40);
+            hBox.getChildren().addAll(blockSizeText, blockSize);
+        }
+        return hBox;
+    }
+
+    /**
+     * Gets the block size the user picked.
+     *
+     * @return the number of bytes in each block, or 0 for the text format
+     */
+    private int getBlockSize() {
+        return blockSize == null ? 0 : BLOCK_SIZES[blockSize.getSelectionModel().getSelectedIndex()];
+    }
+
     /**
      * Gets text element.
      *
@@ -127,14 +185,16 @@ public class OptionsUI {
      *
      * @param hBox1 a hBox containing the UI to select a file
      * @param hBox2 a hBox containing the UI to save and load an encoder (may be null)
+     * @param hBox5 a hBox containing the UI to choose the threads and block size
      * @param hBox3 a hBox containing the UI to select a output directory
      * @param hBox4 a hBox containing the ok and back buttons
      * @return the v box containing all the hBoxes
      */
-    private VBox getVBox(HBox hBox1, HBox hBox2, HBox hBox3, HBox hBox4) {
+    private VBox getVBox(HBox hBox1, HBox hBox2, HBox hBox5, HBox hBox3, HBox hBox4) {
         VBox root = new VBox();
         // Spaces them so they are not right next to each other
         hBox1.setPadding(new Insets(20, 0, 20, 10));
+        hBox5.setPadding(new Insets(0, 0, 20, 10));
         hBox3.setPadding(new Insets(0, 0, 20, 10));
         hBox4.setPadding(new Insets(0, 0, 20, 50));
         hBox3.setTranslateY(20);
@@ -143,9 +203,9 @@ public class OptionsUI {
         // Only adds the UI to save and load an encoder for the compression UI therfore it may be null
         if (hBox2 != null) {
             hBox2.setPadding(new Insets(0, 0, 20, 10));
-            root.getChildren().addAll(hBox1, hBox2, hBox3, hBox4);
+            root.getChildren().addAll(hBox1, hBox2, hBox5, hBox3, hBox4);
         } else {
-            root.getChildren().addAll(hBox1, hBox3, hBox4);
+            root.getChildren().addAll(hBox1, hBox5, hBox3, hBox4);
         }
         return root;
     }
@@ -188,33 +248,48 @@ public class OptionsUI {
         okButton.setOnAction(event -> {
             if (fileSelected != null && outputDir != null) {// only run if the user has selected a file
                 try {
-                    // Creates a window that shows the programs loading bar
-                    Stage loadingStage = new Stage();
-
-                    // Creates the loading bar UI with a title and text, if its for compression
-                    // the title and text is slightly different.
-                    ProgressBar loading = getLoadingBar(loadingStage, "Uncompressing Please Wait...", "Uncompressing: ");
-                    if (compress) {
-                        loading = getLoadingBar(loadingStage, "Compressing Please Wait...", "Compressing: ");
+                    // Saved encoders only work with the text format, which has one tree for the whole file
+                    if (compress && getBlockSize() > 0 && (saveEncoder.isSelected() || encoderFile != null)) {
+                        showAlert(Alert.AlertType.INFORMATION, "Error", "Error",
+                                "Saving and loading encoders only works without a block size");
+                        return;
                     }
 
-                    // Creates a task object which runs the compression or decompression algorithm
-                    Task runner = runner(compress);
+                    // Check the file is worth compressing before paying for the full encode
+                    if (compress && !confirmCompression()) {
+                        return;
+                    }
 
-                    // Binds the progress of the task running the compression/decompression algorithm to the loading bar
-                    loading.progressProperty().bind(runner.progressProperty());
+                    // Works out how the file will be read, the text format is only compressed on one thread
+                    // and the block format is only decompressed on one
+                    boolean blockFormat = compress ? getBlockSize() > 0 : BlockDecoder.isBlockCompressed(fileSelected.toPath());
+                    int threadCount = compress == blockFormat ? threads.getValue() : 1;
 
-                    // Runs the task in another thread so that the progress bar can be animated on the main thread
+                    // Creates a window that shows how the job is going, if its for compression
+                    // the title is slightly different.
+                    CodecMetrics metrics = new CodecMetrics();
+                    DashboardUI dashboard = new DashboardUI(compress ? "Compressing Please Wait..." : "Uncompressing Please Wait...",
+                            metrics, fileSelected.length(), threadCount);
+
+                    // Creates a task object which runs the compression or decompression algorithm
+                    Task runner = runner(compress, blockFormat, threadCount, metrics, dashboard.getListener());
+
+                    // Runs the task in another thread so that the dashboard can be updated on the main thread
                     new Thread(runner).start();
 
-                    // Shows loading bar
-                    loadingStage.show();
+                    // Shows the dashboard
+                    dashboard.show();
 
                     // When the task is complete it will output the results to the user
-                    runner.setOnSucceeded(closeEvent -> displayCompletedInfo(compress, loadingStage, runner));
-
-                    // If the user closes the loading bar window then the program shuts down
-                    loadingStage.setOnCloseRequest(closeEvent -> System.exit(0));
+                    runner.setOnSucceeded(closeEvent -> displayCompletedInfo(compress, dashboard, runner, metrics));
+                    runner.setOnFailed(closeEvent -> {
+                        dashboard.close();
+                        Throwable e = runner.getException();
+                        showAlert(Alert.AlertType.ERROR, "Unsuccessful", "Something went wrong!", e + "\n" + Arrays.toString(e.getStackTrace()));
+                    });
+
+                    // If the user closes the dashboard window then the program shuts down
+                    dashboard.getStage().setOnCloseRequest(closeEvent -> System.exit(0));
                 } catch (Exception e) {
                     // Alert the user if an error occurred during either compression or decompression
                     showAlert(Alert.AlertType.ERROR, "Unsuccessful", "Something went wrong!", Arrays.toString(e.getStackTrace()));
@@ -230,34 +305,70 @@ public class OptionsUI {
     /**
      * Displays the info about the completed task.
      *
-     * @param compress     whether the user is compressing/decompressing a file
-     * @param loadingStage the loading bar window
-     * @param runner       the task which is running the compression/decompression algorithm
+     * @param compress  whether the user is compressing/decompressing a file
+     * @param dashboard the window showing how the task was going
+     * @param runner    the task which is running the compression/decompression algorithm
+     * @param metrics   the metrics recorded while the task was running
      */
-    private void displayCompletedInfo(boolean compress, Stage loadingStage, Task runner) {
-        // Closes the loading bar window
-        loadingStage.close();
+    private void displayCompletedInfo(boolean compress, DashboardUI dashboard, Task runner, CodecMetrics metrics) {
+        // Closes the dashboard window
+        dashboard.close();
 
         // Stops the task
         runner.cancel();
 
         if (compress) {
-            // Calculate the compression ratio from compression the file
-            long ogSize = fileSelected.length();
-            long newSize = new File(outputDir.getAbsolutePath() + "/" + removeExtension(fileSelected.getName()) + "-compressed.bin").length();
+            // Calculate the compression ratio from the bytes the encoder read and wrote
+            long ogSize = metrics.getBytesIn();
+            long newSize = metrics.getBytesOut();
             double ratio = ((double) (ogSize - newSize) / ogSize) * 100;
 
             // Displays to the user that the compression was successful
+            DecimalFormat format = new DecimalFormat("##.##");
             showAlert(Alert.AlertType.INFORMATION, "Successfully compressed",
-                    "Successfully Compressed File by " + new DecimalFormat("##.##").format(ratio) + "%",
-                    fileSelected.getName() + " was successful compressed and placed in " + outputDir.getAbsolutePath());
+                    "Successfully Compressed File by " + format.format(ratio) + "%",
+                    fileSelected.getName() + " was successful compressed and placed in " + outputDir.getAbsolutePath()
+                            + "\n\nBits per character: " + format.format(metrics.getBitsPerSymbol())
+                            + " (entropy " + format.format(metrics.getEntropyPerSymbol()) + ")\n" + metrics
+                            + (unknownCharacters == 0 ? "" : "\n\nWarning: " + unknownCharacters
+                            + " characters were not in the encoder, so they were replaced with an underscore"));
         } else {
             // Displays to the user that the decompression was successful
             showAlert(Alert.AlertType.INFORMATION, "Successfully uncompressed", "Successfully uncompressed",
-                    fileSelected.getName() + " was successfully uncompressed and placed in " + outputDir.getAbsolutePath());
+                    fileSelected.getName() + " was successfully uncompressed and placed in " + outputDir.getAbsolutePath()
+                            + "\n\n" + metrics);
         }
     }
 
+    /**
+     * Predicts how much compressing the selected file will save and, if it is not worth it,
+     * asks the user whether to compress it anyway.
+     *
+     * @return true if the file should be compressed
+     * @throws IOException a possible io exception
+     */
+    private boolean confirmCompression() throws IOException {
+        // The prediction is for the format the file is about to be written in
+        CompressionAnalyzer analyzer = new CompressionAnalyzer();
+        CompressionAnalysis analysis;
+        if (getBlockSize() > 0) {
+            analyzer.setBlockSize(getBlockSize());
+            analysis = analyzer.analyze(fileSelected.toPath());
+        } else {
+            analysis = analyzer.analyzeText(fileSelected.toPath(), saveEncoder.isSelected());
+        }
+        if (analysis.isWorthCompressing()) {
+            return true;
+        }
+        DecimalFormat format = new DecimalFormat("##.##");
+        Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
+        alert.setTitle("Not worth compressing");
+        alert.setHeaderText("Compressing is predicted to save " + format.format(analysis.getPredictedSavings() * 100) + "%");
+        alert.setContentText(fileSelected.getName() + " has " + format.format(analysis.getEntropyBitsPerByte())
+                + " bits of information per byte, so it is unlikely to get smaller.\n\nCompress it anyway?");
+        return alert.showAndWait().filter(button -> button == ButtonType.OK).isPresent();
+    }
+
     /**
      * Saves the encoder object as a .ser file.
      *
@@ -340,15 +451,16 @@ public class OptionsUI {
      * <p>
      * When pressed the user can locate a .txt or .bin file in their file system to compress/decompress
      *
-     * @param stage     the current window
-     * @param extension the file extension that the file chooser can select (i.e .txt or .bin)
+     * @param stage      the current window
+     * @param buttonName the text on the button
+     * @param extensions the file extensions that the file chooser can select (i.e .txt or .bin)
      * @return the select file button
      */
-    private Button getSelectFileButton(Stage stage, String extension, String buttonName) {
+    private Button getSelectFileButton(Stage stage, String buttonName, String... extensions) {
         FileChooser fc = new FileChooser();
         fc.getExtensionFilters().addAll(
-                // Filter only files with a specified extension
-                new FileChooser.ExtensionFilter("Select a file", extension)
+                // Filter only files with the specified extensions
+                new FileChooser.ExtensionFilter("Select a file", extensions)
         );
         Button button = new Button(buttonName);
         // Set the style and size of the button
@@ -438,16 +550,30 @@ public class OptionsUI {
     /**
      * Task which runs either the compression or decompression algorithm
      *
-     * @param compress the compress
+     * @param compress    the compress
+     * @param blockFormat whether the file is compressed to or from the block format rather than the text format
+     * @param threadCount the number of threads to compress or decompress with
+     * @param metrics     the metrics that the compression/decompression records to
+     * @param listener    the listener that the compression/decompression reports its progress to
      * @return the task
      */
-    private Task runner(boolean compress) {
+    private Task runner(boolean compress, boolean blockFormat, int threadCount, CodecMetrics metrics, ProgressListener listener) {
+        // The text format codecs report their progress through the metrics
+        metrics.setProgressListener(listener);
         return new Task() {
             @Override
             protected Object call() throws Exception {
-                if (compress) {
+                unknownCharacters = 0;
+                if (compress && blockFormat) {
+                    // Compress the file in blocks, encoding several blocks at once
+                    PipelinedEncoder encoder = new PipelinedEncoder(getBlockSize(), threadCount, 2 * threadCount);
+                    encoder.setMetrics(metrics);
+                    encoder.setProgressListener(listener);
+                    encoder.compress(fileSelected.toPath(),
+                            outputDir.toPath().resolve(removeExtension(fileSelected.getName()) + "-compressed.huf"));
+                } else if (compress) {
                     // Create a huffman tree for the file selected
-                    HuffmanTree huffman = new HuffmanTree(fileSelected.getAbsolutePath(), saveEncoder.isSelected());
+                    HuffmanTree huffman = new HuffmanTree(fileSelected.getAbsolutePath(), saveEncoder.isSelected(), metrics);
                     Encoder encoder;
 
                     if (encoderFile != null) {
@@ -464,45 +590,26 @@ public class OptionsUI {
                     }
 
                     // Compress the file
+                    encoder.setMetrics(metrics);
                     encoder.compress(huffman.getFileContents(), outputDir.getAbsolutePath(), removeExtension(fileSelected.getName()));
+                    unknownCharacters = encoder.getUnknownCharacters();
+                } else if (blockFormat) {
+                    // Decompress the file one block at a time
+                    BlockDecoder decoder = new BlockDecoder();
+                    decoder.setMetrics(metrics);
+                    decoder.setProgressListener(listener);
+                    File decompressed = new File(outputDir, removeCompressedTag(removeExtension(fileSelected.getName())) + "-uncompressed.txt");
+                    try (InputStream in = new BufferedInputStream(Files.newInputStream(fileSelected.toPath()), 1 << 16);
+                         OutputStream out = new BufferedOutputStream(Files.newOutputStream(decompressed.toPath()), 1 << 16)) {
+                        decoder.decompress(in, out);
+                    }
                 } else {
-                    // Decompress the file
-                    Decoder.decompress(fileSelected.getAbsolutePath(), outputDir.getAbsolutePath(), removeCompressedTag(removeExtension(fileSelected.getName())));
+                    // Decompress the file, splitting the work between the chosen number of threads
+                    ParallelDecoder.decompress(fileSelected.getAbsolutePath(), outputDir.getAbsolutePath(), removeCompressedTag(removeExtension(fileSelected.getName())),
+                            threadCount, metrics);
                 }
                 return null;
             }
         };
     }
-
-    /**
-     * Gets the loading bar.
-     *
-     * @param loadingStage the loading stage
-     * @param title        the title for the loading window
-     * @param text         the text fot the loading window
-     * @return the loading bar
-     */
-    private ProgressBar getLoadingBar(Stage loadingStage, String title, String text) {
-        // Creates the progress bar
-        ProgressBar loading = new ProgressBar(0);
-        loading.setPrefSize(400, 60);
-        loading.setStyle("-fx-accent: #5BC2E7");
-
-        // Creates a label for the progress bar
-        Label progress = new Label(text);
-        progress.setPrefWidth(300);
-        progress.setTranslateX(10);
-        progress.setTranslateY(10);
-        progress.setStyle("-fx-font-size: 25");
-
-        // Adds the progress bar and the label to a HBox
-        HBox hBox = new HBox(progress, loading);
-        hBox.setSpacing(20);
-
-        // Adds the HBox to the window
-        Scene loadingScene = new Scene(hBox, 500, 60);
-        loadingStage.setTitle(title);
-        loadingStage.setScene(loadingScene);
-        return loading;
-    }
 }